@@ -5,55 +5,133 @@ import javax.servlet.ServletInputStream;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletRequestWrapper;
 import java.io.BufferedReader;
-import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
+import java.util.Objects;
 
 /**
  * 用来重新封装request
+ * 请求体替换为内存中的字节，getInputStream 每次调用返回同一个流，Content-Length 与新的请求体一致
  */
 public class BodyRequestWrapper extends HttpServletRequestWrapper {
 
     /**
      * 存放JSON数据主体
      */
-    private String body;
+    private final byte[] body;
+    private final int offset;
+    private final int length;
 
-    public BodyRequestWrapper(HttpServletRequest request, String context) {
+    private BodyInputStream inputStream;
+    private BufferedReader reader;
+
+    public BodyRequestWrapper(HttpServletRequest request, byte[] body, int offset, int length) {
         super(request);
-        body = context;
+        this.body = body;
+        this.offset = offset;
+        this.length = length;
     }
 
     @Override
-    public ServletInputStream getInputStream() throws IOException {
-        final ByteArrayInputStream byteArrayInputStream = new ByteArrayInputStream(body.getBytes(StandardCharsets.UTF_8));
-        return new ServletInputStream() {
-            @Override
-            public int read() throws IOException {
-                return byteArrayInputStream.read();
-            }
+    public ServletInputStream getInputStream() {
+        if (reader != null) {
+            throw new IllegalStateException("getReader() has already been called for this request");
+        }
+        if (inputStream == null) {
+            inputStream = new BodyInputStream();
+        }
+        return inputStream;
+    }
 
-            @Override
-            public boolean isFinished() {
-                return false;
-            }
+    @Override
+    public BufferedReader getReader() {
+        if (inputStream != null) {
+            throw new IllegalStateException("getInputStream() has already been called for this request");
+        }
+        if (reader == null) {
+            String encoding = getCharacterEncoding();
+            Charset charset = encoding != null ? Charset.forName(encoding) : StandardCharsets.UTF_8;
+            reader = new BufferedReader(new InputStreamReader(new BodyInputStream(), charset));
+        }
+        return reader;
+    }
 
-            @Override
-            public boolean isReady() {
-                return false;
-            }
+    @Override
+    public int getContentLength() {
+        return length;
+    }
 
-            @Override
-            public void setReadListener(ReadListener listener) {
+    @Override
+    public long getContentLengthLong() {
+        return length;
+    }
 
+    /**
+     * 内存中的请求体：数据总是可读，读完即结束；设置 ReadListener 时立即回调
+     */
+    private class BodyInputStream extends ServletInputStream {
+        private int position = offset;
+        private final int end = offset + length;
+
+        @Override
+        public int read() {
+            return position < end ? body[position++] & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (off < 0 || len < 0 || len > b.length - off) {
+                throw new IndexOutOfBoundsException();
             }
-        };
-    }
+            if (len == 0) {
+                return 0;
+            }
+            if (position >= end) {
+                return -1;
+            }
+            int n = Math.min(len, end - position);
+            System.arraycopy(body, position, b, off, n);
+            position += n;
+            return n;
+        }
 
-    @Override
-    public BufferedReader getReader() throws IOException {
-        return new BufferedReader(new InputStreamReader(this.getInputStream()));
+        @Override
+        public long skip(long n) {
+            long skipped = Math.max(0, Math.min(n, end - position));
+            position += (int) skipped;
+            return skipped;
+        }
+
+        @Override
+        public int available() {
+            return end - position;
+        }
+
+        @Override
+        public boolean isFinished() {
+            return position >= end;
+        }
+
+        @Override
+        public boolean isReady() {
+            return true;
+        }
+
+        @Override
+        public void setReadListener(ReadListener listener) {
+            Objects.requireNonNull(listener, "listener");
+            try {
+                if (!isFinished()) {
+                    listener.onDataAvailable();
+                }
+                if (isFinished()) {
+                    listener.onAllDataRead();
+                }
+            } catch (IOException e) {
+                listener.onError(e);
+            }
+        }
     }
 }
-
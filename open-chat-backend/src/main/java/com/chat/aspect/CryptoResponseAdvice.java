@@ -0,0 +1,71 @@
+package com.chat.aspect;
+
+import com.chat.annotation.Crypto;
+import com.chat.model.vo.ApiResponse;
+import com.chat.model.vo.SharedApiResponse;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import lombok.RequiredArgsConstructor;
+import org.springframework.core.MethodParameter;
+import org.springframework.core.annotation.AnnotatedElementUtils;
+import org.springframework.http.MediaType;
+import org.springframework.http.converter.HttpMessageConverter;
+import org.springframework.http.converter.json.AbstractJackson2HttpMessageConverter;
+import org.springframework.http.server.ServerHttpRequest;
+import org.springframework.http.server.ServerHttpResponse;
+import org.springframework.web.bind.annotation.ControllerAdvice;
+import org.springframework.web.servlet.mvc.method.annotation.ResponseBodyAdvice;
+
+/**
+ * @Crypto 接口返回值的加密，包括 DeferredResult 完成后异步写出的结果
+ * ApiResponse 的 data 替换为 {@link EncryptedJson}，在 Jackson 写出响应时边序列化边加密，
+ * 直接写入响应输出流；返回格式与之前相同：data 为 SM4 加密后的十六进制字符串。
+ * 广播给多个长轮询请求的 {@link SharedApiResponse} 只加密一次，之后每个请求复用同一份密文。
+ * 其他类型的返回值整体加密为一个字符串
+ *
+ * @author chat
+ * @since 2024-01-01
+ */
+@ControllerAdvice
+@RequiredArgsConstructor
+public class CryptoResponseAdvice implements ResponseBodyAdvice<Object> {
+
+    private final ObjectMapper objectMapper;
+
+    @Override
+    public boolean supports(MethodParameter returnType, Class<? extends HttpMessageConverter<?>> converterType) {
+        if (!AbstractJackson2HttpMessageConverter.class.isAssignableFrom(converterType)) {
+            return false;
+        }
+        Crypto crypto = returnType.getMethodAnnotation(Crypto.class);
+        if (crypto == null) {
+            crypto = AnnotatedElementUtils.findMergedAnnotation(returnType.getContainingClass(), Crypto.class);
+        }
+        return crypto != null && crypto.encryptResponse();
+    }
+
+    @Override
+    public Object beforeBodyWrite(Object body, MethodParameter returnType, MediaType selectedContentType,
+                                  Class<? extends HttpMessageConverter<?>> selectedConverterType,
+                                  ServerHttpRequest request, ServerHttpResponse response) {
+        if (body == null) {
+            return null;
+        }
+        if (!(body instanceof ApiResponse)) {
+            return new EncryptedJson(body, objectMapper);
+        }
+        ApiResponse<?> apiResponse = (ApiResponse<?>) body;
+        if (apiResponse.getData() == null) {
+            return body;
+        }
+        ApiResponse<EncryptedJson> encrypted = new ApiResponse<>();
+        encrypted.setCode(apiResponse.getCode());
+        encrypted.setMessage(apiResponse.getMessage());
+        if (body instanceof SharedApiResponse) {
+            encrypted.setData((EncryptedJson) ((SharedApiResponse<?>) body)
+                    .encryptOnce(data -> EncryptedJson.precompute(data, objectMapper)));
+        } else {
+            encrypted.setData(new EncryptedJson(apiResponse.getData(), objectMapper));
+        }
+        return encrypted;
+    }
+}
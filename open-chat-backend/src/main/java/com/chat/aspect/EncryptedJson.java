@@ -0,0 +1,127 @@
+package com.chat.aspect;
+
+import com.chat.util.SM4HexOutputStream;
+import com.chat.util.SM4Util;
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonSerializable;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializerProvider;
+import com.fasterxml.jackson.databind.jsontype.TypeSerializer;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * 加密后写出的 JSON 值
+ * 序列化为 value 的 JSON 经 SM4 加密后的十六进制字符串（与 SM4Util.encrypt 相同）。
+ * 默认在写出时边序列化边加密，不生成中间字符串；{@link #precompute} 预先算好密文，
+ * 同一结果写给多个请求时每次只复制字节
+ *
+ * @author chat
+ * @since 2024-01-01
+ */
+public class EncryptedJson implements JsonSerializable {
+
+    private final Object value;
+    private final ObjectMapper objectMapper;
+    /** 预先算好的十六进制密文（ASCII） */
+    private final byte[] hex;
+
+    public EncryptedJson(Object value, ObjectMapper objectMapper) {
+        this.value = value;
+        this.objectMapper = objectMapper;
+        this.hex = null;
+    }
+
+    private EncryptedJson(byte[] hex) {
+        this.value = null;
+        this.objectMapper = null;
+        this.hex = hex;
+    }
+
+    /**
+     * 立即序列化并加密 value
+     *
+     * @param value 要加密的值
+     * @param objectMapper 序列化 value 使用的 ObjectMapper
+     * @return 可重复写出的加密值
+     */
+    public static EncryptedJson precompute(Object value, ObjectMapper objectMapper) {
+        byte[] encrypted;
+        try {
+            encrypted = SM4Util.encrypt(objectMapper.writeValueAsBytes(value));
+        } catch (JsonProcessingException e) {
+            throw new IllegalStateException("Failed to serialize encrypted value", e);
+        }
+        byte[] hex = new byte[encrypted.length * 2];
+        SM4Util.encodeHex(encrypted, 0, encrypted.length, hex, 0);
+        return new EncryptedJson(hex);
+    }
+
+    @Override
+    public void serialize(JsonGenerator gen, SerializerProvider serializers) throws IOException {
+        if (hex != null) {
+            writePrecomputed(gen);
+            return;
+        }
+        // 十六进制字符不需要转义，以原始内容写在引号之间
+        gen.writeRawValue("\"");
+        SM4HexOutputStream out = new SM4HexOutputStream(new RawWriter(gen));
+        boolean finished = false;
+        try {
+            JsonGenerator inner = objectMapper.getFactory().createGenerator(out, JsonEncoding.UTF8);
+            inner.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+            objectMapper.writeValue(inner, value);
+            inner.close();
+            out.finish();
+            finished = true;
+        } finally {
+            if (!finished) {
+                out.abort();
+            }
+        }
+        gen.writeRaw('"');
+    }
+
+    private void writePrecomputed(JsonGenerator gen) throws IOException {
+        try {
+            // 十六进制字符不需要转义，UTF-8 输出时直接复制字节
+            gen.writeRawUTF8String(hex, 0, hex.length);
+        } catch (UnsupportedOperationException e) {
+            gen.writeString(new String(hex, StandardCharsets.US_ASCII));
+        }
+    }
+
+    @Override
+    public void serializeWithType(JsonGenerator gen, SerializerProvider serializers, TypeSerializer typeSer) throws IOException {
+        serialize(gen, serializers);
+    }
+
+    /**
+     * 把字符原样写入外层 JsonGenerator
+     */
+    private static class RawWriter extends Writer {
+        private final JsonGenerator gen;
+
+        RawWriter(JsonGenerator gen) {
+            this.gen = gen;
+        }
+
+        @Override
+        public void write(char[] cbuf, int off, int len) throws IOException {
+            gen.writeRaw(cbuf, off, len);
+        }
+
+        @Override
+        public void flush() {
+            // 由外层输出决定何时刷新
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -1,21 +1,36 @@
 package com.chat.aspect;
 
-import com.alibaba.fastjson.JSONObject;
+import com.chat.annotation.Crypto;
+import com.chat.model.vo.ApiResponse;
 import com.chat.util.SM4Util;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import org.slf4j.Logger;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.annotation.AnnotatedElementUtils;
+import org.springframework.http.MediaType;
 import org.springframework.stereotype.Component;
-import org.springframework.util.StringUtils;
+import org.springframework.web.method.HandlerMethod;
+import org.springframework.web.servlet.HandlerExecutionChain;
+import org.springframework.web.servlet.HandlerMapping;
+import org.springframework.web.util.ServletRequestPathUtils;
 
-import javax.annotation.Resource;
 import javax.servlet.*;
 import javax.servlet.http.HttpServletRequest;
-import javax.xml.ws.RequestWrapper;
-import java.io.BufferedReader;
+import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
-import java.util.Map;
+import java.io.InputStream;
+import java.nio.CharBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 
 /**
  * 请求加解密过滤器
+ * 只处理 @Crypto(decryptRequest = true) 的接口：请求体一次读入线程内复用的缓冲区，
+ * 用流式解析器取出 data 字段，解密后的 JSON 字节直接作为请求体交给后续处理
  *
  * @author 猴哥
  */
@@ -24,47 +39,170 @@ public class RequestHandler implements Filter {
 
     Logger log = org.slf4j.LoggerFactory.getLogger(RequestHandler.class);
 
+    /** 加密内容所在的字段 */
+    private static final String DATA_FIELD = "data";
+    /** 缓冲区超过该大小时不在线程内保留 */
+    private static final int RETAINED_BUFFER_SIZE = 64 * 1024;
+
+    /** 每个请求线程复用的请求体缓冲区 */
+    private static final ThreadLocal<byte[]> BUFFER = ThreadLocal.withInitial(() -> new byte[8192]);
+
+    private final ObjectProvider<HandlerMapping> handlerMapping;
+    private final ObjectMapper objectMapper;
+
+    /** 加密请求体的最大字节数 */
+    @Value("${chat.crypto.max-request-size:1048576}")
+    private int maxRequestSize;
+
+    public RequestHandler(@Qualifier("requestMappingHandlerMapping") ObjectProvider<HandlerMapping> handlerMapping,
+                          ObjectMapper objectMapper) {
+        this.handlerMapping = handlerMapping;
+        this.objectMapper = objectMapper;
+    }
+
     /**
      * 进行请求解密
      */
     @Override
     public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain) throws IOException, ServletException {
+        HttpServletRequest httpRequest = (HttpServletRequest) request;
         // form-data不校验
-        if ("application/x-www-form-urlencoded".equals(request.getContentType())) {
+        if (isForm(request.getContentType()) || !isDecryptRequest(httpRequest)) {
             chain.doFilter(request, response);
             return;
         }
+        if (request.getContentLengthLong() > maxRequestSize) {
+            reject((HttpServletResponse) response, HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE, "请求体过大");
+            return;
+        }
 
         // 拿到加密串
-        // 如果没有使用 ContentCachingRequestWrapper，则手动读取请求体
-        StringBuilder data = new StringBuilder();
-        try (BufferedReader reader = request.getReader()) {
-            String line;
-            while ((line = reader.readLine()) != null) {
-                data.append(line);
+        byte[] buffer = BUFFER.get();
+        byte[] body;
+        try {
+            int length = 0;
+            InputStream in = request.getInputStream();
+            int n;
+            while (true) {
+                if (length == buffer.length) {
+                    if (length > maxRequestSize) {
+                        reject((HttpServletResponse) response, HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE, "请求体过大");
+                        return;
+                    }
+                    buffer = Arrays.copyOf(buffer, Math.min(buffer.length * 2, maxRequestSize + 1));
+                }
+                n = in.read(buffer, length, buffer.length - length);
+                if (n < 0) {
+                    break;
+                }
+                length += n;
+            }
+            if (length > maxRequestSize) {
+                reject((HttpServletResponse) response, HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE, "请求体过大");
+                return;
+            }
+
+            // 解析
+            try {
+                body = decrypt(buffer, length);
+            } catch (IOException | RuntimeException e) {
+                log.warn("Failed to decrypt request body: uri={}", httpRequest.getRequestURI(), e);
+                reject((HttpServletResponse) response, HttpServletResponse.SC_BAD_REQUEST, "请求解密失败");
+                return;
+            }
+            if (body == null) {
+                // 没有 data 字段，原样交给后续处理
+                body = Arrays.copyOf(buffer, length);
+            }
+        } finally {
+            if (buffer.length <= RETAINED_BUFFER_SIZE) {
+                BUFFER.set(buffer);
+            } else {
+                BUFFER.remove();
             }
-        } catch (IOException e) {
-            log.error("Failed to read request body", e);
         }
+        chain.doFilter(new BodyRequestWrapper(httpRequest, body, 0, body.length), response);
+    }
 
-        if (StringUtils.isEmpty(data)) {
-            chain.doFilter(request, response);
-            return;
+    /**
+     * 从请求体中取出 data 字段解密
+     * 密文在十六进制解码时写回缓冲区开头，此时解析器已不再读取缓冲区
+     *
+     * @return 解密后的 JSON，请求体不是对象或没有 data 字段时为 null
+     */
+    private byte[] decrypt(byte[] buffer, int length) throws IOException {
+        if (length == 0) {
+            return null;
         }
-        Map parse = JSONObject.parseObject(data.toString(), Map.class);
-        if (null == parse) {
-            chain.doFilter(request, response);
-            return;
+        try (JsonParser parser = objectMapper.getFactory().createParser(buffer, 0, length)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                return null;
+            }
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String name = parser.getCurrentName();
+                JsonToken value = parser.nextToken();
+                if (!DATA_FIELD.equals(name)) {
+                    parser.skipChildren();
+                    continue;
+                }
+                if (value == JsonToken.VALUE_NULL) {
+                    return null;
+                }
+                if (value != JsonToken.VALUE_STRING) {
+                    throw new IllegalArgumentException("data is not a string: " + value);
+                }
+                int size = SM4Util.decodeHex(CharBuffer.wrap(parser.getTextCharacters(),
+                        parser.getTextOffset(), parser.getTextLength()), buffer, 0);
+                return SM4Util.decrypt(buffer, 0, size);
+            }
+            return null;
         }
+    }
 
-        Object body = parse.get("data");
-        if (null == body) {
-            chain.doFilter(request, response);
-            return;
+    /**
+     * 请求的接口是否需要解密，找不到接口时不处理
+     */
+    private boolean isDecryptRequest(HttpServletRequest request) {
+        HandlerMapping mapping = handlerMapping.getIfAvailable();
+        if (mapping == null) {
+            return true;
         }
+        boolean parsed = false;
+        try {
+            // DispatcherServlet 之前查找接口需要先解析请求路径
+            if (!ServletRequestPathUtils.hasParsedRequestPath(request)) {
+                ServletRequestPathUtils.parseAndCache(request);
+                parsed = true;
+            }
+            HandlerExecutionChain handler = mapping.getHandler(request);
+            if (handler == null || !(handler.getHandler() instanceof HandlerMethod)) {
+                return false;
+            }
+            HandlerMethod method = (HandlerMethod) handler.getHandler();
+            Crypto crypto = method.getMethodAnnotation(Crypto.class);
+            if (crypto == null) {
+                crypto = AnnotatedElementUtils.findMergedAnnotation(method.getBeanType(), Crypto.class);
+            }
+            return crypto != null && crypto.decryptRequest();
+        } catch (Exception e) {
+            log.debug("Failed to resolve handler: uri={}", request.getRequestURI(), e);
+            return false;
+        } finally {
+            if (parsed) {
+                ServletRequestPathUtils.clearParsedRequestPath(request);
+            }
+        }
+    }
+
+    private static boolean isForm(String contentType) {
+        return contentType != null && (contentType.startsWith(MediaType.APPLICATION_FORM_URLENCODED_VALUE)
+                || contentType.startsWith("multipart/"));
+    }
 
-        // 解析
-        request = new BodyRequestWrapper((HttpServletRequest) request, SM4Util.decrypt(body.toString()));
-        chain.doFilter(request, response);
+    private void reject(HttpServletResponse response, int status, String message) throws IOException {
+        response.setStatus(status);
+        response.setContentType(MediaType.APPLICATION_JSON_VALUE);
+        response.setCharacterEncoding(StandardCharsets.UTF_8.name());
+        objectMapper.writeValue(response.getOutputStream(), ApiResponse.error(status, message));
     }
 }
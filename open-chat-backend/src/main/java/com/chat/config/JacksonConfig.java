@@ -1,6 +1,8 @@
 package com.chat.config;
 
+import com.chat.util.PrerenderedMessageSerializer;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.module.SimpleModule;
 import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
 import com.fasterxml.jackson.datatype.jsr310.ser.LocalDateTimeSerializer;
 import org.springframework.context.annotation.Bean;
@@ -26,6 +28,11 @@ public class JacksonConfig {
             new LocalDateTimeSerializer(DateTimeFormatter.ISO_LOCAL_DATE_TIME));
         
         objectMapper.registerModule(javaTimeModule);
+
+        // 消息已预先渲染为JSON时直接写出
+        SimpleModule messageModule = new SimpleModule();
+        messageModule.setSerializerModifier(PrerenderedMessageSerializer.modifier());
+        objectMapper.registerModule(messageModule);
         return objectMapper;
     }
 } 
\ No newline at end of file
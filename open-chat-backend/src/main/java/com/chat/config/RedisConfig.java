@@ -1,17 +1,32 @@
 package com.chat.config;
 
+import com.chat.util.MessageIdGenerator;
+import com.chat.util.PresenceBroadcaster;
+import com.chat.util.PresenceManager;
+import com.chat.util.RecentMessageCache;
+import com.chat.util.RoomEventBroadcaster;
+import com.chat.util.RoomEventSubscriber;
 import com.fasterxml.jackson.annotation.JsonAutoDetect;
 import com.fasterxml.jackson.annotation.PropertyAccessor;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.jsontype.impl.LaissezFaireSubTypeValidator;
 import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
+import io.lettuce.core.event.connection.DisconnectedEvent;
+import io.lettuce.core.resource.ClientResources;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.core.task.SimpleAsyncTaskExecutor;
 import org.springframework.data.redis.connection.RedisConnectionFactory;
 import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
 import org.springframework.data.redis.serializer.Jackson2JsonRedisSerializer;
 import org.springframework.data.redis.serializer.StringRedisSerializer;
 
+import java.util.concurrent.Executors;
+
 /**
  * Redis配置类
  *
@@ -44,4 +59,36 @@ public class RedisConfig {
 
         return template;
     }
+
+    /**
+     * 房间事件订阅容器，每个节点只订阅一次房间事件频道
+     * 事件在单个线程上按接收顺序分发，同一房间的消息按ID升序到达等待者。
+     * Redis 连接断开时频道事件可能丢失，丢弃最近消息缓存（见 RoomEventSubscriber）
+     */
+    @Bean
+    @ConditionalOnProperty(name = "chat.cluster.enabled", havingValue = "true", matchIfMissing = true)
+    public RedisMessageListenerContainer roomEventListenerContainer(RedisConnectionFactory factory,
+                                                                   RedisTemplate<String, Object> redisTemplate,
+                                                                   RoomEventBroadcaster roomEventBroadcaster,
+                                                                   RecentMessageCache recentMessageCache,
+                                                                   MessageIdGenerator messageIdGenerator,
+                                                                   PresenceManager presenceManager,
+                                                                   PresenceBroadcaster presenceBroadcaster,
+                                                                   ObjectProvider<ClientResources> clientResources) {
+        RedisMessageListenerContainer container = new RedisMessageListenerContainer();
+        container.setConnectionFactory(factory);
+        container.setSubscriptionExecutor(new SimpleAsyncTaskExecutor("room-event-subscription-"));
+        container.setTaskExecutor(Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, "room-event-dispatcher");
+            thread.setDaemon(true);
+            return thread;
+        }));
+        RoomEventSubscriber subscriber = new RoomEventSubscriber(redisTemplate, roomEventBroadcaster,
+                recentMessageCache, messageIdGenerator, presenceManager, presenceBroadcaster);
+        container.addMessageListener(subscriber, new ChannelTopic(RoomEventBroadcaster.ROOM_EVENT_CHANNEL));
+        clientResources.ifAvailable(resources -> resources.eventBus().get()
+                .filter(DisconnectedEvent.class::isInstance)
+                .subscribe(event -> subscriber.onDisconnected()));
+        return container;
+    }
 } 
\ No newline at end of file
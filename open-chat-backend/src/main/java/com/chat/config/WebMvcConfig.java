@@ -1 +1,33 @@
- 
\ No newline at end of file
+package com.chat.config;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.web.servlet.config.annotation.CorsRegistry;
+import org.springframework.web.servlet.config.annotation.WebMvcConfigurer;
+
+/**
+ * Web MVC配置类
+ * 跨域来源由 chat.cors.allowed-origins 配置，WebSocket 握手使用相同的配置（见 {@link WebSocketConfig}）；
+ * 未配置时只允许同源访问，前端开发服务器通过代理访问接口
+ *
+ * @author chat
+ * @since 2024-01-01
+ */
+@Configuration
+public class WebMvcConfig implements WebMvcConfigurer {
+
+    /** 允许跨域访问的来源，支持通配模式，如 https://*.example.com */
+    @Value("${chat.cors.allowed-origins:}")
+    private String[] allowedOrigins;
+
+    @Override
+    public void addCorsMappings(CorsRegistry registry) {
+        if (allowedOrigins.length == 0) {
+            // 不注册映射：注册后未指定来源时默认允许所有来源
+            return;
+        }
+        registry.addMapping("/api/**")
+                .allowedOriginPatterns(allowedOrigins)
+                .allowedMethods("GET", "POST");
+    }
+}
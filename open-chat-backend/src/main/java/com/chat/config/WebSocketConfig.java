@@ -0,0 +1,36 @@
+package com.chat.config;
+
+import com.chat.websocket.ChatWebSocketHandler;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.web.socket.config.annotation.EnableWebSocket;
+import org.springframework.web.socket.config.annotation.WebSocketConfigurer;
+import org.springframework.web.socket.config.annotation.WebSocketHandlerRegistry;
+
+/**
+ * WebSocket配置类
+ * 握手的来源检查与 MVC 的跨域配置一致（见 {@link WebMvcConfig}），未配置时只允许同源连接
+ *
+ * @author chat
+ * @since 2024-01-01
+ */
+@Configuration
+@EnableWebSocket
+public class WebSocketConfig implements WebSocketConfigurer {
+
+    private final ChatWebSocketHandler chatWebSocketHandler;
+
+    /** 允许跨域访问的来源，与 MVC 共用同一配置 */
+    @Value("${chat.cors.allowed-origins:}")
+    private String[] allowedOrigins;
+
+    public WebSocketConfig(ChatWebSocketHandler chatWebSocketHandler) {
+        this.chatWebSocketHandler = chatWebSocketHandler;
+    }
+
+    @Override
+    public void registerWebSocketHandlers(WebSocketHandlerRegistry registry) {
+        registry.addHandler(chatWebSocketHandler, "/api/room/ws")
+                .setAllowedOriginPatterns(allowedOrigins);
+    }
+}
@@ -3,22 +3,23 @@ package com.chat.controller;
 import com.chat.model.dto.MessageDTO;
 import com.chat.model.vo.ApiResponse;
 import com.chat.model.vo.ChatRoomVO;
+import com.chat.model.vo.HistoryResult;
 import com.chat.model.vo.PollResult;
 import com.chat.service.ChatService;
-import com.chat.util.LongPollingUtil;
+import com.chat.util.SseEmitterManager;
 import com.chat.annotation.Crypto;
 import lombok.RequiredArgsConstructor;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.MediaType;
 import org.springframework.validation.annotation.Validated;
 import org.springframework.web.bind.annotation.*;
 import org.springframework.web.context.request.async.DeferredResult;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
 
-import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
-import java.util.Set;
 
 /**
  * 聊天室控制器
@@ -36,9 +37,11 @@ public class ChatController {
     private Integer timeout;
 
     private final ChatService chatService;
+    private final SseEmitterManager sseEmitterManager;
 
-    public ChatController(ChatService chatService) {
+    public ChatController(ChatService chatService, SseEmitterManager sseEmitterManager) {
         this.chatService = chatService;
+        this.sseEmitterManager = sseEmitterManager;
     }
 
     /**
@@ -64,24 +67,12 @@ public class ChatController {
         log.info("用户加入聊天室: roomId={}, username={}", 
             messageDTO.getRoomId(), messageDTO.getUsername());
         
-        chatService.joinRoom(messageDTO.getRoomId(), messageDTO.getUsername());
-        
-        // 通知其他用户更新在线列表
-        PollResult pollResult = new PollResult();
-        Set<String> users = chatService.getOnlineUsers(messageDTO.getRoomId());
-        log.info("当前在线用户: roomId={}, users={}", messageDTO.getRoomId(), users);
-        pollResult.setOnlineUsers(users);
-        pollResult.setMessages(Collections.emptyList());
-        pollResult.setLastMessageId(null);
-        
-        LongPollingUtil.notifyUserListUpdate(messageDTO.getRoomId(), pollResult);
-        
-        // 返回当前在线用户列表
-        PollResult initialResult = new PollResult();
-        initialResult.setOnlineUsers(users);
-        initialResult.setMessages(Collections.emptyList());
-        initialResult.setLastMessageId(null);
-        
+        // 返回加入后的在线用户列表及版本号，其他用户由 joinRoom 广播通知
+        PollResult initialResult = chatService.joinRoom(messageDTO.getRoomId(), messageDTO.getUsername());
+        if (initialResult == null) {
+            return ApiResponse.error("聊天室已关闭");
+        }
+        log.info("当前在线用户: roomId={}, users={}", messageDTO.getRoomId(), initialResult.getOnlineUsers());
         return ApiResponse.success(initialResult);
     }
 
@@ -93,38 +84,19 @@ public class ChatController {
     public ApiResponse<Void> leaveRoom(@RequestBody MessageDTO messageDTO) {
         log.info("用户离开聊天室: roomId={}, username={}", 
             messageDTO.getRoomId(), messageDTO.getUsername());
-        
-        // 先获取当前在线用户
-        Set<String> beforeUsers = chatService.getOnlineUsers(messageDTO.getRoomId());
-        log.info("离开前在线用户: {}", beforeUsers);
-        
+
+        // 在线列表变化或聊天室删除由 leaveRoom 广播通知
         chatService.leaveRoom(messageDTO.getRoomId(), messageDTO.getUsername());
-        
-        // 检查聊天室是否还存在
-        ChatRoomVO roomInfo = chatService.getRoomInfo(messageDTO.getRoomId());
-        if (roomInfo == null) {
-            log.info("聊天室已删除: {}", messageDTO.getRoomId());
-            // 通知其他用户聊天室已删除
-            PollResult deleteResult = new PollResult();
-            deleteResult.setOnlineUsers(Collections.emptySet());
-            deleteResult.setMessages(Collections.emptyList());
-            LongPollingUtil.notifyUserListUpdate(messageDTO.getRoomId(), deleteResult);
-            return ApiResponse.success(null);
-        }
-        
-        // 通知其他用户更新在线列表
-        PollResult pollResult = new PollResult();
-        Set<String> afterUsers = chatService.getOnlineUsers(messageDTO.getRoomId());
-        log.info("离开后在线用户: {}", afterUsers);
-        pollResult.setOnlineUsers(afterUsers);
-        pollResult.setMessages(Collections.emptyList());
-        pollResult.setLastMessageId(null);
-        
-        // 只有在用户列表确实发生变化时才通知
-        if (!beforeUsers.equals(afterUsers)) {
-            LongPollingUtil.notifyUserListUpdate(messageDTO.getRoomId(), pollResult);
-        }
-        
+        return ApiResponse.success(null);
+    }
+
+    /**
+     * 在线心跳
+     */
+    @PostMapping("/heartbeat")
+    @Crypto
+    public ApiResponse<Void> heartbeat(@RequestBody MessageDTO messageDTO) {
+        chatService.heartbeat(messageDTO.getRoomId(), messageDTO.getUsername());
         return ApiResponse.success(null);
     }
 
@@ -136,7 +108,7 @@ public class ChatController {
      */
     @PostMapping("/message")
     @Crypto
-    public ApiResponse<Void> sendMessage(@RequestBody @Validated MessageDTO messageDTO) {
+    public ApiResponse<Void> sendMessage(@RequestBody @Validated(MessageDTO.Send.class) MessageDTO messageDTO) {
         chatService.sendMessage(messageDTO);
         return ApiResponse.success(null);
     }
@@ -151,38 +123,16 @@ public class ChatController {
     }
 
     /**
-     * 获取在线用户列表
+     * 获取在线用户列表（长轮询）
+     * 携带 presenceVersion 时只返回之后上线和离开的用户，版本过旧或未携带时返回完整列表
      */
     @PostMapping("/users")
     @Crypto
     public DeferredResult<ApiResponse<PollResult>> getOnlineUsers(@RequestBody MessageDTO messageDTO) {
         String roomId = messageDTO.getRoomId();
         Integer timeout = messageDTO.getTimeout();
-        log.info("获取在线用户请求: roomId={}, timeout={}", roomId, timeout);
-
-        // 先检查当前在线用户
-        PollResult result = new PollResult();
-        Set<String> users = chatService.getOnlineUsers(roomId);
-        log.info("当前在线用户: roomId={}, users={}", roomId, users);
-        result.setOnlineUsers(users);
-        result.setMessages(Collections.emptyList());
-
-        // 创建长轮询请求
-        DeferredResult<ApiResponse<PollResult>> deferredResult = new DeferredResult<>(
-            timeout != null ? timeout * 1000L : 30000L,
-            ApiResponse.success(result)
-        );
-
-        // 添加到长轮询管理器
-        LongPollingUtil.addUserListRequest(roomId, deferredResult);
-
-        // 设置超时处理
-        deferredResult.onTimeout(() -> {
-            log.info("用户列表轮询超时: {}", roomId);
-            deferredResult.setResult(ApiResponse.success(result));
-        });
-
-        return deferredResult;
+        log.info("获取在线用户请求: roomId={}, presenceVersion={}, timeout={}", roomId, messageDTO.getPresenceVersion(), timeout);
+        return chatService.pollUsers(roomId, messageDTO.getPresenceVersion(), timeout);
     }
 
     /**
@@ -194,41 +144,41 @@ public class ChatController {
         String roomId = messageDTO.getRoomId();
         Long lastMessageId = messageDTO.getLastMessageId();
 
-        log.info("获取消息请求: roomId={}, lastMessageId={}, timeout={}", roomId, lastMessageId, timeout);
+        // 客户端未指定时使用配置的超时时间（毫秒）
+        Integer pollTimeout = messageDTO.getTimeout() != null ? messageDTO.getTimeout() : timeout / 1000;
+        log.info("获取消息请求: roomId={}, lastMessageId={}, timeout={}", roomId, lastMessageId, pollTimeout);
 
-        // 先检查是否有新消息
-        PollResult result = chatService.poll(roomId, lastMessageId, timeout);
-        log.info("初始查询结果: {}", result);
+        // 立即注册长轮询，有新消息时由发送方唤醒
+        return chatService.poll(roomId, lastMessageId, pollTimeout);
+    }
 
-        if (result != null && result.getMessages() != null && !result.getMessages().isEmpty()) {
-            return new DeferredResult<ApiResponse<PollResult>>() {{
-                setResult(ApiResponse.success(result));
-            }};
-        }
+    /**
+     * 分页获取历史消息
+     * 首次请求不带游标获取最新一页，之后以当前最早的消息ID作为 beforeId 向上翻页
+     */
+    @PostMapping("/history")
+    @Crypto
+    public ApiResponse<HistoryResult> getHistory(@RequestBody MessageDTO messageDTO) {
+        return ApiResponse.success(chatService.getHistory(messageDTO.getRoomId(),
+                messageDTO.getBeforeId(), messageDTO.getAfterId(), messageDTO.getPageSize()));
+    }
 
-        // 没有新消息，创建长轮询请求
-        DeferredResult<Object> deferredResult = LongPollingUtil.createRequest(roomId, timeout);
-        
-        // 创建新的DeferredResult，使用相同的超时时间
-        DeferredResult<ApiResponse<PollResult>> typedResult = new DeferredResult<>(
-                (long) timeout,
-            ApiResponse.success(new PollResult())
-        );
-
-        // 设置结果处理器
-        deferredResult.onCompletion(() -> {
-            Object pollResult = deferredResult.getResult();
-            log.info("长轮询完成，结果类型: {}, 内容: {}", 
-                pollResult != null ? pollResult.getClass().getName() : "null", 
-                pollResult);
-
-            if (pollResult instanceof LongPollingUtil.TimeoutResult) {
-                typedResult.setResult(ApiResponse.success(chatService.poll(roomId, lastMessageId, 0)));
-            } else if (pollResult instanceof PollResult) {
-                typedResult.setResult(ApiResponse.success((PollResult) pollResult));
-            }
-        });
-
-        return typedResult;
+    /**
+     * 订阅聊天室事件流（SSE）
+     * 通过一个长连接推送消息、在线用户和房间删除事件，事件数据为 SM4 加密串；
+     * 断线重连时浏览器自动携带 Last-Event-ID，仅补发该消息之后的内容
+     *
+     * @param roomId 聊天室ID
+     * @param lastEventId 最后收到的消息ID（Last-Event-ID 请求头）
+     * @param lastMessageId 最后收到的消息ID（首次连接时可通过参数指定）
+     * @return SseEmitter对象
+     */
+    @GetMapping(value = "/stream", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+    public SseEmitter stream(@RequestParam String roomId,
+                             @RequestHeader(value = "Last-Event-ID", required = false) Long lastEventId,
+                             @RequestParam(required = false) Long lastMessageId) {
+        Long cursor = lastEventId != null ? lastEventId : lastMessageId;
+        log.info("订阅聊天室事件流: roomId={}, lastMessageId={}", roomId, cursor);
+        return sseEmitterManager.subscribe(roomId, cursor);
     }
-} 
\ No newline at end of file
+}
@@ -0,0 +1,42 @@
+package com.chat.controller;
+
+import com.chat.model.vo.ApiResponse;
+import com.chat.util.MetricsSource;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * 运行指标控制器
+ *
+ * @author chat
+ * @since 2024-01-01
+ */
+@RestController
+@RequestMapping("/api/metrics")
+public class MetricsController {
+
+    private final List<MetricsSource> metricsSources;
+
+    public MetricsController(List<MetricsSource> metricsSources) {
+        this.metricsSources = metricsSources;
+    }
+
+    /**
+     * 获取所有组件的运行指标
+     *
+     * @return 分组名到指标的映射
+     */
+    @GetMapping
+    public ApiResponse<Map<String, Map<String, Object>>> getMetrics() {
+        Map<String, Map<String, Object>> data = new TreeMap<>();
+        for (MetricsSource source : metricsSources) {
+            data.put(source.getMetricsName(), source.getMetrics());
+        }
+        return ApiResponse.success(data);
+    }
+}
@@ -2,7 +2,14 @@ package com.chat.mapper;
 
 import com.baomidou.mybatisplus.core.mapper.BaseMapper;
 import com.chat.model.entity.ChatMessage;
+import org.apache.ibatis.annotations.Delete;
+import org.apache.ibatis.annotations.Insert;
 import org.apache.ibatis.annotations.Mapper;
+import org.apache.ibatis.annotations.Param;
+import org.apache.ibatis.annotations.Select;
+import org.apache.ibatis.annotations.Update;
+
+import java.util.List;
 
 /**
  * 聊天消息数据访问接口
@@ -12,4 +19,76 @@ import org.apache.ibatis.annotations.Mapper;
  */
 @Mapper
 public interface ChatMessageMapper extends BaseMapper<ChatMessage> {
-} 
\ No newline at end of file
+
+    /**
+     * 多行批量插入消息，一条语句一次提交
+     * 不经过自动填充，调用方需设置ID、创建时间、更新时间和删除标志
+     *
+     * @param messages 消息列表
+     * @return 插入行数
+     */
+    @Insert({"<script>",
+            "INSERT INTO chat_message (id, room_id, user_id, content, created_at, updated_at, deleted) VALUES",
+            "<foreach collection='list' item='m' separator=','>",
+            "(#{m.id}, #{m.roomId}, #{m.userId}, #{m.content}, #{m.createdAt}, #{m.updatedAt}, #{m.deleted})",
+            "</foreach>",
+            "</script>"})
+    int insertBatch(List<ChatMessage> messages);
+
+    /**
+     * 查询聊天室 afterId 之后 limit 条未删除消息中最大的ID，作为一批清理的区间上界
+     * 只扫描 (room_id, deleted, id) 索引
+     *
+     * @param roomId 聊天室ID
+     * @param afterId 区间下界（不包含）
+     * @param limit 每批条数
+     * @return 区间上界，没有未删除的消息时返回null
+     */
+    @Select("SELECT MAX(id) FROM (SELECT id FROM chat_message WHERE room_id = #{roomId} AND deleted = 0 " +
+            "AND id > #{afterId} ORDER BY id LIMIT #{limit}) t")
+    Long selectChunkEnd(@Param("roomId") String roomId, @Param("afterId") long afterId, @Param("limit") int limit);
+
+    /**
+     * 逻辑删除聊天室ID区间 (fromId, toId] 内的消息
+     *
+     * @param roomId 聊天室ID
+     * @param fromId 区间下界（不包含）
+     * @param toId 区间上界（包含）
+     * @return 删除行数
+     */
+    @Update("UPDATE chat_message SET deleted = 1 WHERE room_id = #{roomId} AND deleted = 0 " +
+            "AND id > #{fromId} AND id <= #{toId}")
+    int softDeleteRange(@Param("roomId") String roomId, @Param("fromId") long fromId, @Param("toId") long toId);
+
+    /**
+     * 物理删除聊天室ID区间 (fromId, toId] 内的消息
+     *
+     * @param roomId 聊天室ID
+     * @param fromId 区间下界（不包含）
+     * @param toId 区间上界（包含）
+     * @return 删除行数
+     */
+    @Delete("DELETE FROM chat_message WHERE room_id = #{roomId} AND id > #{fromId} AND id <= #{toId}")
+    int deleteRange(@Param("roomId") String roomId, @Param("fromId") long fromId, @Param("toId") long toId);
+
+    /**
+     * 物理删除聊天室中 beforeId 之前的消息，最多 limit 条
+     *
+     * @param roomId 聊天室ID
+     * @param beforeId 上界（不包含）
+     * @param limit 最多删除的条数
+     * @return 删除行数
+     */
+    @Delete("DELETE FROM chat_message WHERE room_id = #{roomId} AND id < #{beforeId} LIMIT #{limit}")
+    int deleteBefore(@Param("roomId") String roomId, @Param("beforeId") long beforeId, @Param("limit") int limit);
+
+    /**
+     * 查询有早于 beforeId 的未删除消息的聊天室
+     *
+     * @param beforeId 上界（不包含）
+     * @param limit 最多返回的聊天室数
+     * @return 聊天室ID
+     */
+    @Select("SELECT room_id FROM chat_message WHERE id < #{beforeId} AND deleted = 0 GROUP BY room_id LIMIT #{limit}")
+    List<String> selectRoomsBefore(@Param("beforeId") long beforeId, @Param("limit") int limit);
+}
@@ -0,0 +1,90 @@
+package com.chat.mapper;
+
+import com.chat.model.dto.MessagePartition;
+import org.apache.ibatis.annotations.Mapper;
+import org.apache.ibatis.annotations.Param;
+import org.apache.ibatis.annotations.Select;
+import org.apache.ibatis.annotations.Update;
+
+import java.util.List;
+
+/**
+ * 消息表分区维护
+ * DDL 无法使用参数绑定，分区名和表名由调用方生成并校验
+ *
+ * @author chat
+ * @since 2024-01-01
+ */
+@Mapper
+public interface MessagePartitionMapper {
+
+    /**
+     * 按顺序列出消息表的分区
+     *
+     * @return 分区列表，未分区时为空
+     */
+    @Select("SELECT PARTITION_NAME AS name, PARTITION_DESCRIPTION AS description, TABLE_ROWS AS tableRows " +
+            "FROM information_schema.PARTITIONS WHERE TABLE_SCHEMA = DATABASE() AND TABLE_NAME = 'chat_message' " +
+            "AND PARTITION_NAME IS NOT NULL ORDER BY PARTITION_ORDINAL_POSITION")
+    List<MessagePartition> selectPartitions();
+
+    /**
+     * 从兜底分区 pmax 中拆出新的分区，pmax 为空时只修改元数据
+     *
+     * @param partitions 新分区定义，如 PARTITION p202601 VALUES LESS THAN (...)
+     */
+    @Update("ALTER TABLE chat_message REORGANIZE PARTITION pmax INTO " +
+            "(${partitions}, PARTITION pmax VALUES LESS THAN MAXVALUE)")
+    void splitMaxPartition(@Param("partitions") String partitions);
+
+    /**
+     * 删除分区及其中的数据
+     *
+     * @param name 分区名
+     */
+    @Update("ALTER TABLE chat_message DROP PARTITION ${name}")
+    void dropPartition(@Param("name") String name);
+
+    /**
+     * 统计分区中的行数
+     *
+     * @param name 分区名
+     * @return 行数
+     */
+    @Select("SELECT COUNT(*) FROM chat_message PARTITION (${name})")
+    long countPartition(@Param("name") String name);
+
+    /**
+     * 判断表是否存在
+     *
+     * @param table 表名
+     * @return 存在时为1
+     */
+    @Select("SELECT COUNT(*) FROM information_schema.TABLES WHERE TABLE_SCHEMA = DATABASE() AND TABLE_NAME = #{table}")
+    int tableExists(@Param("table") String table);
+
+    /**
+     * 创建与消息表结构相同、不分区的空表，用于交换出过期分区
+     *
+     * @param table 表名
+     */
+    @Update("CREATE TABLE ${table} LIKE chat_message")
+    void createArchiveTable(@Param("table") String table);
+
+    /**
+     * 移除表的分区定义
+     *
+     * @param table 表名
+     */
+    @Update("ALTER TABLE ${table} REMOVE PARTITIONING")
+    void removePartitioning(@Param("table") String table);
+
+    /**
+     * 把分区中的数据交换到归档表，交换后分区为空
+     *
+     * @param name 分区名
+     * @param table 归档表名
+     */
+    @Update("ALTER TABLE chat_message EXCHANGE PARTITION ${name} WITH TABLE ${table}")
+    void exchangePartition(@Param("name") String name, @Param("table") String table);
+}
@@ -0,0 +1,54 @@
+package com.chat.mapper;
+
+import com.baomidou.mybatisplus.core.mapper.BaseMapper;
+import com.chat.model.entity.PurgeJob;
+import org.apache.ibatis.annotations.Mapper;
+import org.apache.ibatis.annotations.Param;
+import org.apache.ibatis.annotations.Update;
+
+/**
+ * 消息清理任务数据访问接口
+ * 租约时间以数据库时间为准，避免节点之间的时钟偏差
+ *
+ * @author chat
+ * @since 2024-01-01
+ */
+@Mapper
+public interface PurgeJobMapper extends BaseMapper<PurgeJob> {
+
+    /**
+     * 领取未完成且没有有效租约的任务
+     *
+     * @param id 任务ID
+     * @param lease 租约时长（秒）
+     * @return 领取成功时为1
+     */
+    @Update("UPDATE chat_purge_job SET status = 'RUNNING', lease_until = DATE_ADD(NOW(), INTERVAL #{lease} SECOND) " +
+            "WHERE id = #{id} AND deleted = 0 AND status <> 'DONE' AND (lease_until IS NULL OR lease_until < NOW())")
+    int claim(@Param("id") Long id, @Param("lease") long lease);
+
+    /**
+     * 记录一批的进度并续租，进度已被其他节点推进（租约过期后被接手）时不更新
+     *
+     * @param id 任务ID
+     * @param fromId 这一批之前的进度
+     * @param lastId 这一批清理到的消息ID
+     * @param purged 这一批清理的消息数
+     * @param lease 租约时长（秒）
+     * @return 更新成功时为1
+     */
+    @Update("UPDATE chat_purge_job SET last_id = #{lastId}, purged = purged + #{purged}, " +
+            "lease_until = DATE_ADD(NOW(), INTERVAL #{lease} SECOND) WHERE id = #{id} AND last_id = #{fromId}")
+    int progress(@Param("id") Long id, @Param("fromId") long fromId, @Param("lastId") long lastId,
+                 @Param("purged") long purged, @Param("lease") long lease);
+
+    /**
+     * 标记任务完成
+     *
+     * @param id 任务ID
+     * @param lastId 完成时的进度
+     * @return 更新成功时为1
+     */
+    @Update("UPDATE chat_purge_job SET status = 'DONE', lease_until = NULL WHERE id = #{id} AND last_id = #{lastId}")
+    int finish(@Param("id") Long id, @Param("lastId") long lastId);
+}
@@ -4,13 +4,37 @@ import lombok.Data;
 import lombok.NoArgsConstructor;
 import lombok.AllArgsConstructor;
 
+import javax.validation.constraints.NotBlank;
+import javax.validation.constraints.Size;
+
 @Data
 @NoArgsConstructor
 @AllArgsConstructor
 public class MessageDTO {
+
+    /** 消息内容的最大长度（字符） */
+    public static final int MAX_CONTENT_LENGTH = 2000;
+
+    /** 发送消息时的校验分组，其他接口复用本类但不校验这些字段 */
+    public interface Send {
+    }
+
+    @NotBlank(groups = Send.class)
     private String roomId;
+    @NotBlank(groups = Send.class)
+    @Size(max = 50, groups = Send.class)
     private String username;
+    @NotBlank(groups = Send.class)
+    @Size(max = MAX_CONTENT_LENGTH, groups = Send.class)
     private String content;
     private Long lastMessageId;
     private Integer timeout;
+    /** 历史消息：获取该ID之前的消息（向上翻页） */
+    private Long beforeId;
+    /** 历史消息：获取该ID之后的消息（向下翻页） */
+    private Long afterId;
+    /** 历史消息：每页条数 */
+    private Integer pageSize;
+    /** 在线列表：客户端持有的版本号 */
+    private Long presenceVersion;
 }
\ No newline at end of file
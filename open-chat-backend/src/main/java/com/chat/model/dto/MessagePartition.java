@@ -0,0 +1,19 @@
+package com.chat.model.dto;
+
+import lombok.Data;
+
+/**
+ * 消息表的一个分区
+ *
+ * @author chat
+ * @since 2024-01-01
+ */
+@Data
+public class MessagePartition {
+    /** 分区名，按月分区为 pYYYYMM，兜底分区为 pmax */
+    private String name;
+    /** 分区上界（不包含），兜底分区为 MAXVALUE */
+    private String description;
+    /** 分区的估计行数 */
+    private Long tableRows;
+}
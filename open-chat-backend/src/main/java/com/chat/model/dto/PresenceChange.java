@@ -0,0 +1,30 @@
+package com.chat.model.dto;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.HashSet;
+
+/**
+ * 在线列表的一次版本变化
+ * 持有 fromVersion 的客户端应用 joined / left 后即到达 version。
+ * 随房间事件跨节点传递，集合使用具体类型以便反序列化
+ *
+ * @author chat
+ * @since 2024-01-01
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class PresenceChange {
+
+    /** 变化前的版本号 */
+    private long fromVersion;
+    /** 变化后的版本号 */
+    private long version;
+    /** 上线的用户 */
+    private HashSet<String> joined;
+    /** 离开的用户 */
+    private HashSet<String> left;
+}
@@ -0,0 +1,37 @@
+package com.chat.model.dto;
+
+import com.chat.model.vo.MessageVO;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * 跨节点房间事件
+ * 通过 Redis 频道在节点间传递，只携带唤醒本地等待者所需的最少信息
+ *
+ * @author chat
+ * @since 2024-01-01
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class RoomEvent {
+
+    /** 新消息 */
+    public static final String TYPE_MESSAGE = "message";
+    /** 在线用户变化 */
+    public static final String TYPE_PRESENCE = "presence";
+    /** 房间删除 */
+    public static final String TYPE_ROOM_DELETED = "room-deleted";
+    /** 有消息未经频道发布，各节点的最近消息缓存不再完整 */
+    public static final String TYPE_CACHE_RESET = "cache-reset";
+
+    private String type;
+    private String roomId;
+    /** 发布事件的节点ID，节点收到自己发布的事件时忽略 */
+    private String nodeId;
+    /** 新消息内容，仅 message 事件携带 */
+    private MessageVO message;
+    /** 在线列表变化，仅 presence 事件携带 */
+    private PresenceChange presence;
+}
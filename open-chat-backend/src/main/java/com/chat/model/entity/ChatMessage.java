@@ -11,7 +11,7 @@ import lombok.EqualsAndHashCode;
 @TableName("chat_message")
 public class ChatMessage extends BaseEntity {
     
-    @TableId(type = IdType.AUTO)
+    @TableId(type = IdType.ASSIGN_ID)
     private Long id;
     
     private String roomId;
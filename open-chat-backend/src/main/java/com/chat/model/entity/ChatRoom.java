@@ -15,4 +15,7 @@ public class ChatRoom extends BaseEntity {
     private String id;
     
     private String name;
+
+    /** 聊天记录保留天数，为空时使用全局配置 */
+    private Integer retentionDays;
 } 
\ No newline at end of file
@@ -0,0 +1,47 @@
+package com.chat.model.entity;
+
+import com.baomidou.mybatisplus.annotation.IdType;
+import com.baomidou.mybatisplus.annotation.TableId;
+import com.baomidou.mybatisplus.annotation.TableName;
+import lombok.Data;
+import lombok.EqualsAndHashCode;
+
+import java.time.LocalDateTime;
+
+/**
+ * 消息清理任务
+ *
+ * @author chat
+ * @since 2024-01-01
+ */
+@Data
+@EqualsAndHashCode(callSuper = true)
+@TableName("chat_purge_job")
+public class PurgeJob extends BaseEntity {
+
+    public static final String MODE_SOFT = "SOFT";
+    public static final String MODE_HARD = "HARD";
+
+    public static final String STATUS_PENDING = "PENDING";
+    public static final String STATUS_RUNNING = "RUNNING";
+    public static final String STATUS_DONE = "DONE";
+
+    @TableId(type = IdType.AUTO)
+    private Long id;
+
+    private String roomId;
+
+    /** 清理方式：SOFT 逻辑删除，HARD 物理删除 */
+    private String mode;
+
+    private String status;
+
+    /** 已清理到的消息ID，重启后从这里继续 */
+    private Long lastId;
+
+    /** 已清理的消息数 */
+    private Long purged;
+
+    /** 执行节点的租约到期时间 */
+    private LocalDateTime leaseUntil;
+}
@@ -0,0 +1,19 @@
+package com.chat.model.vo;
+
+import lombok.Data;
+
+import java.util.List;
+
+/**
+ * 历史消息分页结果
+ *
+ * @author chat
+ * @since 2024-01-01
+ */
+@Data
+public class HistoryResult {
+    /** 按ID升序排列的消息 */
+    private List<MessageVO> messages;
+    /** 翻页方向上是否还有更多消息 */
+    private Boolean hasMore;
+}
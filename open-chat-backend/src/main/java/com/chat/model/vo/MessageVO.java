@@ -1,5 +1,6 @@
 package com.chat.model.vo;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import lombok.Data;
 
 import java.time.LocalDateTime;
@@ -13,6 +14,13 @@ public class MessageVO {
     private String content;
     private LocalDateTime createdAt;
 
+    /**
+     * 预先渲染的 JSON（UTF-8），发送消息时写入最近消息缓存前生成，
+     * 之后每次推送和轮询响应直接复制这些字节；不参与序列化和比较
+     */
+    @JsonIgnore
+    private transient volatile byte[] renderedJson;
+
     public Long getId() {
         return id;
     }
@@ -10,6 +10,12 @@ public class PollResult {
     private List<MessageVO> messages;
     private Set<String> onlineUsers;
     private Long lastMessageId;
+    /** 在线列表版本号 */
+    private Long presenceVersion;
+    /** 自客户端持有的版本以来上线的用户，onlineUsers 为空时有效 */
+    private Set<String> joined;
+    /** 自客户端持有的版本以来离开的用户，onlineUsers 为空时有效 */
+    private Set<String> left;
 
     // 添加getter方法确保序列化
     public List<MessageVO> getMessages() {
@@ -24,12 +30,27 @@ public class PollResult {
         return lastMessageId;
     }
 
+    public Long getPresenceVersion() {
+        return presenceVersion;
+    }
+
+    public Set<String> getJoined() {
+        return joined;
+    }
+
+    public Set<String> getLeft() {
+        return left;
+    }
+
     @Override
     public String toString() {
         return "PollResult{" +
                 "messages=" + messages +
                 ", onlineUsers=" + onlineUsers +
                 ", lastMessageId=" + lastMessageId +
+                ", presenceVersion=" + presenceVersion +
+                ", joined=" + joined +
+                ", left=" + left +
                 '}';
     }
 } 
\ No newline at end of file
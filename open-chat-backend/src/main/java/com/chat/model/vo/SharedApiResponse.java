@@ -0,0 +1,44 @@
+package com.chat.model.vo;
+
+import java.util.function.Function;
+
+/**
+ * 同时发给多个请求的响应，如长轮询的广播结果
+ * data 的加密结果只计算一次，之后写给每个请求时直接复用
+ *
+ * @author chat
+ * @since 2024-01-01
+ */
+public class SharedApiResponse<T> extends ApiResponse<T> {
+
+    /** 加密后的 data，没有 getter，不参与序列化 */
+    private volatile Object encryptedData;
+
+    public static <T> SharedApiResponse<T> of(T data) {
+        SharedApiResponse<T> response = new SharedApiResponse<>();
+        response.setCode(200);
+        response.setMessage("success");
+        response.setData(data);
+        return response;
+    }
+
+    /**
+     * 取加密后的 data，第一次调用时计算
+     *
+     * @param encryptor 加密 data
+     * @return 加密后的 data
+     */
+    public Object encryptOnce(Function<? super T, ?> encryptor) {
+        Object result = encryptedData;
+        if (result == null) {
+            synchronized (this) {
+                result = encryptedData;
+                if (result == null) {
+                    result = encryptor.apply(getData());
+                    encryptedData = result;
+                }
+            }
+        }
+        return result;
+    }
+}
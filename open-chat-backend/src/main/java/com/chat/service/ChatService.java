@@ -1,9 +1,12 @@
 package com.chat.service;
 
 import com.chat.model.dto.MessageDTO;
+import com.chat.model.vo.ApiResponse;
 import com.chat.model.vo.ChatRoomVO;
+import com.chat.model.vo.HistoryResult;
 import com.chat.model.vo.MessageVO;
 import com.chat.model.vo.PollResult;
+import org.springframework.web.context.request.async.DeferredResult;
 
 import java.util.List;
 import java.util.Set;
@@ -24,23 +27,52 @@ public interface ChatService {
     String createRoom();
     
     /**
-     * 加入聊天室
+     * 加入聊天室，并向所有节点广播在线列表变化
      *
      * @param roomId 聊天室ID
      * @param username 用户名
+     * @return 加入后的完整在线列表及版本号，聊天室已关闭时返回null
      */
-    void joinRoom(String roomId, String username);
+    PollResult joinRoom(String roomId, String username);
     
     /**
-     * 离开聊天室
+     * 离开聊天室，并向所有节点广播在线列表变化；最后一个用户离开时删除聊天室
      *
      * @param roomId 聊天室ID
      * @param username 用户名
      */
     void leaveRoom(String roomId, String username);
+
+    /**
+     * 在线心跳，超时未心跳的用户视为离开；已被清理的用户重新上线并广播在线列表变化
+     *
+     * @param roomId 聊天室ID
+     * @param username 用户名
+     */
+    void heartbeat(String roomId, String username);
+
+    /**
+     * 获取在线列表：客户端版本足够新时只返回之后的上线和离开用户，否则返回完整列表
+     *
+     * @param roomId 聊天室ID
+     * @param presenceVersion 客户端持有的在线列表版本号，为空时返回完整列表
+     * @return 在线列表结果
+     */
+    PollResult getUserList(String roomId, Long presenceVersion);
+
+    /**
+     * 长轮询在线列表变化
+     * 客户端版本落后时立即返回，否则等待下一次变化
+     *
+     * @param roomId 聊天室ID
+     * @param presenceVersion 客户端持有的在线列表版本号，为空时立即返回完整列表
+     * @param timeout 超时时间（秒）
+     * @return 在线列表结果
+     */
+    DeferredResult<ApiResponse<PollResult>> pollUsers(String roomId, Long presenceVersion, Integer timeout);
     
     /**
-     * 删除聊天室
+     * 删除聊天室，聊天记录由后台任务分批清理
      *
      * @param roomId 聊天室ID
      */
@@ -85,14 +117,27 @@ public interface ChatService {
      * @return 消息列表
      */
     List<MessageVO> getMessages(String roomId, Long lastMessageId);
+
+    /**
+     * 按ID游标分页获取历史消息
+     * 指定 afterId 时向后翻页，否则获取 beforeId（为空时从最新消息开始）之前的消息
+     *
+     * @param roomId 聊天室ID
+     * @param beforeId 获取该ID之前的消息
+     * @param afterId 获取该ID之后的消息
+     * @param pageSize 每页条数
+     * @return 按ID升序排列的一页消息
+     */
+    HistoryResult getHistory(String roomId, Long beforeId, Long afterId, Integer pageSize);
     
     /**
      * 长轮询获取更新
+     * 立即注册等待并返回，不阻塞请求线程；有新消息时由 sendMessage 唤醒
      *
      * @param roomId 聊天室ID
      * @param lastMessageId 最后一条消息ID
      * @param timeout 超时时间（秒）
      * @return 轮询结果
      */
-    PollResult poll(String roomId, Long lastMessageId, Integer timeout);
+    DeferredResult<ApiResponse<PollResult>> poll(String roomId, Long lastMessageId, Integer timeout);
 } 
\ No newline at end of file
@@ -1,26 +1,37 @@
 package com.chat.service.impl;
 
-import com.baomidou.mybatisplus.core.conditions.query.LambdaQueryWrapper;
-import com.chat.mapper.ChatMessageMapper;
 import com.chat.mapper.ChatRoomMapper;
 import com.chat.model.dto.MessageDTO;
+import com.chat.model.dto.PresenceChange;
+import com.chat.model.dto.RoomEvent;
 import com.chat.model.entity.ChatMessage;
 import com.chat.model.entity.ChatRoom;
+import com.chat.model.vo.ApiResponse;
 import com.chat.model.vo.ChatRoomVO;
+import com.chat.model.vo.HistoryResult;
 import com.chat.model.vo.MessageVO;
 import com.chat.model.vo.PollResult;
 import com.chat.service.ChatService;
+import com.chat.store.MessageStore;
 import com.chat.util.LongPollingUtil;
+import com.chat.util.MessageBatchWriter;
+import com.chat.util.MessageIdGenerator;
+import com.chat.util.PresenceManager;
+import com.chat.util.RecentMessageCache;
 import com.chat.util.RedisUtil;
+import com.chat.util.RoomEventBroadcaster;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.BeanUtils;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.stream.MapRecord;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 import org.springframework.transaction.annotation.Propagation;
+import org.springframework.web.context.request.async.DeferredResult;
 
+import java.time.LocalDateTime;
 import java.util.*;
-import java.util.concurrent.TimeUnit;
 
 /**
  * 聊天服务实现类
@@ -33,26 +44,63 @@ import java.util.concurrent.TimeUnit;
 public class ChatServiceImpl implements ChatService {
 
     private final ChatRoomMapper chatRoomMapper;
-    private final ChatMessageMapper chatMessageMapper;
+    private final MessageStore messageStore;
     private final RedisUtil redisUtil;
+    private final RoomEventBroadcaster roomEventBroadcaster;
+    private final RecentMessageCache recentMessageCache;
+    private final MessageBatchWriter messageBatchWriter;
+    private final MessageIdGenerator messageIdGenerator;
+    private final PresenceManager presenceManager;
 
 
     public ChatServiceImpl(
             ChatRoomMapper chatRoomMapper,
-            ChatMessageMapper chatMessageMapper,
-            RedisUtil redisUtil
+            MessageStore messageStore,
+            RedisUtil redisUtil,
+            RoomEventBroadcaster roomEventBroadcaster,
+            RecentMessageCache recentMessageCache,
+            MessageBatchWriter messageBatchWriter,
+            MessageIdGenerator messageIdGenerator,
+            PresenceManager presenceManager
     ) {
         this.chatRoomMapper = chatRoomMapper;
-        this.chatMessageMapper = chatMessageMapper;
+        this.messageStore = messageStore;
         this.redisUtil = redisUtil;
+        this.roomEventBroadcaster = roomEventBroadcaster;
+        this.recentMessageCache = recentMessageCache;
+        this.messageBatchWriter = messageBatchWriter;
+        this.messageIdGenerator = messageIdGenerator;
+        this.presenceManager = presenceManager;
+        for (int i = 0; i < roomLocks.length; i++) {
+            roomLocks[i] = new Object();
+        }
+        // 心跳超时的用户按离开处理
+        presenceManager.setExpiredHandler(this::onUsersLeft);
     }
     
-    /** Redis中存储聊天室在线用户的key模板 */
-    private static final String ROOM_ONLINE_USERS_KEY = "chat:room:%s:users";
-    /** Redis中存储聊天室消息队列的key模板 */
-    private static final String ROOM_MESSAGE_QUEUE_KEY = "chat:room:%s:messages";
+    /** Redis中存储聊天室最近消息的Stream key模板 */
+    private static final String ROOM_MESSAGE_STREAM_KEY = "chat:room:%s:stream";
+    /** Stream中消息记录的字段名 */
+    private static final String STREAM_MESSAGE_FIELD = "m";
+    /** 单次返回的最大消息数 */
+    private static final int MESSAGE_PAGE_SIZE = 50;
+    /** 历史消息单页最大条数 */
+    private static final int MAX_HISTORY_PAGE_SIZE = 100;
     /** 最大轮询时间（秒） */
     private static final int MAX_POLL_TIMEOUT = 30;
+    /** 追加消息时ID被其他节点超过后重新分配的最大次数 */
+    private static final int MAX_APPEND_ATTEMPTS = 8;
+
+    /** 发送消息的房间锁，按房间ID哈希分段 */
+    private final Object[] roomLocks = new Object[256];
+
+    /** 每个聊天室Stream保留的最大消息数 */
+    @Value("${chat.message.stream-max-len:1000}")
+    private long streamMaxLen;
+
+    /** 聊天室Stream的过期时间（秒） */
+    @Value("${chat.message.stream-ttl:86400}")
+    private long streamTtl;
 
     @Transactional(propagation = Propagation.REQUIRED, rollbackFor = Exception.class)
     @Override
@@ -77,68 +125,142 @@ public class ChatServiceImpl implements ChatService {
     }
 
     @Override
-    public void joinRoom(String roomId, String username) {
-        String key = String.format(ROOM_ONLINE_USERS_KEY, roomId);
+    public PollResult joinRoom(String roomId, String username) {
         log.info("用户加入聊天室: roomId={}, username={}", roomId, username);
-        redisUtil.sSet(key, username);
-        redisUtil.expire(key, 24, TimeUnit.HOURS);
+        PresenceManager.Update update = presenceManager.join(roomId, username);
+        if (update.isClosed()) {
+            log.info("聊天室已关闭: roomId={}, username={}", roomId, username);
+            return null;
+        }
+        if (update.getChange() != null) {
+            // 通知所有节点更新在线列表
+            roomEventBroadcaster.publishUserListUpdate(roomId, update.getChange());
+        }
+        PresenceManager.Snapshot snapshot = update.getSnapshot();
+        return LongPollingUtil.createPresenceSnapshotResult(snapshot.getUsers(), snapshot.getVersion());
     }
 
     @Override
     public void leaveRoom(String roomId, String username) {
-        String key = String.format(ROOM_ONLINE_USERS_KEY, roomId);
         log.info("用户离开聊天室: roomId={}, username={}", roomId, username);
-        
-        // 检查用户是否在聊天室中
-        Set<String> users = getOnlineUsers(roomId);
-        if (!users.contains(username)) {
+        PresenceManager.Update update = presenceManager.remove(roomId, username);
+        if (update.getChange() == null) {
             log.info("用户不在聊天室中: roomId={}, username={}", roomId, username);
             return;
         }
-        
-        redisUtil.setRemove(key, username);
-        
-        // 检查是否是最后一个用户
-        int onlineCount = getOnlineCount(roomId);
-        log.info("当前在线人数: {}", onlineCount);
-        if (onlineCount == 0) {
+        onUsersLeft(roomId, update);
+    }
+
+    @Override
+    public void heartbeat(String roomId, String username) {
+        PresenceChange change = presenceManager.heartbeat(roomId, username);
+        if (change != null) {
+            // 心跳超时被清理的用户重新上线
+            log.info("用户重新上线: roomId={}, username={}", roomId, username);
+            roomEventBroadcaster.publishUserListUpdate(roomId, change);
+        }
+    }
+
+    @Override
+    public PollResult getUserList(String roomId, Long presenceVersion) {
+        if (presenceVersion != null) {
+            PresenceChange change = presenceManager.getChangesSince(roomId, presenceVersion);
+            if (change != null) {
+                return LongPollingUtil.createPresenceDeltaResult(change);
+            }
+        }
+        PresenceManager.Snapshot snapshot = presenceManager.getSnapshot(roomId);
+        return LongPollingUtil.createPresenceSnapshotResult(snapshot.getUsers(), snapshot.getVersion());
+    }
+
+    @Override
+    public DeferredResult<ApiResponse<PollResult>> pollUsers(String roomId, Long presenceVersion, Integer timeout) {
+        timeout = timeout != null ? Math.min(Math.max(timeout, 1), MAX_POLL_TIMEOUT) : MAX_POLL_TIMEOUT;
+        if (presenceVersion == null) {
+            // 首次请求直接返回完整列表
+            DeferredResult<ApiResponse<PollResult>> deferredResult = new DeferredResult<>();
+            deferredResult.setResult(ApiResponse.success(getUserList(roomId, null)));
+            return deferredResult;
+        }
+
+        // 与消息轮询相同，先注册等待者再检查变化，注册之后的变化一定会唤醒本请求
+        DeferredResult<ApiResponse<PollResult>> deferredResult =
+                LongPollingUtil.createUserListRequest(roomId, timeout, presenceVersion);
+        PollResult result = getUserList(roomId, presenceVersion);
+        if (!presenceVersion.equals(result.getPresenceVersion()) || result.getOnlineUsers() != null) {
+            deferredResult.setResult(ApiResponse.success(result));
+        }
+        return deferredResult;
+    }
+
+    /**
+     * 用户离开或心跳超时后，移除最后一个用户并关闭了在线状态时删除聊天室，否则通知在线列表变化。
+     * 是否为最后一个用户由Redis脚本原子判断，并发离开时只有一方删除，关闭后的加入会被拒绝
+     *
+     * @param roomId 聊天室ID
+     * @param update 离开或清理的结果
+     */
+    private void onUsersLeft(String roomId, PresenceManager.Update update) {
+        log.info("当前在线人数: {}", update.getOnlineCount());
+        if (update.isClosed()) {
             log.info("Last user left, deleting chat room: {}", roomId);
             deleteRoom(roomId);
-            // 删除Redis中的用户列表
-            redisUtil.del(key);
+            // 通知所有节点聊天室已删除
+            roomEventBroadcaster.publishRoomDeleted(roomId);
+            return;
         }
+
+        // 通知所有节点更新在线列表
+        roomEventBroadcaster.publishUserListUpdate(roomId, update.getChange());
     }
 
     @Override
     public void sendMessage(MessageDTO messageDTO) {
         log.info("发送消息: {}", messageDTO);
-        // 保存消息到数据库
+        String roomId = messageDTO.getRoomId();
         ChatMessage message = new ChatMessage();
-        message.setRoomId(messageDTO.getRoomId());
+        message.setRoomId(roomId);
         message.setUserId(messageDTO.getUsername());
         message.setContent(messageDTO.getContent());
-        chatMessageMapper.insert(message);
+        message.setCreatedAt(LocalDateTime.now());
 
-        log.info("消息已保存到数据库, id: {}", message.getId());
-        // 发送消息到Redis队列
-        String key = String.format(ROOM_MESSAGE_QUEUE_KEY, messageDTO.getRoomId());
         MessageVO messageVO = new MessageVO();
         BeanUtils.copyProperties(message, messageVO);
         messageVO.setUsername(messageDTO.getUsername());
-        messageVO.setId(message.getId());
-        messageVO.setCreatedAt(message.getCreatedAt());
-        redisUtil.lSet(key, messageVO);
-
-        log.info("消息已发送到Redis: {}", messageVO);
-        // 通知所有等待的长轮询请求
-        PollResult pollResult = new PollResult();
-        // 获取最新的消息列表
-        List<MessageVO> latestMessages = getMessages(messageDTO.getRoomId(), 0L);
-        pollResult.setMessages(latestMessages);
-        pollResult.setLastMessageId(message.getId());
-        pollResult.setOnlineUsers(getOnlineUsers(messageDTO.getRoomId()));
-        log.info("通知所有用户新消息: {}", pollResult);
-        LongPollingUtil.notifyRoom(messageDTO.getRoomId(), pollResult);
+
+        // 消息对客户端可见之前先确定能写入数据库：批量写入时预留写入队列的位置，队列已满时在这里拒绝；
+        // 同步写入时在分配ID后、追加到Stream之前写入
+        MessageBatchWriter.Reservation reservation = messageBatchWriter.isEnabled() ? messageBatchWriter.reserve() : null;
+        try {
+            // 同一房间的消息按ID顺序追加和通知：分配ID、追加到Redis Stream、发布事件在房间锁内完成，
+            // 客户端游标推进到某条消息之后，不会再收到ID更小的新消息
+            synchronized (roomLocks[Math.floorMod(roomId.hashCode(), roomLocks.length)]) {
+                if (!appendToStream(message, messageVO, reservation == null)) {
+                    // 未经频道发布（未启用集群或Redis不可用）时在本节点按顺序分发
+                    recentMessageCache.add(messageVO);
+                    roomEventBroadcaster.notifyMessage(roomId, messageVO);
+                    if (roomEventBroadcaster.isClusterEnabled()) {
+                        // 其他节点收不到这条消息，它们的最近消息缓存不能再当作完整的
+                        roomEventBroadcaster.publishCacheReset(roomId);
+                    }
+                }
+            }
+        } finally {
+            // 已分配ID的消息可能已经可见，一定写入数据库
+            if (reservation != null) {
+                if (message.getId() != null) {
+                    reservation.submit(message).whenComplete((saved, e) -> {
+                        if (e != null) {
+                            log.error("消息写入数据库失败: roomId={}, id={}", message.getRoomId(), message.getId(), e);
+                        }
+                    });
+                    log.info("消息已加入写入队列, id: {}", message.getId());
+                } else {
+                    reservation.cancel();
+                }
+            }
+        }
+        log.info("消息已追加到Redis Stream: {}", messageVO);
     }
 
     @Override
@@ -158,29 +280,25 @@ public class ChatServiceImpl implements ChatService {
 
     @Override
     public Set<String> getOnlineUsers(String roomId) {
-        String key = String.format(ROOM_ONLINE_USERS_KEY, roomId);
-        Set<Object> members = redisUtil.sGet(key);
-        log.info("获取在线用户列表: roomId={}, members={}", roomId, members);
-        Set<String> users = new HashSet<>();
-        if (members != null) {
-            members.forEach(member -> users.add((String) member));
-            redisUtil.expire(key, 24, TimeUnit.HOURS);
-        }
         // 返回不可变集合，避免外部修改
-        return Collections.unmodifiableSet(users);
+        return presenceManager.getOnlineUsers(roomId);
     }
 
     @Override
     public List<MessageVO> getMessages(String roomId, Long lastMessageId) {
 //        log.info("获取消息列表: roomId={}, lastMessageId={}", roomId, lastMessageId);
-        LambdaQueryWrapper<ChatMessage> wrapper = new LambdaQueryWrapper<>();
-        wrapper.eq(ChatMessage::getRoomId, roomId)
-                .gt(lastMessageId != null && lastMessageId > 0, ChatMessage::getId, lastMessageId)
-                .eq(ChatMessage::getDeleted, false)
-                .orderByDesc(ChatMessage::getId)  // 按ID降序排序
-                .last("LIMIT 50");  // 限制返回最新的50条消息
-        
-        List<ChatMessage> messages = chatMessageMapper.selectList(wrapper);
+        // 依次从进程内缓存、Redis Stream读取，游标早于保留的区间时回源数据库
+        List<MessageVO> cachedMessages = recentMessageCache.getMessagesAfter(roomId, lastMessageId, MESSAGE_PAGE_SIZE);
+        if (cachedMessages != null) {
+            return cachedMessages;
+        }
+        List<MessageVO> streamMessages = readFromStream(roomId, lastMessageId);
+        if (streamMessages != null) {
+            return streamMessages;
+        }
+
+        // 最新的50条消息
+        List<ChatMessage> messages = messageStore.readBefore(roomId, null, lastMessageId, MESSAGE_PAGE_SIZE);
         // 反转列表以保持时间顺序
         Collections.reverse(messages);
         if (messages.isEmpty()) {
@@ -192,40 +310,153 @@ public class ChatServiceImpl implements ChatService {
     }
 
     @Override
-    public PollResult poll(String roomId, Long lastMessageId, Integer timeout) {
-        log.info("开始轮询: roomId={}, lastMessageId={}, timeout={}", roomId, lastMessageId, timeout);
-        // 限制超时时间在 1-30 秒之间
-        timeout = timeout != null ? Math.min(Math.max(timeout, 1), 30) : 30;
-        timeout *= 1000; // 转换为毫秒
-        long endTime = System.currentTimeMillis() + timeout;
-        
-        PollResult result = new PollResult();
-        result.setMessages(new ArrayList<>());
-        result.setOnlineUsers(getOnlineUsers(roomId));
-
-        while (System.currentTimeMillis() < endTime) {
-            // 检查是否有新消息
-            List<MessageVO> messages = getMessages(roomId, lastMessageId);
-            if (!messages.isEmpty()) {
-                result.setMessages(messages);
-                result.setLastMessageId(messages.get(messages.size() - 1).getId());
-                log.info("返回轮询结果: {}", result);
-                return result;
+    public HistoryResult getHistory(String roomId, Long beforeId, Long afterId, Integer pageSize) {
+        int size = pageSize != null ? Math.min(Math.max(pageSize, 1), MAX_HISTORY_PAGE_SIZE) : MESSAGE_PAGE_SIZE;
+        boolean forward = afterId != null;
+        // 从游标处直接定位，翻页深度不影响耗时；多取一条判断是否还有下一页
+        List<ChatMessage> messages = forward
+                ? messageStore.readAfter(roomId, afterId, beforeId, size + 1)
+                : messageStore.readBefore(roomId, beforeId, null, size + 1);
+        boolean hasMore = messages.size() > size;
+        if (hasMore) {
+            messages = messages.subList(0, size);
+        }
+        if (!forward) {
+            Collections.reverse(messages);
+        }
+
+        HistoryResult result = new HistoryResult();
+        result.setMessages(convertToMessageVOList(messages));
+        result.setHasMore(hasMore);
+        return result;
+    }
+
+    /**
+     * 分配消息ID并追加到聊天室Stream，启用集群时在同一脚本内发布消息事件。
+     * Stream 只接受比最后一条记录更大的ID，被其他节点超过时推进ID时钟后重新分配，
+     * 因此 Stream 和频道中的消息都按ID升序，各节点按频道顺序分发。
+     * 同步写入数据库时每个ID先写入再追加，写入失败直接抛出，此时消息尚未可见；
+     * ID被拒绝时撤回该行再用新ID重写。
+     * 追加失败时删除该Stream，避免之后的读取从缺少消息的Stream中返回结果
+     *
+     * @param message 消息实体，写入分配的ID
+     * @param messageVO 消息，写入分配的ID
+     * @param persist 是否在追加前同步写入数据库
+     * @return 是否已通过频道发布
+     */
+    private boolean appendToStream(ChatMessage message, MessageVO messageVO, boolean persist) {
+        String roomId = messageVO.getRoomId();
+        String key = String.format(ROOM_MESSAGE_STREAM_KEY, roomId);
+        boolean cluster = roomEventBroadcaster.isClusterEnabled();
+        for (int attempt = 1; ; attempt++) {
+            long id = messageIdGenerator.nextId();
+            message.setId(id);
+            messageVO.setId(id);
+            if (persist) {
+                messageStore.append(message);
+                log.info("消息已保存到数据库, id: {}", id);
             }
-            
-            // 没有新消息，等待一段时间后重试
+            Long lastId;
             try {
-                Thread.sleep(500);
-            } catch (InterruptedException e) {
-                Thread.currentThread().interrupt();
+                RoomEvent event = cluster ? roomEventBroadcaster.createMessageEvent(roomId, messageVO) : null;
+                lastId = redisUtil.xAdd(key, id, STREAM_MESSAGE_FIELD, messageVO, streamMaxLen, streamTtl,
+                        cluster ? RoomEventBroadcaster.ROOM_EVENT_CHANNEL : null, event);
+            } catch (Exception e) {
+                log.error("Failed to append message to stream: {}", messageVO, e);
+                deleteStream(key);
+                return false;
+            }
+            if (lastId == null) {
+                return cluster;
+            }
+            if (attempt >= MAX_APPEND_ATTEMPTS) {
+                log.error("Message id kept falling behind stream: roomId={}, id={}, lastId={}", roomId, id, lastId);
+                deleteStream(key);
+                return false;
+            }
+            log.info("消息ID落后于Stream，重新分配: roomId={}, id={}, lastId={}", roomId, id, lastId);
+            if (persist) {
+                messageStore.remove(roomId, id);
+            }
+            messageIdGenerator.observe(lastId);
+        }
+    }
+
+    private void deleteStream(String key) {
+        try {
+            redisUtil.del(key);
+        } catch (Exception ignored) {
+            // Redis不可用时读取同样会回源数据库
+        }
+    }
+
+    /**
+     * 从聊天室Stream读取 lastMessageId 之后最新的消息
+     * 只有当 Stream 能证明结果完整时才返回：读到了游标对应的记录（游标在保留区间内），
+     * 或者游标之后的消息已超过一页。否则返回 null，由调用方回源数据库
+     *
+     * @param roomId 聊天室ID
+     * @param lastMessageId 最后一条消息ID
+     * @return 按时间顺序排列的消息列表，无法由Stream确定时返回null
+     */
+    private List<MessageVO> readFromStream(String roomId, Long lastMessageId) {
+        String key = String.format(ROOM_MESSAGE_STREAM_KEY, roomId);
+        long cursor = lastMessageId != null && lastMessageId > 0 ? lastMessageId : 0L;
+        List<MapRecord<String, Object, Object>> records;
+        try {
+            // 多读一条：包含游标本身，用于判断游标是否在保留区间内
+            records = redisUtil.xRevRange(key, cursor, MESSAGE_PAGE_SIZE + 1);
+        } catch (Exception e) {
+            log.warn("Failed to read message stream: roomId={}", roomId, e);
+            return null;
+        }
+        if (records == null || records.isEmpty()) {
+            return null;
+        }
+
+        List<MessageVO> messages = new ArrayList<>(records.size());
+        boolean cursorReached = false;
+        for (MapRecord<String, Object, Object> record : records) {
+            Object value = record.getValue().get(STREAM_MESSAGE_FIELD);
+            if (!(value instanceof MessageVO)) {
+                return null;
+            }
+            MessageVO messageVO = (MessageVO) value;
+            if (cursor > 0 && messageVO.getId() <= cursor) {
+                cursorReached = true;
                 break;
             }
+            if (messages.size() < MESSAGE_PAGE_SIZE) {
+                messages.add(messageVO);
+            }
         }
-        
-        // 超时返回空结果
-        result.setLastMessageId(lastMessageId);
-        log.info("轮询超时，返回空结果: {}", result);
-        return result;
+        if (!cursorReached && records.size() <= MESSAGE_PAGE_SIZE) {
+            return null;
+        }
+        Collections.reverse(messages);
+        return messages;
+    }
+
+    @Override
+    public DeferredResult<ApiResponse<PollResult>> poll(String roomId, Long lastMessageId, Integer timeout) {
+        log.info("开始轮询: roomId={}, lastMessageId={}, timeout={}", roomId, lastMessageId, timeout);
+        // 限制超时时间在 1-30 秒之间
+        timeout = timeout != null ? Math.min(Math.max(timeout, 1), MAX_POLL_TIMEOUT) : MAX_POLL_TIMEOUT;
+
+        // 先注册等待者再检查新消息：sendMessage 在消息写入缓存和Stream之后才通知，
+        // 注册之后写入的消息一定会唤醒本请求，注册之前写入的消息一定能被下面的查询看到
+        DeferredResult<ApiResponse<PollResult>> deferredResult =
+                LongPollingUtil.createRequest(roomId, timeout, lastMessageId);
+
+        List<MessageVO> messages = getMessages(roomId, lastMessageId);
+        if (!messages.isEmpty()) {
+            PollResult result = new PollResult();
+            result.setMessages(messages);
+            result.setLastMessageId(messages.get(messages.size() - 1).getId());
+            log.info("返回轮询结果: {}", result);
+            deferredResult.setResult(ApiResponse.success(result));
+        }
+        return deferredResult;
     }
 
     /**
@@ -251,9 +482,7 @@ public class ChatServiceImpl implements ChatService {
 
     @Override
     public int getOnlineCount(String roomId) {
-        String key = String.format(ROOM_ONLINE_USERS_KEY, roomId);
-        Set<Object> members = redisUtil.sGet(key);
-        return members != null ? members.size() : 0;
+        return presenceManager.getOnlineUsers(roomId).size();
     }
 
     @Override
@@ -268,17 +497,13 @@ public class ChatServiceImpl implements ChatService {
             room.setDeleted(true);
             chatRoomMapper.updateById(room);
             
-            // 2. 删除聊天记录
-            LambdaQueryWrapper<ChatMessage> wrapper = new LambdaQueryWrapper<>();
-            wrapper.eq(ChatMessage::getRoomId, roomId);
-            ChatMessage message = new ChatMessage();
-            message.setDeleted(true);
-            chatMessageMapper.update(message, wrapper);
+            // 2. 删除聊天记录，由消息存储在后台分批完成
+            messageStore.purgeRoom(roomId);
             
             // 3. 删除Redis中的数据
-            String usersKey = String.format(ROOM_ONLINE_USERS_KEY, roomId);
-            String messagesKey = String.format(ROOM_MESSAGE_QUEUE_KEY, roomId);
-            redisUtil.del(usersKey, messagesKey);
+            redisUtil.del(String.format(ROOM_MESSAGE_STREAM_KEY, roomId));
+            presenceManager.clear(roomId);
+            recentMessageCache.evict(roomId);
             
             log.info("Chat room deleted successfully: {}", roomId);
         } catch (Exception e) {
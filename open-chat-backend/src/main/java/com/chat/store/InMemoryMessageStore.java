@@ -0,0 +1,151 @@
+package com.chat.store;
+
+import com.chat.model.entity.ChatMessage;
+import com.chat.util.MessageIdGenerator;
+import com.chat.util.MetricsSource;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 进程内消息存储，用于测试和压测，不依赖 MySQL
+ * 每个聊天室一个按ID排序的跳表，超过 room-capacity 后丢弃最早的消息；重启后数据丢失
+ *
+ * @author chat
+ * @since 2024-01-01
+ */
+@Component
+@ConditionalOnProperty(name = "chat.message.store", havingValue = "memory")
+public class InMemoryMessageStore implements MessageStore, MetricsSource {
+
+    private final MessageIdGenerator messageIdGenerator;
+
+    private final Map<String, RoomMessages> rooms = new ConcurrentHashMap<>();
+
+    private final LongAdder appended = new LongAdder();
+    private final LongAdder evicted = new LongAdder();
+
+    /** 每个聊天室保留的消息数 */
+    @Value("${chat.message.memory.room-capacity:10000}")
+    private int roomCapacity;
+
+    public InMemoryMessageStore(MessageIdGenerator messageIdGenerator) {
+        this.messageIdGenerator = messageIdGenerator;
+    }
+
+    @Override
+    public void append(ChatMessage message) {
+        LocalDateTime now = LocalDateTime.now();
+        if (message.getId() == null) {
+            message.setId(messageIdGenerator.nextId());
+        }
+        if (message.getCreatedAt() == null) {
+            message.setCreatedAt(now);
+        }
+        message.setUpdatedAt(now);
+        message.setDeleted(false);
+        put(message);
+    }
+
+    @Override
+    public void appendBatch(List<ChatMessage> messages) {
+        messages.forEach(this::put);
+    }
+
+    @Override
+    public void remove(String roomId, long id) {
+        RoomMessages room = rooms.get(roomId);
+        if (room != null && room.messages.remove(id) != null) {
+            room.size.decrementAndGet();
+        }
+    }
+
+    @Override
+    public List<ChatMessage> readAfter(String roomId, long afterId, Long beforeId, int limit) {
+        RoomMessages room = rooms.get(roomId);
+        if (room == null) {
+            return new ArrayList<>();
+        }
+        ConcurrentSkipListMap<Long, ChatMessage> messages = room.messages;
+        NavigableMap<Long, ChatMessage> range = beforeId != null
+                ? messages.subMap(afterId, false, beforeId, false)
+                : messages.tailMap(afterId, false);
+        return take(range, limit);
+    }
+
+    @Override
+    public List<ChatMessage> readBefore(String roomId, Long beforeId, Long afterId, int limit) {
+        RoomMessages room = rooms.get(roomId);
+        if (room == null) {
+            return new ArrayList<>();
+        }
+        ConcurrentSkipListMap<Long, ChatMessage> messages = room.messages;
+        long from = afterId != null ? afterId : Long.MIN_VALUE;
+        NavigableMap<Long, ChatMessage> range = beforeId != null
+                ? messages.subMap(from, false, beforeId, false)
+                : messages.tailMap(from, false);
+        return take(range.descendingMap(), limit);
+    }
+
+    @Override
+    public void purgeRoom(String roomId) {
+        rooms.remove(roomId);
+    }
+
+    @Override
+    public String getMetricsName() {
+        return "memoryStore";
+    }
+
+    @Override
+    public Map<String, Object> getMetrics() {
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        metrics.put("rooms", rooms.size());
+        metrics.put("appended", appended.sum());
+        metrics.put("evicted", evicted.sum());
+        return metrics;
+    }
+
+    private void put(ChatMessage message) {
+        RoomMessages room = rooms.computeIfAbsent(message.getRoomId(), key -> new RoomMessages());
+        if (room.messages.put(message.getId(), message) == null) {
+            room.size.incrementAndGet();
+        }
+        appended.increment();
+        // 跳表的 size() 需要遍历，另行计数
+        while (room.size.get() > roomCapacity && room.messages.pollFirstEntry() != null) {
+            room.size.decrementAndGet();
+            evicted.increment();
+        }
+    }
+
+    private static List<ChatMessage> take(NavigableMap<Long, ChatMessage> range, int limit) {
+        List<ChatMessage> result = new ArrayList<>(Math.min(limit, 64));
+        for (ChatMessage message : range.values()) {
+            if (result.size() >= limit) {
+                break;
+            }
+            result.add(message);
+        }
+        return result;
+    }
+
+    /**
+     * 一个聊天室的消息及其条数
+     */
+    private static class RoomMessages {
+        private final ConcurrentSkipListMap<Long, ChatMessage> messages = new ConcurrentSkipListMap<>();
+        private final AtomicInteger size = new AtomicInteger();
+    }
+}
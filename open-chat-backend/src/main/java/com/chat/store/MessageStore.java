@@ -0,0 +1,68 @@
+package com.chat.store;
+
+import com.chat.model.entity.ChatMessage;
+
+import java.util.List;
+
+/**
+ * 消息存储
+ * 聊天服务只通过该接口读写消息，由 chat.message.store 选择实现：
+ * mysql（默认，见 {@link MybatisMessageStore}）或 memory（见 {@link InMemoryMessageStore}，用于测试和压测）。
+ * 读取只返回未删除的消息，返回的列表可由调用方修改
+ *
+ * @author chat
+ * @since 2024-01-01
+ */
+public interface MessageStore {
+
+    /**
+     * 写入一条消息，未设置ID时由存储生成
+     *
+     * @param message 消息
+     */
+    void append(ChatMessage message);
+
+    /**
+     * 批量写入消息，调用方已设置ID、创建时间、更新时间和删除标志
+     *
+     * @param messages 消息
+     */
+    void appendBatch(List<ChatMessage> messages);
+
+    /**
+     * 撤回一条刚写入、尚未对客户端可见的消息
+     *
+     * @param roomId 聊天室ID
+     * @param id 消息ID
+     */
+    void remove(String roomId, long id);
+
+    /**
+     * 按ID升序读取区间 (afterId, beforeId) 内最早的消息
+     *
+     * @param roomId 聊天室ID
+     * @param afterId 下界（不包含）
+     * @param beforeId 上界（不包含），为空时不限
+     * @param limit 最多条数
+     * @return 按ID升序排列的消息
+     */
+    List<ChatMessage> readAfter(String roomId, long afterId, Long beforeId, int limit);
+
+    /**
+     * 按ID降序读取区间 (afterId, beforeId) 内最新的消息
+     *
+     * @param roomId 聊天室ID
+     * @param beforeId 上界（不包含），为空时不限
+     * @param afterId 下界（不包含），为空时不限
+     * @param limit 最多条数
+     * @return 按ID降序排列的消息
+     */
+    List<ChatMessage> readBefore(String roomId, Long beforeId, Long afterId, int limit);
+
+    /**
+     * 删除聊天室的全部消息，可以异步完成
+     *
+     * @param roomId 聊天室ID
+     */
+    void purgeRoom(String roomId);
+}
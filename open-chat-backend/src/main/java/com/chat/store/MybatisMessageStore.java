@@ -0,0 +1,130 @@
+package com.chat.store;
+
+import com.baomidou.mybatisplus.core.conditions.query.LambdaQueryWrapper;
+import com.chat.mapper.ChatMessageMapper;
+import com.chat.model.entity.ChatMessage;
+import com.chat.util.MessageArchive;
+import com.chat.util.MessageRetention;
+import com.chat.util.RoomPurger;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import java.util.List;
+
+/**
+ * 基于 MyBatis 的 MySQL 消息存储
+ * 查询以保留期起点为ID下界并优先只查最近的分区（见 {@link MessageRetention}），
+ * 数据库中不够时从冷消息归档补齐（见 {@link MessageArchive}），删除聊天室时登记后台清理任务（见 {@link RoomPurger}）
+ *
+ * @author chat
+ * @since 2024-01-01
+ */
+@Component
+@ConditionalOnProperty(name = "chat.message.store", havingValue = "mysql", matchIfMissing = true)
+public class MybatisMessageStore implements MessageStore {
+
+    private final ChatMessageMapper chatMessageMapper;
+    private final MessageRetention messageRetention;
+    private final MessageArchive messageArchive;
+    private final RoomPurger roomPurger;
+
+    public MybatisMessageStore(ChatMessageMapper chatMessageMapper, MessageRetention messageRetention,
+                               MessageArchive messageArchive, RoomPurger roomPurger) {
+        this.chatMessageMapper = chatMessageMapper;
+        this.messageRetention = messageRetention;
+        this.messageArchive = messageArchive;
+        this.roomPurger = roomPurger;
+    }
+
+    @Override
+    public void append(ChatMessage message) {
+        chatMessageMapper.insert(message);
+    }
+
+    @Override
+    public void appendBatch(List<ChatMessage> messages) {
+        chatMessageMapper.insertBatch(messages);
+    }
+
+    @Override
+    public void remove(String roomId, long id) {
+        chatMessageMapper.deleteRange(roomId, id - 1, id);
+    }
+
+    @Override
+    public List<ChatMessage> readAfter(String roomId, long afterId, Long beforeId, int limit) {
+        // 早于数据库中消息的部分在归档中
+        List<ChatMessage> messages = messageArchive.read(roomId, archiveFloor(afterId), beforeId, limit, false);
+        if (messages.size() < limit) {
+            long from = messages.isEmpty() ? afterId : messages.get(messages.size() - 1).getId();
+            messages.addAll(chatMessageMapper.selectList(messageQuery(roomId)
+                    .gt(ChatMessage::getId, from)
+                    .lt(beforeId != null, ChatMessage::getId, beforeId)
+                    .orderByAsc(ChatMessage::getId)
+                    .last("LIMIT " + (limit - messages.size()))));
+        }
+        return messages;
+    }
+
+    /**
+     * 最新的消息几乎都在最近几个月的分区中，先只查最近的分区，不够时再从更早的分区和归档补齐
+     */
+    @Override
+    public List<ChatMessage> readBefore(String roomId, Long beforeId, Long afterId, int limit) {
+        long recentFloor = messageRetention.getRecentFloorId();
+        boolean hasAfter = afterId != null && afterId > 0;
+        boolean splitRecent = (!hasAfter || afterId < recentFloor) && (beforeId == null || beforeId > recentFloor);
+        List<ChatMessage> messages = chatMessageMapper.selectList(messageQuery(roomId)
+                .gt(hasAfter, ChatMessage::getId, afterId)
+                .ge(splitRecent, ChatMessage::getId, recentFloor)
+                .lt(beforeId != null, ChatMessage::getId, beforeId)
+                .orderByDesc(ChatMessage::getId)
+                .last("LIMIT " + limit));
+        if (splitRecent && messages.size() < limit) {
+            messages.addAll(chatMessageMapper.selectList(messageQuery(roomId)
+                    .gt(hasAfter, ChatMessage::getId, afterId)
+                    .lt(ChatMessage::getId, recentFloor)
+                    .orderByDesc(ChatMessage::getId)
+                    .last("LIMIT " + (limit - messages.size()))));
+        }
+        if (messages.size() < limit && messageArchive.isEnabled()) {
+            // 数据库中不够时从归档补齐更早的消息
+            Long upper = messages.isEmpty() ? beforeId : messages.get(messages.size() - 1).getId();
+            messages.addAll(messageArchive.read(roomId, archiveFloor(afterId), upper, limit - messages.size(), true));
+        }
+        return messages;
+    }
+
+    @Override
+    public void purgeRoom(String roomId) {
+        roomPurger.submit(roomId);
+        messageArchive.deleteRoom(roomId);
+    }
+
+    /**
+     * 读取归档的ID下界（不包含）：不早于游标，也不早于保留期的起点
+     */
+    private long archiveFloor(Long afterId) {
+        long floor = afterId != null ? afterId : 0L;
+        long floorId = messageRetention.getFloorId();
+        return floorId > 0 ? Math.max(floor, floorId - 1) : floor;
+    }
+
+    /**
+     * 聊天室保留期内未删除消息的查询条件，只查询 MessageVO 需要的列
+     * 以保留期起点为ID下界，只访问保留期内的分区；按 (room_id, deleted, id) 索引顺序扫描，从游标处直接定位
+     *
+     * @param roomId 聊天室ID
+     * @return 查询条件
+     */
+    private LambdaQueryWrapper<ChatMessage> messageQuery(String roomId) {
+        long floorId = messageRetention.getFloorId();
+        LambdaQueryWrapper<ChatMessage> wrapper = new LambdaQueryWrapper<>();
+        wrapper.select(ChatMessage::getId, ChatMessage::getRoomId, ChatMessage::getUserId,
+                        ChatMessage::getContent, ChatMessage::getCreatedAt)
+                .eq(ChatMessage::getRoomId, roomId)
+                .eq(ChatMessage::getDeleted, false)
+                .ge(floorId > 0, ChatMessage::getId, floorId);
+        return wrapper;
+    }
+}
@@ -0,0 +1,412 @@
+package com.chat.util;
+
+import com.chat.model.entity.ChatMessage;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * 归档消息的一个段文件，消息按ID升序追加，每 blockRecords 条组成一个块，块表即稀疏索引（块的首尾ID → 文件偏移）。
+ * 活动段（.log）不压缩，只追加，按块读取；写满后封存为 .seg：每块单独压缩，文件末尾写入块表，
+ * 通过 MappedByteBuffer 读取，读取时只解压命中的块。
+ * 记录格式：int 记录长度 | long ID | long 创建时间 | int 长度 + 用户ID | int 长度 + 内容（UTF-8）。
+ * 封存段尾部：块表（每块 long 首ID | long 尾ID | long 偏移 | int 长度 | int 原始长度 | int 条数）| long 块表偏移 | int 块数 | int 魔数。
+ * 非线程安全，由调用方加锁
+ *
+ * @author chat
+ * @since 2024-01-01
+ */
+final class ArchiveSegment implements Closeable {
+
+    static final String ACTIVE_SUFFIX = ".log";
+    static final String SEALED_SUFFIX = ".seg";
+
+    private static final int MAGIC = 0x43484152;
+    private static final int BLOCK_ENTRY_BYTES = 36;
+    private static final int FOOTER_BYTES = 16;
+    private static final ZoneId ZONE = ZoneId.systemDefault();
+
+    private final File file;
+    private final boolean sealed;
+    private final List<Block> blocks;
+    private final FileChannel channel;
+    private final MappedByteBuffer mapped;
+    /** 活动段中完整记录的字节数，之后是未写完的记录 */
+    private long size;
+
+    private ArchiveSegment(File file, boolean sealed, List<Block> blocks, FileChannel channel,
+                           MappedByteBuffer mapped, long size) {
+        this.file = file;
+        this.sealed = sealed;
+        this.blocks = blocks;
+        this.channel = channel;
+        this.mapped = mapped;
+        this.size = size;
+    }
+
+    /**
+     * 打开活动段，扫描已有记录重建块表，忽略末尾未写完的记录
+     *
+     * @param file 段文件，不存在时创建
+     * @param blockRecords 每块的记录数
+     * @return 活动段
+     * @throws IOException 读取失败
+     */
+    static ArchiveSegment openActive(File file, int blockRecords) throws IOException {
+        FileChannel channel = new RandomAccessFile(file, "rw").getChannel();
+        try {
+            List<Block> blocks = new ArrayList<>();
+            long length = channel.size();
+            long position = 0;
+            ByteBuffer header = ByteBuffer.allocate(12);
+            while (position + 12 <= length) {
+                header.clear();
+                readFully(channel, header, position);
+                header.flip();
+                int recordLength = header.getInt();
+                long id = header.getLong();
+                if (recordLength < 8 || position + 4 + recordLength > length) {
+                    break;
+                }
+                addRecord(blocks, blockRecords, id, position, 4 + recordLength);
+                position += 4 + recordLength;
+            }
+            return new ArchiveSegment(file, false, blocks, channel, null, position);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * 打开封存段，映射到内存并读取块表
+     *
+     * @param file 段文件
+     * @return 封存段
+     * @throws IOException 读取失败或文件格式不正确
+     */
+    static ArchiveSegment openSealed(File file) throws IOException {
+        FileChannel channel = new RandomAccessFile(file, "r").getChannel();
+        try {
+            MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            int limit = mapped.limit();
+            if (limit < FOOTER_BYTES || mapped.getInt(limit - 4) != MAGIC) {
+                throw new IOException("Invalid archive segment: " + file);
+            }
+            long indexOffset = mapped.getLong(limit - FOOTER_BYTES);
+            int count = mapped.getInt(limit - 8);
+            List<Block> blocks = new ArrayList<>(count);
+            ByteBuffer index = mapped.duplicate();
+            index.position((int) indexOffset);
+            for (int i = 0; i < count; i++) {
+                Block block = new Block(index.getLong(), index.getLong());
+                block.offset = index.getLong();
+                block.length = index.getInt();
+                block.rawLength = index.getInt();
+                block.count = index.getInt();
+                blocks.add(block);
+            }
+            return new ArchiveSegment(file, true, blocks, channel, mapped, indexOffset);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * 追加消息并刷盘，消息须按ID升序且大于段内已有的ID
+     *
+     * @param messages 消息
+     * @param blockRecords 每块的记录数
+     * @throws IOException 写入失败
+     */
+    void append(List<ChatMessage> messages, int blockRecords) throws IOException {
+        if (sealed) {
+            throw new IllegalStateException("Archive segment is sealed: " + file);
+        }
+        // 丢弃上次中断时未写完的记录
+        if (channel.size() > size) {
+            channel.truncate(size);
+        }
+        long position = size;
+        List<byte[]> records = new ArrayList<>(messages.size());
+        int total = 0;
+        for (ChatMessage message : messages) {
+            byte[] record = encode(message);
+            records.add(record);
+            total += record.length;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(total);
+        for (byte[] record : records) {
+            buffer.put(record);
+        }
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+        channel.force(false);
+        position = size;
+        for (int i = 0; i < messages.size(); i++) {
+            addRecord(blocks, blockRecords, messages.get(i).getId(), position, records.get(i).length);
+            position += records.get(i).length;
+        }
+        size = position;
+    }
+
+    /**
+     * 把活动段封存为压缩段并删除活动段文件
+     *
+     * @param target 封存段文件
+     * @return 封存段
+     * @throws IOException 写入失败
+     */
+    ArchiveSegment seal(File target) throws IOException {
+        File tmp = new File(target.getPath() + ".tmp");
+        List<Block> sealedBlocks = new ArrayList<>(blocks.size());
+        try (FileChannel out = new RandomAccessFile(tmp, "rw").getChannel()) {
+            out.truncate(0);
+            long position = 0;
+            Deflater deflater = new Deflater();
+            try {
+                for (Block block : blocks) {
+                    byte[] compressed = compress(deflater, readBlock(block));
+                    Block sealedBlock = new Block(block.firstId, block.lastId);
+                    sealedBlock.offset = position;
+                    sealedBlock.length = compressed.length;
+                    sealedBlock.rawLength = block.length;
+                    sealedBlock.count = block.count;
+                    sealedBlocks.add(sealedBlock);
+                    position += writeFully(out, ByteBuffer.wrap(compressed), position);
+                }
+            } finally {
+                deflater.end();
+            }
+            ByteBuffer index = ByteBuffer.allocate(sealedBlocks.size() * BLOCK_ENTRY_BYTES + FOOTER_BYTES);
+            for (Block block : sealedBlocks) {
+                index.putLong(block.firstId).putLong(block.lastId).putLong(block.offset)
+                        .putInt(block.length).putInt(block.rawLength).putInt(block.count);
+            }
+            index.putLong(position).putInt(sealedBlocks.size()).putInt(MAGIC);
+            index.flip();
+            writeFully(out, index, position);
+            out.force(true);
+        }
+        Files.move(tmp.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        close();
+        Files.deleteIfExists(file.toPath());
+        return openSealed(target);
+    }
+
+    /**
+     * 读取区间 (afterId, beforeId) 内的消息
+     *
+     * @param roomId 聊天室ID
+     * @param afterId 下界（不包含）
+     * @param beforeId 上界（不包含）
+     * @param limit 最多条数
+     * @param descending 是否从新到旧读取
+     * @param result 结果按读取顺序追加到这里
+     * @throws IOException 读取失败
+     */
+    void read(String roomId, long afterId, long beforeId, int limit, boolean descending,
+              List<ChatMessage> result) throws IOException {
+        int start = result.size();
+        for (int i = 0; i < blocks.size() && result.size() - start < limit; i++) {
+            Block block = blocks.get(descending ? blocks.size() - 1 - i : i);
+            if (block.lastId <= afterId || block.firstId >= beforeId) {
+                continue;
+            }
+            List<ChatMessage> messages = decode(roomId, sealed ? inflateBlock(block) : readBlock(block));
+            for (int j = 0; j < messages.size() && result.size() - start < limit; j++) {
+                ChatMessage message = messages.get(descending ? messages.size() - 1 - j : j);
+                if (message.getId() > afterId && message.getId() < beforeId) {
+                    result.add(message);
+                }
+            }
+        }
+    }
+
+    boolean isEmpty() {
+        return blocks.isEmpty();
+    }
+
+    long getFirstId() {
+        return blocks.isEmpty() ? 0L : blocks.get(0).firstId;
+    }
+
+    long getLastId() {
+        return blocks.isEmpty() ? 0L : blocks.get(blocks.size() - 1).lastId;
+    }
+
+    /**
+     * @return 活动段为已写入的字节数，封存段为压缩后数据的字节数
+     */
+    long getSize() {
+        return size;
+    }
+
+    File getFile() {
+        return file;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    private static void addRecord(List<Block> blocks, int blockRecords, long id, long position, int length) {
+        Block last = blocks.isEmpty() ? null : blocks.get(blocks.size() - 1);
+        if (last == null || last.count >= blockRecords) {
+            last = new Block(id, id);
+            last.offset = position;
+            blocks.add(last);
+        }
+        last.lastId = id;
+        last.length += length;
+        last.rawLength = last.length;
+        last.count++;
+    }
+
+    private byte[] readBlock(Block block) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(block.length);
+        readFully(channel, buffer, block.offset);
+        return buffer.array();
+    }
+
+    private byte[] inflateBlock(Block block) throws IOException {
+        byte[] compressed = new byte[block.length];
+        ByteBuffer source = mapped.duplicate();
+        source.position((int) block.offset);
+        source.get(compressed);
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(compressed);
+            byte[] raw = new byte[block.rawLength];
+            int read = 0;
+            while (read < raw.length && !inflater.finished()) {
+                int n = inflater.inflate(raw, read, raw.length - read);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                read += n;
+            }
+            if (read != raw.length) {
+                throw new IOException("Corrupted archive block in " + file);
+            }
+            return raw;
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupted archive block in " + file, e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    private static byte[] compress(Deflater deflater, byte[] raw) {
+        deflater.reset();
+        deflater.setInput(raw);
+        deflater.finish();
+        byte[] buffer = new byte[Math.max(64, raw.length / 2)];
+        int length = 0;
+        while (!deflater.finished()) {
+            if (length == buffer.length) {
+                byte[] grown = new byte[buffer.length * 2];
+                System.arraycopy(buffer, 0, grown, 0, length);
+                buffer = grown;
+            }
+            length += deflater.deflate(buffer, length, buffer.length - length);
+        }
+        byte[] result = new byte[length];
+        System.arraycopy(buffer, 0, result, 0, length);
+        return result;
+    }
+
+    private static byte[] encode(ChatMessage message) {
+        byte[] userId = bytes(message.getUserId());
+        byte[] content = bytes(message.getContent());
+        long createdAt = message.getCreatedAt() != null
+                ? message.getCreatedAt().atZone(ZONE).toInstant().toEpochMilli()
+                : MessageIdGenerator.getTimestamp(message.getId());
+        int length = 8 + 8 + 4 + userId.length + 4 + content.length;
+        ByteBuffer buffer = ByteBuffer.allocate(4 + length);
+        buffer.putInt(length).putLong(message.getId()).putLong(createdAt)
+                .putInt(userId.length).put(userId).putInt(content.length).put(content);
+        return buffer.array();
+    }
+
+    private static List<ChatMessage> decode(String roomId, byte[] raw) {
+        ByteBuffer buffer = ByteBuffer.wrap(raw);
+        List<ChatMessage> messages = new ArrayList<>();
+        while (buffer.remaining() >= 4) {
+            buffer.getInt();
+            ChatMessage message = new ChatMessage();
+            message.setId(buffer.getLong());
+            message.setCreatedAt(LocalDateTime.ofInstant(Instant.ofEpochMilli(buffer.getLong()), ZONE));
+            message.setRoomId(roomId);
+            message.setUserId(string(buffer));
+            message.setContent(string(buffer));
+            messages.add(message);
+        }
+        return messages;
+    }
+
+    private static byte[] bytes(String value) {
+        return value != null ? value.getBytes(StandardCharsets.UTF_8) : new byte[0];
+    }
+
+    private static String string(ByteBuffer buffer) {
+        byte[] value = new byte[buffer.getInt()];
+        buffer.get(value);
+        return new String(value, StandardCharsets.UTF_8);
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int n = channel.read(buffer, position);
+            if (n < 0) {
+                throw new IOException("Unexpected end of archive segment");
+            }
+            position += n;
+        }
+    }
+
+    private static int writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        int written = 0;
+        while (buffer.hasRemaining()) {
+            written += channel.write(buffer, position + written);
+        }
+        return written;
+    }
+
+    /**
+     * 段内的一个块
+     */
+    private static final class Block {
+        private final long firstId;
+        private long lastId;
+        private long offset;
+        private int length;
+        private int rawLength;
+        private int count;
+
+        Block(long firstId, long lastId) {
+            this.firstId = firstId;
+            this.lastId = lastId;
+        }
+    }
+}
@@ -0,0 +1,278 @@
+package com.chat.util;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntConsumer;
+
+/**
+ * 房间通知的分发线程池
+ * 发送消息的请求线程只把通知放入房间队列后返回，唤醒等待者（以及完成 DeferredResult 后的序列化和加密）由分发线程执行。
+ * 同一房间的通知按提交顺序串行执行，保证等待者不会先收到后面的消息而跳过前面的；不同房间并行执行。
+ * 等待者超过 parallel-threshold 的房间按分段拆分，由空闲的分发线程一起处理。
+ * 队列满时由提交线程直接执行，通知不会丢失。
+ * 房间队列执行完所有通知后即移除（与 SubscriberRegistry 相同的计数关闭方式），空闲房间不占用内存
+ *
+ * @author chat
+ * @since 2024-01-01
+ */
+@Slf4j
+@Component
+public class FanoutExecutor implements MetricsSource {
+
+    /** 指标中列出的房间数 */
+    private static final int METRICS_TOP_ROOMS = 20;
+    /** 一个房间每轮连续执行的通知数，之后让出线程给其他房间 */
+    private static final int DRAIN_BATCH = 64;
+
+    private final Map<String, RoomQueue> rooms = new ConcurrentHashMap<>();
+
+    private final LongAdder submitted = new LongAdder();
+    private final LongAdder completed = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder parallelRuns = new LongAdder();
+
+    private ThreadPoolExecutor executor;
+
+    /** 分发线程数，小于等于0时取CPU核数 */
+    @Value("${chat.fanout.threads:0}")
+    private int threads;
+
+    /** 等待执行的通知上限 */
+    @Value("${chat.fanout.queue-capacity:10000}")
+    private int queueCapacity;
+
+    /** 等待者达到该数量的房间并行通知 */
+    @Value("${chat.fanout.parallel-threshold:1000}")
+    private int parallelThreshold;
+
+    @PostConstruct
+    public void init() {
+        int size = threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+        AtomicInteger index = new AtomicInteger();
+        executor = new ThreadPoolExecutor(size, size, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueCapacity), r -> {
+                    Thread thread = new Thread(r, "room-fanout-" + index.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }, new ThreadPoolExecutor.CallerRunsPolicy());
+        // 并行分段直接放入队列，需要线程已经启动
+        executor.prestartAllCoreThreads();
+        LongPollingUtil.setFanoutExecutor(this);
+    }
+
+    @PreDestroy
+    public void destroy() {
+        LongPollingUtil.setFanoutExecutor(null);
+        executor.shutdown();
+    }
+
+    /**
+     * 提交房间通知，同一房间的通知按提交顺序执行
+     *
+     * @param roomId 聊天室ID
+     * @param task 通知
+     */
+    public void execute(String roomId, Runnable task) {
+        submitted.increment();
+        while (true) {
+            RoomQueue queue = rooms.computeIfAbsent(roomId, RoomQueue::new);
+            if (queue.acquire()) {
+                queue.tasks.add(new Task(task, System.nanoTime()));
+                schedule(queue);
+                return;
+            }
+            // 队列已关闭但还未移除
+            rooms.remove(roomId, queue);
+        }
+    }
+
+    /**
+     * 等待者数量是否需要并行通知
+     *
+     * @param waiters 等待者数量
+     * @return 是否并行
+     */
+    public boolean isParallel(int waiters) {
+        return parallelThreshold > 0 && waiters >= parallelThreshold;
+    }
+
+    /**
+     * 并行执行 count 个分段，全部完成后返回
+     * 调用线程自己也领取分段，其他分发线程繁忙时由调用线程全部执行，不会因等待而阻塞线程池
+     *
+     * @param count 分段数
+     * @param chunk 执行一个分段
+     */
+    public void runParallel(int count, IntConsumer chunk) {
+        parallelRuns.increment();
+        AtomicInteger next = new AtomicInteger();
+        CountDownLatch done = new CountDownLatch(count);
+        Runnable worker = () -> {
+            int i;
+            while ((i = next.getAndIncrement()) < count) {
+                try {
+                    chunk.accept(i);
+                } catch (Exception e) {
+                    log.error("Failed to run fan-out chunk {}", i, e);
+                } finally {
+                    done.countDown();
+                }
+            }
+        };
+        int helpers = Math.min(count, executor.getMaximumPoolSize()) - 1;
+        for (int h = 0; h < helpers && !executor.isShutdown(); h++) {
+            // 队列满时丢弃：调用线程会处理剩余的分段
+            executor.getQueue().offer(worker);
+        }
+        worker.run();
+        try {
+            // 只需等待其他线程正在执行的分段
+            done.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public String getMetricsName() {
+        return "fanout";
+    }
+
+    @Override
+    public Map<String, Object> getMetrics() {
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        metrics.put("threads", executor.getPoolSize());
+        metrics.put("active", executor.getActiveCount());
+        metrics.put("queued", executor.getQueue().size());
+        metrics.put("submitted", submitted.sum());
+        metrics.put("completed", completed.sum());
+        metrics.put("failed", failed.sum());
+        metrics.put("parallelRuns", parallelRuns.sum());
+        // 按最近一次分发延迟列出最慢的房间
+        List<RoomQueue> slowest = new ArrayList<>(rooms.values());
+        slowest.sort(Comparator.comparingLong((RoomQueue queue) -> queue.lastLagNanos).reversed());
+        Map<String, Object> roomMetrics = new LinkedHashMap<>();
+        for (RoomQueue queue : slowest.subList(0, Math.min(METRICS_TOP_ROOMS, slowest.size()))) {
+            Map<String, Object> room = new LinkedHashMap<>();
+            long tasks = queue.completed.sum();
+            room.put("pending", queue.tasks.size());
+            room.put("completed", tasks);
+            room.put("lastLagMs", TimeUnit.NANOSECONDS.toMillis(queue.lastLagNanos));
+            room.put("maxLagMs", TimeUnit.NANOSECONDS.toMillis(queue.maxLagNanos));
+            room.put("avgLagMs", tasks > 0 ? TimeUnit.NANOSECONDS.toMillis(queue.totalLagNanos.sum() / tasks) : 0);
+            roomMetrics.put(queue.roomId, room);
+        }
+        metrics.put("rooms", roomMetrics);
+        return metrics;
+    }
+
+    private void schedule(RoomQueue queue) {
+        if (queue.scheduled.compareAndSet(false, true)) {
+            executor.execute(() -> drain(queue));
+        }
+    }
+
+    /**
+     * 执行房间队列中的通知，每轮最多 DRAIN_BATCH 个，之后重新排队
+     */
+    private void drain(RoomQueue queue) {
+        try {
+            Task task;
+            for (int n = 0; n < DRAIN_BATCH && (task = queue.tasks.poll()) != null; n++) {
+                try {
+                    task.runnable.run();
+                } catch (Exception e) {
+                    failed.increment();
+                    log.error("Failed to fan out room event: roomId={}", queue.roomId, e);
+                }
+                // 分发延迟：从提交到全部等待者被唤醒
+                long lag = System.nanoTime() - task.submittedAt;
+                queue.lastLagNanos = lag;
+                queue.maxLagNanos = Math.max(queue.maxLagNanos, lag);
+                queue.totalLagNanos.add(lag);
+                queue.completed.increment();
+                completed.increment();
+                queue.pending.decrementAndGet();
+            }
+        } finally {
+            if (queue.close()) {
+                // 没有待执行的通知，之后的提交会创建新的队列
+                rooms.remove(queue.roomId, queue);
+                return;
+            }
+            queue.scheduled.set(false);
+            if (!queue.tasks.isEmpty() && !executor.isShutdown()) {
+                schedule(queue);
+            }
+        }
+    }
+
+    /**
+     * 一个房间待执行的通知及分发延迟统计，统计只由正在执行该房间的线程写入。
+     * pending 为已提交（包括正在放入）但未执行完的通知数，-1 表示队列已关闭
+     */
+    private static class RoomQueue {
+        private final String roomId;
+        private final Queue<Task> tasks = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger pending = new AtomicInteger();
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+        private final LongAdder completed = new LongAdder();
+        private final LongAdder totalLagNanos = new LongAdder();
+        private volatile long lastLagNanos;
+        private volatile long maxLagNanos;
+
+        RoomQueue(String roomId) {
+            this.roomId = roomId;
+        }
+
+        boolean acquire() {
+            while (true) {
+                int current = pending.get();
+                if (current < 0) {
+                    return false;
+                }
+                if (pending.compareAndSet(current, current + 1)) {
+                    return true;
+                }
+            }
+        }
+
+        /**
+         * 没有待执行的通知时关闭队列
+         *
+         * @return 是否关闭
+         */
+        boolean close() {
+            return pending.get() == 0 && pending.compareAndSet(0, -1);
+        }
+    }
+
+    private static class Task {
+        private final Runnable runnable;
+        private final long submittedAt;
+
+        Task(Runnable runnable, long submittedAt) {
+            this.runnable = runnable;
+            this.submittedAt = submittedAt;
+        }
+    }
+}
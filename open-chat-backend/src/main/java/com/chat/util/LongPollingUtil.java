@@ -1,15 +1,21 @@
 package com.chat.util;
 
+import com.chat.model.dto.PresenceChange;
 import com.chat.model.vo.ApiResponse;
+import com.chat.model.vo.MessageVO;
 import com.chat.model.vo.PollResult;
+import com.chat.model.vo.SharedApiResponse;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.web.context.request.async.DeferredResult;
 
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
-import java.util.Map;
-import java.util.concurrent.*;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
 
 /**
  * 长轮询工具类
@@ -21,55 +27,120 @@ import java.util.concurrent.*;
 @Slf4j
 public class LongPollingUtil {
 
+    /** 每个房间等待者的分段数，也是并行通知的最大分段数 */
+    private static final int STRIPES = 16;
+
     /** 存储每个房间的挂起请求 */
-    private static final Map<String, CopyOnWriteArraySet<DeferredResult<Object>>> PENDING_REQUESTS = new ConcurrentHashMap<>();
-    
-    /** 用于执行超时任务的调度器 */
-    private static final ScheduledExecutorService SCHEDULER = Executors.newScheduledThreadPool(1);
+    private static final SubscriberRegistry<MessageWaiter> PENDING_REQUESTS = new SubscriberRegistry<>(STRIPES);
 
     /** 存储每个房间的用户列表请求 */
-    private static final Map<String, List<DeferredResult<ApiResponse<PollResult>>>> USER_LIST_REQUESTS = new ConcurrentHashMap<>();
+    private static final SubscriberRegistry<UserListWaiter> USER_LIST_REQUESTS = new SubscriberRegistry<>(STRIPES);
+
+    /** 分发线程池，未设置时（如非Spring环境）在调用线程通知 */
+    private static volatile FanoutExecutor fanoutExecutor;
+
+    /** 房间事件监听器（SSE 等推送通道） */
+    private static final List<RoomEventListener> LISTENERS = new CopyOnWriteArrayList<>();
+
+    /**
+     * 注册房间事件监听器
+     *
+     * @param listener 监听器
+     */
+    public static void addListener(RoomEventListener listener) {
+        LISTENERS.add(listener);
+    }
+
+    /**
+     * 移除房间事件监听器
+     *
+     * @param listener 监听器
+     */
+    public static void removeListener(RoomEventListener listener) {
+        LISTENERS.remove(listener);
+    }
 
     /**
-     * 创建长轮询请求
+     * 设置分发线程池
+     *
+     * @param executor 分发线程池，null 时在调用线程通知
+     */
+    static void setFanoutExecutor(FanoutExecutor executor) {
+        fanoutExecutor = executor;
+    }
+
+    /**
+     * 创建长轮询请求并立即注册到房间
+     * 请求不占用Servlet线程，由 notifyRoom 唤醒或在超时后返回空结果
      *
      * @param roomId 聊天室ID
      * @param timeout 超时时间（秒）
+     * @param lastMessageId 客户端已收到的最后一条消息ID
      * @return DeferredResult对象
      */
-    public static DeferredResult<Object> createRequest(String roomId, Integer timeout) {
-        DeferredResult<Object> deferredResult = new DeferredResult<>((long) timeout * 1000, createTimeoutResult());
-        
-        // 获取或创建房间的请求集合
-        CopyOnWriteArraySet<DeferredResult<Object>> roomRequests = 
-            PENDING_REQUESTS.computeIfAbsent(roomId, k -> new CopyOnWriteArraySet<>());
-        
-        // 添加请求到集合
-        roomRequests.add(deferredResult);
-        
+    public static DeferredResult<ApiResponse<PollResult>> createRequest(String roomId, Integer timeout, Long lastMessageId) {
+        DeferredResult<ApiResponse<PollResult>> deferredResult = new DeferredResult<>(
+                (long) timeout * 1000, () -> ApiResponse.success(createTimeoutResult(lastMessageId)));
+
+        // 登记请求，记录该请求的消息游标
+        MessageWaiter waiter = new MessageWaiter(deferredResult, lastMessageId != null ? lastMessageId : 0L);
+        PENDING_REQUESTS.register(roomId, waiter);
+
         // 请求完成时（正常完成或超时）移除请求
-        deferredResult.onCompletion(() -> {
-            roomRequests.remove(deferredResult);
-            if (roomRequests.isEmpty()) {
-                PENDING_REQUESTS.remove(roomId);
-            }
-        });
-        
+        deferredResult.onCompletion(() -> PENDING_REQUESTS.unregister(roomId, waiter));
+
         return deferredResult;
     }
 
     /**
      * 通知指定房间的所有等待请求
+     * 每个等待请求只收到其游标之后的新消息，游标不早于新消息的请求继续等待。
+     * 通知放入分发线程池后立即返回，同一房间的通知按调用顺序执行。
+     * 调用方保证同一房间按ID升序通知（见 ChatServiceImpl.sendMessage），
+     * 游标之前不会再出现新消息，按游标过滤不会漏掉消息
      *
      * @param roomId 聊天室ID
-     * @param result 要发送的结果
+     * @param messages 新写入的消息，按ID升序，且大于该房间之前通知过的所有消息
      */
-    public static void notifyRoom(String roomId, Object result) {
-        CopyOnWriteArraySet<DeferredResult<Object>> roomRequests = PENDING_REQUESTS.get(roomId);
-        if (roomRequests != null && !roomRequests.isEmpty()) {
-            for (DeferredResult<Object> request : roomRequests) {
-                request.setResult(result);
+    public static void notifyRoom(String roomId, List<MessageVO> messages) {
+        if (messages.isEmpty()) {
+            return;
+        }
+        FanoutExecutor executor = fanoutExecutor;
+        if (executor != null) {
+            executor.execute(roomId, () -> deliver(roomId, messages, executor));
+        } else {
+            deliver(roomId, messages, null);
+        }
+    }
+
+    private static void deliver(String roomId, List<MessageVO> messages, FanoutExecutor executor) {
+        PollResult result = createPollResult(messages);
+        // 游标早于所有新消息的请求（绝大多数）共享同一个结果
+        ApiResponse<PollResult> response = SharedApiResponse.of(result);
+        long firstMessageId = messages.get(0).getId();
+        Consumer<MessageWaiter> wake = waiter -> {
+            if (waiter.lastMessageId < firstMessageId) {
+                waiter.result.setResult(response);
+                return;
+            }
+            List<MessageVO> delta = new ArrayList<>();
+            for (MessageVO message : messages) {
+                if (message.getId() > waiter.lastMessageId) {
+                    delta.add(message);
+                }
+            }
+            if (!delta.isEmpty()) {
+                waiter.result.setResult(ApiResponse.success(createPollResult(delta)));
             }
+        };
+        if (executor != null && executor.isParallel(PENDING_REQUESTS.size(roomId))) {
+            executor.runParallel(PENDING_REQUESTS.getStripes(), stripe -> PENDING_REQUESTS.forEach(roomId, stripe, wake));
+        } else {
+            PENDING_REQUESTS.forEach(roomId, wake);
+        }
+        for (RoomEventListener listener : LISTENERS) {
+            listener.onMessages(roomId, result);
         }
     }
 
@@ -80,77 +151,229 @@ public class LongPollingUtil {
      * @return 等待请求数量
      */
     public static int getPendingRequestCount(String roomId) {
-        CopyOnWriteArraySet<DeferredResult<Object>> roomRequests = PENDING_REQUESTS.get(roomId);
-        return roomRequests != null ? roomRequests.size() : 0;
+        return PENDING_REQUESTS.size(roomId);
     }
 
     /**
-     * 创建超时结果
+     * 本节点是否有该房间的等待请求或推送订阅，用于过滤其他节点的房间事件
      *
+     * @param roomId 聊天室ID
+     * @return 是否有本地订阅
+     */
+    public static boolean hasSubscribers(String roomId) {
+        if (PENDING_REQUESTS.contains(roomId) || USER_LIST_REQUESTS.contains(roomId)) {
+            return true;
+        }
+        for (RoomEventListener listener : LISTENERS) {
+            if (listener.hasSubscribers(roomId)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 创建消息结果
+     *
+     * @param messages 消息列表，按ID升序
+     * @return 消息结果
+     */
+    private static PollResult createPollResult(List<MessageVO> messages) {
+        PollResult result = new PollResult();
+        result.setMessages(messages);
+        result.setLastMessageId(messages.get(messages.size() - 1).getId());
+        return result;
+    }
+
+    /**
+     * 创建超时结果：没有新消息，游标保持不变
+     *
+     * @param lastMessageId 客户端已收到的最后一条消息ID
      * @return 超时结果对象
      */
-    private static Object createTimeoutResult() {
-        return new TimeoutResult();
+    private static PollResult createTimeoutResult(Long lastMessageId) {
+        PollResult result = new PollResult();
+        result.setMessages(Collections.emptyList());
+        result.setLastMessageId(lastMessageId);
+        return result;
     }
 
     /**
-     * 超时结果类
+     * 创建用户列表长轮询请求并立即注册到房间
+     * 由 notifyUserListUpdate 唤醒，超时后返回不含变化的结果，版本号保持不变
+     *
+     * @param roomId 聊天室ID
+     * @param timeout 超时时间（秒）
+     * @param presenceVersion 客户端持有的在线列表版本号
+     * @return DeferredResult对象
      */
-    public static class TimeoutResult {
-        private final String status = "timeout";
-        private final long timestamp = System.currentTimeMillis();
+    public static DeferredResult<ApiResponse<PollResult>> createUserListRequest(String roomId, Integer timeout, long presenceVersion) {
+        DeferredResult<ApiResponse<PollResult>> deferredResult = new DeferredResult<>(
+                (long) timeout * 1000, () -> ApiResponse.success(createPresenceDeltaResult(
+                        new PresenceChange(presenceVersion, presenceVersion, new HashSet<>(), new HashSet<>()))));
+
+        UserListWaiter waiter = new UserListWaiter(deferredResult, presenceVersion);
+        USER_LIST_REQUESTS.register(roomId, waiter);
 
-        public String getStatus() {
-            return status;
+        deferredResult.onCompletion(() -> USER_LIST_REQUESTS.unregister(roomId, waiter));
+
+        return deferredResult;
+    }
+
+    /**
+     * 通知在线列表变化
+     * 持有变化前版本的请求（绝大多数）共享同一个增量结果；错过了之前变化的请求收到完整列表，
+     * 版本不早于变化后版本的请求继续等待。
+     * 与消息和房间删除通知放入同一房间的分发队列，同一房间的事件按调用顺序到达
+     *
+     * @param roomId 聊天室ID
+     * @param change 在线列表变化
+     * @param snapshot 获取完整在线列表，仅在需要时调用
+     */
+    public static void notifyUserListUpdate(String roomId, PresenceChange change, Supplier<PresenceManager.Snapshot> snapshot) {
+        FanoutExecutor executor = fanoutExecutor;
+        if (executor != null) {
+            executor.execute(roomId, () -> deliverUserListUpdate(roomId, change, snapshot));
+        } else {
+            deliverUserListUpdate(roomId, change, snapshot);
         }
+    }
 
-        public long getTimestamp() {
-            return timestamp;
+    private static void deliverUserListUpdate(String roomId, PresenceChange change, Supplier<PresenceManager.Snapshot> snapshot) {
+        PollResult delta = createPresenceDeltaResult(change);
+        // 完整列表只在有请求或订阅需要时读取一次
+        List<PollResult> snapshotResult = new ArrayList<>(1);
+        Supplier<PollResult> fullList = () -> {
+            if (snapshotResult.isEmpty()) {
+                PresenceManager.Snapshot current = snapshot.get();
+                snapshotResult.add(createPresenceSnapshotResult(current.getUsers(), current.getVersion()));
+            }
+            return snapshotResult.get(0);
+        };
+        int requests = USER_LIST_REQUESTS.size(roomId);
+        if (requests > 0) {
+            log.info("通知用户列表更新: roomId={}, version={}, joined={}, left={}, requests={}",
+                roomId, change.getVersion(), change.getJoined(), change.getLeft(), requests);
+            ApiResponse<PollResult> deltaResponse = SharedApiResponse.of(delta);
+            List<ApiResponse<PollResult>> snapshotResponse = new ArrayList<>(1);
+            USER_LIST_REQUESTS.forEach(roomId, waiter -> {
+                if (waiter.presenceVersion == change.getFromVersion()) {
+                    waiter.result.setResult(deltaResponse);
+                } else if (waiter.presenceVersion < change.getVersion()) {
+                    if (snapshotResponse.isEmpty()) {
+                        snapshotResponse.add(SharedApiResponse.of(fullList.get()));
+                    }
+                    waiter.result.setResult(snapshotResponse.get(0));
+                }
+            });
+        }
+        for (RoomEventListener listener : LISTENERS) {
+            listener.onUserListUpdate(roomId, change, delta, fullList);
         }
     }
 
     /**
-     * 添加用户列表轮询请求
+     * 无法给出增量时，所有等待者和推送通道收到完整在线列表，与其他通知一样按房间顺序执行
      *
      * @param roomId 聊天室ID
-     * @param request 用户列表轮询请求
-     */
-    public static void addUserListRequest(String roomId, DeferredResult<ApiResponse<PollResult>> request) {
-        USER_LIST_REQUESTS.computeIfAbsent(roomId, k -> new CopyOnWriteArrayList<>()).add(request);
-        request.onCompletion(() -> {
-            List<DeferredResult<ApiResponse<PollResult>>> requests = USER_LIST_REQUESTS.get(roomId);
-            if (requests != null) {
-                requests.remove(request);
-            }
-        });
+     * @param snapshot 完整在线列表
+     */
+    public static void notifyUserListReset(String roomId, PresenceManager.Snapshot snapshot) {
+        FanoutExecutor executor = fanoutExecutor;
+        if (executor != null) {
+            executor.execute(roomId, () -> deliverUserListReset(roomId, snapshot));
+        } else {
+            deliverUserListReset(roomId, snapshot);
+        }
+    }
+
+    private static void deliverUserListReset(String roomId, PresenceManager.Snapshot snapshot) {
+        PollResult result = createPresenceSnapshotResult(snapshot.getUsers(), snapshot.getVersion());
+        ApiResponse<PollResult> response = SharedApiResponse.of(result);
+        USER_LIST_REQUESTS.forEach(roomId, waiter -> waiter.result.setResult(response));
+        for (RoomEventListener listener : LISTENERS) {
+            listener.onUserListUpdate(roomId, null, result, () -> result);
+        }
     }
 
     /**
-     * 通知用户列表更新
+     * 通知房间已删除
+     * 等待中的用户列表请求收到空列表，推送通道收到删除事件；在该房间之前的消息和在线列表通知之后执行
      *
      * @param roomId 聊天室ID
-     * @param result 用户列表更新结果
-     */
-    public static void notifyUserListUpdate(String roomId, PollResult result) {
-        List<DeferredResult<ApiResponse<PollResult>>> requests = USER_LIST_REQUESTS.get(roomId);
-        if (requests != null && !requests.isEmpty()) {
-            log.info("通知用户列表更新: roomId={}, users={}, requests={}", 
-                roomId, result.getOnlineUsers(), requests.size());
-            // 创建新的结果对象，避免共享引用
-            PollResult newResult = new PollResult();
-            newResult.setOnlineUsers(new HashSet<>(result.getOnlineUsers()));
-            newResult.setMessages(Collections.emptyList());
-            newResult.setLastMessageId(null);
-            
-            requests.forEach(request -> {
-                if (!request.isSetOrExpired()) {
-                    request.setResult(ApiResponse.success(newResult));
-                }
-            });
-            requests.clear();
-            USER_LIST_REQUESTS.remove(roomId);
+     */
+    public static void notifyRoomDeleted(String roomId) {
+        FanoutExecutor executor = fanoutExecutor;
+        if (executor != null) {
+            executor.execute(roomId, () -> deliverRoomDeleted(roomId));
         } else {
-            log.info("没有等待的用户列表请求: roomId={}", roomId);
+            deliverRoomDeleted(roomId);
+        }
+    }
+
+    private static void deliverRoomDeleted(String roomId) {
+        if (USER_LIST_REQUESTS.contains(roomId)) {
+            ApiResponse<PollResult> response = SharedApiResponse.of(createPresenceSnapshotResult(Collections.emptySet(), 0L));
+            USER_LIST_REQUESTS.forEach(roomId, waiter -> waiter.result.setResult(response));
+        }
+        for (RoomEventListener listener : LISTENERS) {
+            listener.onRoomDeleted(roomId);
+        }
+    }
+
+    /**
+     * 创建完整在线列表结果
+     *
+     * @param users 在线用户
+     * @param presenceVersion 在线列表版本号
+     * @return 在线列表结果
+     */
+    public static PollResult createPresenceSnapshotResult(Set<String> users, long presenceVersion) {
+        PollResult result = new PollResult();
+        result.setOnlineUsers(users);
+        result.setPresenceVersion(presenceVersion);
+        result.setMessages(Collections.emptyList());
+        return result;
+    }
+
+    /**
+     * 创建在线列表增量结果
+     *
+     * @param change 在线列表变化
+     * @return 在线列表结果
+     */
+    public static PollResult createPresenceDeltaResult(PresenceChange change) {
+        PollResult result = new PollResult();
+        result.setPresenceVersion(change.getVersion());
+        result.setJoined(change.getJoined());
+        result.setLeft(change.getLeft());
+        result.setMessages(Collections.emptyList());
+        return result;
+    }
+
+    /**
+     * 用户列表长轮询请求及其在线列表版本号
+     */
+    private static class UserListWaiter {
+        private final DeferredResult<ApiResponse<PollResult>> result;
+        private final long presenceVersion;
+
+        UserListWaiter(DeferredResult<ApiResponse<PollResult>> result, long presenceVersion) {
+            this.result = result;
+            this.presenceVersion = presenceVersion;
+        }
+    }
+
+    /**
+     * 消息长轮询请求及其游标
+     */
+    private static class MessageWaiter {
+        private final DeferredResult<ApiResponse<PollResult>> result;
+        private final long lastMessageId;
+
+        MessageWaiter(DeferredResult<ApiResponse<PollResult>> result, long lastMessageId) {
+            this.result = result;
+            this.lastMessageId = lastMessageId;
         }
     }
-} 
\ No newline at end of file
+}
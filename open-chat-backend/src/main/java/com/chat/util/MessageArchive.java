@@ -0,0 +1,437 @@
+package com.chat.util;
+
+import com.baomidou.mybatisplus.core.conditions.query.LambdaQueryWrapper;
+import com.chat.mapper.ChatMessageMapper;
+import com.chat.model.entity.ChatMessage;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Pattern;
+
+/**
+ * 冷消息归档
+ * 每个聊天室一个目录，其中是按ID升序追加的段文件（见 {@link ArchiveSegment}），文件名为段内第一条消息的ID；
+ * 最后一个段为活动段，写满 segment-bytes 后压缩封存。
+ * 迁移任务定期把早于 cold-days 的消息按聊天室、按ID升序追加到归档并刷盘后，再从数据库中删除；
+ * 中断后重新执行时，先删除已归档但还留在数据库中的消息。
+ * 历史消息在数据库中不够一页时从归档补齐，返回的消息与数据库中的字段相同。
+ * 多节点部署时归档目录须为共享存储，迁移由获得 Redis 锁的节点执行，其他节点读取时发现目录变化后重新加载
+ *
+ * @author chat
+ * @since 2024-01-01
+ */
+@Slf4j
+@Component
+@ConditionalOnProperty(name = "chat.message.store", havingValue = "mysql", matchIfMissing = true)
+public class MessageArchive implements MetricsSource {
+
+    private static final String LOCK_KEY = "chat:archive:lock";
+    private static final Pattern ROOM_ID = Pattern.compile("[A-Za-z0-9_-]+");
+    private static final long DAY_MILLIS = 86400000L;
+    /** 每次迁移处理的最大聊天室数 */
+    private static final int ROOM_SCAN_LIMIT = 100;
+
+    private final ChatMessageMapper chatMessageMapper;
+    private final RedisUtil redisUtil;
+
+    /** 已加载的聊天室归档 */
+    private final Map<String, RoomArchive> rooms = new ConcurrentHashMap<>();
+
+    private final LongAdder moved = new LongAdder();
+    private final LongAdder sealed = new LongAdder();
+    private final LongAdder reads = new LongAdder();
+    private final LongAdder readMessages = new LongAdder();
+    private final LongAdder reloads = new LongAdder();
+
+    private ScheduledExecutorService scheduler;
+
+    /** 是否启用归档 */
+    @Value("${chat.archive.enabled:false}")
+    private boolean enabled;
+
+    /** 归档目录 */
+    @Value("${chat.archive.dir:./data/archive}")
+    private String dir;
+
+    /** 早于该天数的消息迁移到归档 */
+    @Value("${chat.archive.cold-days:90}")
+    private long coldDays;
+
+    /** 活动段封存的大小（字节） */
+    @Value("${chat.archive.segment-bytes:8388608}")
+    private long segmentBytes;
+
+    /** 每块的消息数，即稀疏索引的间隔 */
+    @Value("${chat.archive.block-records:128}")
+    private int blockRecords;
+
+    /** 迁移间隔（秒） */
+    @Value("${chat.archive.move-interval:3600}")
+    private long moveInterval;
+
+    /** 每批迁移的消息数 */
+    @Value("${chat.archive.move-batch:1000}")
+    private int moveBatch;
+
+    /** 每批之间的间隔（毫秒） */
+    @Value("${chat.archive.move-batch-interval:50}")
+    private long moveBatchInterval;
+
+    public MessageArchive(ChatMessageMapper chatMessageMapper, RedisUtil redisUtil) {
+        this.chatMessageMapper = chatMessageMapper;
+        this.redisUtil = redisUtil;
+    }
+
+    @PostConstruct
+    public void init() {
+        if (!enabled) {
+            return;
+        }
+        File root = new File(dir);
+        if (!root.isDirectory() && !root.mkdirs()) {
+            throw new IllegalStateException("Failed to create archive directory: " + root.getAbsolutePath());
+        }
+        scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "message-archive");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleWithFixedDelay(this::move, moveInterval, moveInterval, TimeUnit.SECONDS);
+    }
+
+    @PreDestroy
+    public void destroy() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+        }
+        rooms.values().forEach(RoomArchive::close);
+        rooms.clear();
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * 读取聊天室归档中区间 (afterId, beforeId) 内的消息
+     *
+     * @param roomId 聊天室ID
+     * @param afterId 下界（不包含），为空时不限
+     * @param beforeId 上界（不包含），为空时不限
+     * @param limit 最多条数
+     * @param descending 是否从新到旧读取
+     * @return 按读取顺序排列的消息，未启用或没有归档时为空列表
+     */
+    public List<ChatMessage> read(String roomId, Long afterId, Long beforeId, int limit, boolean descending) {
+        List<ChatMessage> result = new ArrayList<>();
+        if (!enabled || limit <= 0) {
+            return result;
+        }
+        RoomArchive archive = room(roomId, false);
+        if (archive == null) {
+            return result;
+        }
+        reads.increment();
+        try {
+            archive.read(afterId != null ? afterId : 0L, beforeId != null ? beforeId : Long.MAX_VALUE,
+                    limit, descending, result);
+        } catch (IOException e) {
+            log.error("Failed to read message archive: roomId={}", roomId, e);
+        }
+        readMessages.add(result.size());
+        return result;
+    }
+
+    /**
+     * 删除聊天室的归档
+     *
+     * @param roomId 聊天室ID
+     */
+    public void deleteRoom(String roomId) {
+        if (!enabled || !ROOM_ID.matcher(roomId).matches()) {
+            return;
+        }
+        RoomArchive archive = rooms.remove(roomId);
+        if (archive != null) {
+            archive.close();
+        }
+        File roomDir = new File(dir, roomId);
+        File[] files = roomDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (!file.delete()) {
+                    log.warn("Failed to delete archive file: {}", file);
+                }
+            }
+        }
+        if (roomDir.exists() && !roomDir.delete()) {
+            log.warn("Failed to delete archive directory: {}", roomDir);
+        }
+    }
+
+    @Override
+    public String getMetricsName() {
+        return "archive";
+    }
+
+    @Override
+    public Map<String, Object> getMetrics() {
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        metrics.put("enabled", enabled);
+        metrics.put("loadedRooms", rooms.size());
+        metrics.put("moved", moved.sum());
+        metrics.put("segmentsSealed", sealed.sum());
+        metrics.put("reads", reads.sum());
+        metrics.put("readMessages", readMessages.sum());
+        metrics.put("reloads", reloads.sum());
+        return metrics;
+    }
+
+    /**
+     * 获取聊天室归档，目录在其他节点上发生变化时重新加载
+     *
+     * @param create 不存在时是否创建目录
+     * @return 聊天室归档，不存在且不创建时返回null
+     */
+    private RoomArchive room(String roomId, boolean create) {
+        if (!ROOM_ID.matcher(roomId).matches()) {
+            return null;
+        }
+        RoomArchive archive = rooms.get(roomId);
+        if (archive != null) {
+            return archive;
+        }
+        File roomDir = new File(dir, roomId);
+        if (!roomDir.isDirectory()) {
+            if (!create) {
+                return null;
+            }
+            if (!roomDir.mkdirs() && !roomDir.isDirectory()) {
+                throw new IllegalStateException("Failed to create archive directory: " + roomDir);
+            }
+        }
+        return rooms.computeIfAbsent(roomId, key -> new RoomArchive(roomDir));
+    }
+
+    /**
+     * 把早于 cold-days 的消息迁移到归档
+     */
+    private void move() {
+        // 每次运行使用不同的令牌，只释放自己持有的锁
+        String token = UUID.randomUUID().toString();
+        if (!redisUtil.setIfAbsent(LOCK_KEY, token, Math.max(moveInterval / 2, 60))) {
+            return;
+        }
+        try {
+            long cutoff = MessageIdGenerator.minId(System.currentTimeMillis() - coldDays * DAY_MILLIS);
+            for (String roomId : chatMessageMapper.selectRoomsBefore(cutoff, ROOM_SCAN_LIMIT)) {
+                // 运行超过锁的有效期后锁可能已被其他节点获取，停止迁移，避免重复归档
+                if (!token.equals(redisUtil.get(LOCK_KEY))) {
+                    log.warn("Archive lock expired, stop moving messages");
+                    return;
+                }
+                moveRoom(roomId, cutoff);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            log.error("Failed to move messages to archive", e);
+        } finally {
+            try {
+                redisUtil.delIfEquals(LOCK_KEY, token);
+            } catch (Exception ignored) {
+                // 锁到期后自动释放
+            }
+        }
+    }
+
+    private void moveRoom(String roomId, long cutoff) throws IOException, InterruptedException {
+        RoomArchive archive = room(roomId, true);
+        if (archive == null) {
+            log.warn("Invalid room id for archive: {}", roomId);
+            return;
+        }
+        long lastId = archive.getLastId();
+        // 上次追加后未来得及从数据库中删除的消息
+        if (lastId > 0) {
+            while (chatMessageMapper.deleteBefore(roomId, Math.min(lastId + 1, cutoff), moveBatch) >= moveBatch) {
+                Thread.sleep(moveBatchInterval);
+            }
+        }
+        while (true) {
+            List<ChatMessage> batch = chatMessageMapper.selectList(new LambdaQueryWrapper<ChatMessage>()
+                    .eq(ChatMessage::getRoomId, roomId)
+                    .gt(ChatMessage::getId, lastId)
+                    .lt(ChatMessage::getId, cutoff)
+                    .orderByAsc(ChatMessage::getId)
+                    .last("LIMIT " + moveBatch));
+            if (batch.isEmpty()) {
+                return;
+            }
+            archive.append(batch);
+            long last = batch.get(batch.size() - 1).getId();
+            // 区间内已逻辑删除的消息一并删除
+            chatMessageMapper.deleteRange(roomId, lastId, last);
+            moved.add(batch.size());
+            lastId = last;
+            if (batch.size() < moveBatch) {
+                return;
+            }
+            if (moveBatchInterval > 0) {
+                Thread.sleep(moveBatchInterval);
+            }
+        }
+    }
+
+    /**
+     * 一个聊天室的归档：按ID升序的封存段，最后可能有一个活动段
+     */
+    private final class RoomArchive {
+        private final File roomDir;
+        private final List<ArchiveSegment> segments = new ArrayList<>();
+        private ArchiveSegment active;
+        /** 加载时的目录修改时间和活动段大小，用于发现其他节点的写入 */
+        private long loadedModified;
+        private long loadedActiveLength;
+        private boolean loaded;
+
+        RoomArchive(File roomDir) {
+            this.roomDir = roomDir;
+        }
+
+        synchronized void read(long afterId, long beforeId, int limit, boolean descending,
+                               List<ChatMessage> result) throws IOException {
+            refresh();
+            int start = result.size();
+            List<ArchiveSegment> all = all();
+            for (int i = 0; i < all.size() && result.size() - start < limit; i++) {
+                ArchiveSegment segment = all.get(descending ? all.size() - 1 - i : i);
+                if (segment.getLastId() > afterId && segment.getFirstId() < beforeId) {
+                    segment.read(roomDir.getName(), afterId, beforeId, limit - (result.size() - start),
+                            descending, result);
+                }
+            }
+        }
+
+        synchronized void append(List<ChatMessage> messages) throws IOException {
+            refresh();
+            if (active == null) {
+                active = ArchiveSegment.openActive(segmentFile(messages.get(0).getId(), ArchiveSegment.ACTIVE_SUFFIX),
+                        blockRecords);
+            }
+            active.append(messages, blockRecords);
+            if (active.getSize() >= segmentBytes) {
+                segments.add(active.seal(segmentFile(active.getFirstId(), ArchiveSegment.SEALED_SUFFIX)));
+                active = null;
+                sealed.increment();
+            }
+            loadedModified = roomDir.lastModified();
+            loadedActiveLength = active != null ? active.getSize() : 0;
+        }
+
+        synchronized long getLastId() throws IOException {
+            refresh();
+            if (active != null && !active.isEmpty()) {
+                return active.getLastId();
+            }
+            return segments.isEmpty() ? 0L : segments.get(segments.size() - 1).getLastId();
+        }
+
+        synchronized void close() {
+            for (ArchiveSegment segment : all()) {
+                try {
+                    segment.close();
+                } catch (IOException e) {
+                    log.warn("Failed to close archive segment: {}", segment.getFile(), e);
+                }
+            }
+            segments.clear();
+            active = null;
+            loaded = false;
+        }
+
+        private List<ArchiveSegment> all() {
+            if (active == null) {
+                return segments;
+            }
+            List<ArchiveSegment> all = new ArrayList<>(segments);
+            all.add(active);
+            return all;
+        }
+
+        /**
+         * 首次访问或目录、活动段在其他节点上被修改后重新加载
+         */
+        private void refresh() throws IOException {
+            if (loaded && roomDir.lastModified() == loadedModified
+                    && (active == null || active.getFile().length() == loadedActiveLength)) {
+                return;
+            }
+            if (loaded) {
+                reloads.increment();
+                close();
+            }
+            loadedModified = roomDir.lastModified();
+            File[] files = roomDir.listFiles();
+            if (files == null) {
+                files = new File[0];
+            }
+            Arrays.sort(files);
+            List<String> sealedNames = new ArrayList<>();
+            for (File file : files) {
+                if (file.getName().endsWith(ArchiveSegment.SEALED_SUFFIX)) {
+                    segments.add(ArchiveSegment.openSealed(file));
+                    sealedNames.add(baseName(file));
+                }
+            }
+            for (File file : files) {
+                if (!file.getName().endsWith(ArchiveSegment.ACTIVE_SUFFIX)) {
+                    continue;
+                }
+                if (sealedNames.contains(baseName(file))) {
+                    // 封存后未来得及删除的活动段
+                    deleteQuietly(file);
+                } else if (active == null) {
+                    active = ArchiveSegment.openActive(file, blockRecords);
+                } else {
+                    log.warn("Unexpected archive segment: {}", file);
+                }
+            }
+            loadedActiveLength = active != null ? active.getFile().length() : 0;
+            loaded = true;
+        }
+
+        private File segmentFile(long firstId, String suffix) {
+            return new File(roomDir, String.format("%020d", firstId) + suffix);
+        }
+    }
+
+    private static String baseName(File file) {
+        String name = file.getName();
+        int dot = name.lastIndexOf('.');
+        return dot > 0 ? name.substring(0, dot) : name;
+    }
+
+    private static void deleteQuietly(File file) {
+        if (!file.delete()) {
+            log.warn("Failed to delete archive file: {}", file);
+        }
+    }
+}
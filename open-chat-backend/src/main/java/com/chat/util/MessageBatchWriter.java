@@ -0,0 +1,289 @@
+package com.chat.util;
+
+import com.chat.model.entity.ChatMessage;
+import com.chat.store.MessageStore;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 消息批量写入器（write-behind）
+ * 发送请求只把消息放入有界队列，由后台线程按条数或等待时间攒批，用一条多行 INSERT 一次提交，
+ * 把每条消息一次事务提交合并为每批一次。队列写满时发送方最多等待 offer-timeout，
+ * 超时即拒绝发送，避免数据库跟不上时无限堆积。关闭时先停止接收，再把队列中的消息全部写完。
+ * 发送方可以先 {@link #reserve()} 预留队列位置，消息对客户端可见之前就得知是否被拒绝
+ *
+ * @author chat
+ * @since 2024-01-01
+ */
+@Slf4j
+@Component
+public class MessageBatchWriter implements MetricsSource {
+
+    private final MessageStore messageStore;
+
+    /** 是否启用批量写入 */
+    @Value("${chat.message.write-behind.enabled:false}")
+    private boolean enabled;
+
+    /** 每批最多写入的消息数 */
+    @Value("${chat.message.write-behind.batch-size:100}")
+    private int batchSize;
+
+    /** 攒批的最长等待时间（毫秒） */
+    @Value("${chat.message.write-behind.linger-ms:5}")
+    private long lingerMs;
+
+    /** 队列容量 */
+    @Value("${chat.message.write-behind.queue-capacity:10000}")
+    private int queueCapacity;
+
+    /** 队列已满时发送方的最长等待时间（毫秒） */
+    @Value("${chat.message.write-behind.offer-timeout-ms:1000}")
+    private long offerTimeoutMs;
+
+    private BlockingQueue<PendingMessage> queue;
+    /** 队列中未被预留的位置，写入线程从队列取出消息后归还 */
+    private Semaphore slots;
+    private Thread writerThread;
+    private volatile boolean running;
+
+    private final LongAdder batches = new LongAdder();
+    private final LongAdder messages = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder flushNanos = new LongAdder();
+    private final AtomicLong maxFlushNanos = new AtomicLong();
+    private final AtomicLong maxBatchSize = new AtomicLong();
+
+    public MessageBatchWriter(MessageStore messageStore) {
+        this.messageStore = messageStore;
+    }
+
+    @PostConstruct
+    public void init() {
+        if (!enabled) {
+            return;
+        }
+        queue = new ArrayBlockingQueue<>(queueCapacity);
+        slots = new Semaphore(queueCapacity);
+        running = true;
+        writerThread = new Thread(this::run, "message-batch-writer");
+        writerThread.start();
+        log.info("消息批量写入已启用: batchSize={}, lingerMs={}, queueCapacity={}", batchSize, lingerMs, queueCapacity);
+    }
+
+    @PreDestroy
+    public void destroy() throws InterruptedException {
+        if (!enabled) {
+            return;
+        }
+        running = false;
+        writerThread.interrupt();
+        writerThread.join(TimeUnit.SECONDS.toMillis(30));
+        log.info("消息批量写入已停止，剩余未写入: {}", queue.size());
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * 提交消息，返回该消息所在批次提交后完成的 Future
+     *
+     * @param message 消息
+     * @return 写入完成的消息（已设置ID）
+     */
+    public CompletableFuture<ChatMessage> submit(ChatMessage message) {
+        return reserve().submit(message);
+    }
+
+    /**
+     * 预留一个队列位置，队列已满时最多等待 offer-timeout，超时或已停止时抛出异常。
+     * 预留之后必须调用 {@link Reservation#submit} 或 {@link Reservation#cancel} 之一
+     *
+     * @return 队列位置
+     */
+    public Reservation reserve() {
+        if (!running) {
+            throw new IllegalStateException("Message batch writer is not running");
+        }
+        try {
+            if (!slots.tryAcquire(offerTimeoutMs, TimeUnit.MILLISECONDS)) {
+                rejected.increment();
+                throw new RuntimeException("Message write queue is full");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while queueing message", e);
+        }
+        return new Reservation();
+    }
+
+    @Override
+    public String getMetricsName() {
+        return "messageWriter";
+    }
+
+    @Override
+    public Map<String, Object> getMetrics() {
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        long batchCount = batches.sum();
+        long messageCount = messages.sum();
+        metrics.put("enabled", enabled);
+        metrics.put("queueSize", queue != null ? queue.size() : 0);
+        metrics.put("batches", batchCount);
+        metrics.put("messages", messageCount);
+        metrics.put("rejected", rejected.sum());
+        metrics.put("failed", failed.sum());
+        metrics.put("avgBatchSize", batchCount > 0 ? (double) messageCount / batchCount : 0D);
+        metrics.put("maxBatchSize", maxBatchSize.get());
+        metrics.put("avgFlushMillis", batchCount > 0 ? flushNanos.sum() / 1e6 / batchCount : 0D);
+        metrics.put("maxFlushMillis", maxFlushNanos.get() / 1e6);
+        return metrics;
+    }
+
+    /**
+     * 后台写入循环：取到第一条后最多再等待 lingerMs 攒满一批
+     */
+    private void run() {
+        List<PendingMessage> batch = new ArrayList<>(batchSize);
+        // 停止接收后继续等待已预留位置的消息提交
+        while (running || slots.availablePermits() < queueCapacity) {
+            try {
+                PendingMessage first = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(lingerMs);
+                while (batch.size() < batchSize) {
+                    queue.drainTo(batch, batchSize - batch.size());
+                    long remaining = deadline - System.nanoTime();
+                    if (batch.size() >= batchSize || remaining <= 0 || !running) {
+                        break;
+                    }
+                    PendingMessage next = queue.poll(remaining, TimeUnit.NANOSECONDS);
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                }
+            } catch (InterruptedException e) {
+                // 关闭时被中断，继续把已取出的和队列中剩余的消息写完
+            }
+            if (!batch.isEmpty()) {
+                slots.release(batch.size());
+                flush(batch);
+                batch.clear();
+            }
+        }
+    }
+
+    /**
+     * 写入一批消息；整批失败时逐条重试，只让真正失败的消息报错
+     */
+    private void flush(List<PendingMessage> batch) {
+        List<ChatMessage> rows = new ArrayList<>(batch.size());
+        for (PendingMessage pending : batch) {
+            rows.add(pending.message);
+        }
+        long start = System.nanoTime();
+        try {
+            messageStore.appendBatch(rows);
+            recordFlush(batch.size(), System.nanoTime() - start);
+            for (PendingMessage pending : batch) {
+                pending.future.complete(pending.message);
+            }
+        } catch (Exception e) {
+            log.error("Failed to insert message batch, retrying one by one: size={}", batch.size(), e);
+            for (PendingMessage pending : batch) {
+                try {
+                    messageStore.append(pending.message);
+                    pending.future.complete(pending.message);
+                } catch (Exception ex) {
+                    failed.increment();
+                    pending.future.completeExceptionally(ex);
+                }
+            }
+        }
+    }
+
+    private void recordFlush(int size, long nanos) {
+        batches.increment();
+        messages.add(size);
+        flushNanos.add(nanos);
+        maxFlushNanos.accumulateAndGet(nanos, Math::max);
+        maxBatchSize.accumulateAndGet(size, Math::max);
+    }
+
+    /**
+     * 预留的队列位置，只能使用一次
+     */
+    public class Reservation {
+        private final AtomicBoolean used = new AtomicBoolean();
+
+        private Reservation() {
+        }
+
+        /**
+         * 提交消息到预留的位置，不会被拒绝
+         *
+         * @param message 消息
+         * @return 写入完成的消息（已设置ID）
+         */
+        public CompletableFuture<ChatMessage> submit(ChatMessage message) {
+            if (!used.compareAndSet(false, true)) {
+                throw new IllegalStateException("Reservation already used");
+            }
+            LocalDateTime now = LocalDateTime.now();
+            if (message.getCreatedAt() == null) {
+                message.setCreatedAt(now);
+            }
+            message.setUpdatedAt(now);
+            message.setDeleted(false);
+
+            PendingMessage pending = new PendingMessage(message);
+            // 已预留位置，队列一定能放下
+            queue.add(pending);
+            return pending.future;
+        }
+
+        /**
+         * 放弃预留的位置，已提交时不做任何事
+         */
+        public void cancel() {
+            if (used.compareAndSet(false, true)) {
+                slots.release();
+            }
+        }
+    }
+
+    /**
+     * 等待写入的消息
+     */
+    private static class PendingMessage {
+        private final ChatMessage message;
+        private final CompletableFuture<ChatMessage> future = new CompletableFuture<>();
+
+        PendingMessage(ChatMessage message) {
+            this.message = message;
+        }
+    }
+}
@@ -0,0 +1,121 @@
+package com.chat.util;
+
+import com.baomidou.mybatisplus.core.incrementer.IdentifierGenerator;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 消息ID生成器（时间 + 序号 + 节点）
+ * 53位ID，前端 Number 可以无损表示：41位毫秒时间戳 | 7位毫秒内序号 | 5位节点号。
+ * 序号放在节点号之上，同一毫秒内的ID先按序号排序，见 {@link #observe(long)}。
+ * 本节点生成的ID严格递增：时钟回拨或同一毫秒序号用完时借用下一毫秒，不等待时钟。
+ * 节点号只能通过 chat.cluster.worker-id 显式配置，启用集群时未配置则启动失败，避免两个节点取到相同的节点号后生成重复ID。
+ * 作为 MyBatis-Plus 的 IdentifierGenerator 注册，ASSIGN_ID 的实体插入时使用
+ *
+ * @author chat
+ * @since 2024-01-01
+ */
+@Slf4j
+@Component
+public class MessageIdGenerator implements IdentifierGenerator {
+
+    /** 起始时间 2024-01-01T00:00:00Z */
+    private static final long EPOCH = 1704067200000L;
+    private static final int WORKER_BITS = 5;
+    private static final int SEQUENCE_BITS = 7;
+    private static final int TIMESTAMP_SHIFT = WORKER_BITS + SEQUENCE_BITS;
+    private static final long MAX_WORKER_ID = (1L << WORKER_BITS) - 1;
+    private static final long SEQUENCE_MASK = (1L << SEQUENCE_BITS) - 1;
+
+    private final long workerId;
+
+    /** 最近一次生成或观察到的ID，节点号位固定为本节点 */
+    private final AtomicLong last = new AtomicLong();
+
+    public MessageIdGenerator(@Value("${chat.cluster.worker-id:-1}") long workerId,
+                              @Value("${chat.cluster.enabled:true}") boolean clusterEnabled) {
+        if (workerId < 0) {
+            if (clusterEnabled) {
+                throw new IllegalStateException("chat.cluster.worker-id must be set to a unique value (0-"
+                        + MAX_WORKER_ID + ") on each node when chat.cluster.enabled=true");
+            }
+            // 单节点部署，没有其他节点会使用相同的节点号
+            workerId = 0;
+            log.info("未配置 chat.cluster.worker-id，单节点部署使用节点号 0");
+        } else if (workerId > MAX_WORKER_ID) {
+            throw new IllegalArgumentException("chat.cluster.worker-id must be between 0 and " + MAX_WORKER_ID);
+        }
+        this.workerId = workerId;
+    }
+
+    @Override
+    public Number nextId(Object entity) {
+        return nextId();
+    }
+
+    /**
+     * 生成下一个ID
+     *
+     * @return 大于本节点此前生成和观察到的所有ID
+     */
+    public long nextId() {
+        while (true) {
+            long prev = last.get();
+            long now = System.currentTimeMillis() - EPOCH;
+            long prevTimestamp = prev >>> TIMESTAMP_SHIFT;
+            long next;
+            if (now > prevTimestamp) {
+                next = compose(now, 0);
+            } else {
+                long sequence = ((prev >>> WORKER_BITS) & SEQUENCE_MASK) + 1;
+                next = sequence > SEQUENCE_MASK ? compose(prevTimestamp + 1, 0) : compose(prevTimestamp, sequence);
+            }
+            if (last.compareAndSet(prev, next)) {
+                return next;
+            }
+        }
+    }
+
+    /**
+     * 记录其他节点生成的ID，之后本节点生成的ID都大于它
+     * 与混合逻辑时钟的做法一致，收到其他节点的消息后本节点的ID不会再落在其后
+     *
+     * @param id 其他节点生成的ID
+     */
+    public void observe(long id) {
+        long observed = compose(id >>> TIMESTAMP_SHIFT, (id >>> WORKER_BITS) & SEQUENCE_MASK);
+        while (true) {
+            long prev = last.get();
+            if (observed <= prev || last.compareAndSet(prev, observed)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * 从ID中取出生成时间
+     *
+     * @param id 消息ID
+     * @return 毫秒时间戳
+     */
+    public static long getTimestamp(long id) {
+        return (id >>> TIMESTAMP_SHIFT) + EPOCH;
+    }
+
+    /**
+     * 该时刻及之后生成的ID的下界，用于按时间划分ID区间
+     *
+     * @param timestamp 毫秒时间戳
+     * @return 该毫秒内最小的ID
+     */
+    public static long minId(long timestamp) {
+        return Math.max(timestamp - EPOCH, 0) << TIMESTAMP_SHIFT;
+    }
+
+    private long compose(long timestamp, long sequence) {
+        return timestamp << TIMESTAMP_SHIFT | sequence << WORKER_BITS | workerId;
+    }
+}
@@ -0,0 +1,321 @@
+package com.chat.util;
+
+import com.baomidou.mybatisplus.core.conditions.query.LambdaQueryWrapper;
+import com.chat.mapper.ChatMessageMapper;
+import com.chat.mapper.ChatRoomMapper;
+import com.chat.mapper.MessagePartitionMapper;
+import com.chat.model.dto.MessagePartition;
+import com.chat.model.entity.ChatRoom;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.time.YearMonth;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Pattern;
+
+/**
+ * 消息保留策略与分区维护
+ * 消息表按消息ID范围分区，ID的高位是生成时间（见 {@link MessageIdGenerator}），每个自然月一个分区 pYYYYMM，
+ * 另有兜底分区 pmax。维护任务定期从 pmax 中提前拆出之后几个月的分区，
+ * 并把整个分区都早于保留期的分区删除或交换到归档表 chat_message_pYYYYMM 后删除。
+ * 保留期内按聊天室配置了更短保留天数的，分批物理删除该聊天室更早的消息。
+ * 查询以保留期的起点作为ID下界，只访问保留期内的分区，未及时删除的过期消息也不会返回
+ *
+ * @author chat
+ * @since 2024-01-01
+ */
+@Slf4j
+@Component
+@ConditionalOnProperty(name = "chat.message.store", havingValue = "mysql", matchIfMissing = true)
+public class MessageRetention implements MetricsSource {
+
+    /** 多节点部署时只允许一个节点执行维护 */
+    private static final String LOCK_KEY = "chat:retention:lock";
+    private static final Pattern MONTHLY_PARTITION = Pattern.compile("p\\d{6}");
+    private static final DateTimeFormatter PARTITION_FORMAT = DateTimeFormatter.ofPattern("'p'yyyyMM");
+    private static final String MAX_PARTITION = "pmax";
+    private static final long DAY_MILLIS = 86400000L;
+
+    private final MessagePartitionMapper messagePartitionMapper;
+    private final ChatMessageMapper chatMessageMapper;
+    private final ChatRoomMapper chatRoomMapper;
+    private final RedisUtil redisUtil;
+    private final ZoneId zone = ZoneId.systemDefault();
+
+    private final LongAdder runs = new LongAdder();
+    private final LongAdder created = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder archived = new LongAdder();
+    private final LongAdder roomRowsDeleted = new LongAdder();
+    private volatile int partitionCount;
+    private volatile long lastRunAt;
+
+    /** 执行维护的线程 */
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "message-retention");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /** 全局保留天数，小于等于0时永久保留 */
+    @Value("${chat.retention.days:0}")
+    private long days;
+
+    /** 过期分区的处理方式：drop 直接删除，archive 交换到归档表后删除 */
+    @Value("${chat.retention.expired-action:drop}")
+    private String expiredAction;
+
+    /** 提前创建的月份数 */
+    @Value("${chat.retention.premake-months:3}")
+    private int premakeMonths;
+
+    /** 最新消息优先查询的月份数（不含当月），不够一页时再查更早的分区 */
+    @Value("${chat.retention.recent-months:1}")
+    private int recentMonths;
+
+    /** 维护间隔（秒） */
+    @Value("${chat.retention.maintenance-interval:3600}")
+    private long maintenanceInterval;
+
+    /** 按聊天室删除过期消息时每批的条数 */
+    @Value("${chat.retention.chunk-size:1000}")
+    private int chunkSize;
+
+    /** 每批之间的间隔（毫秒） */
+    @Value("${chat.retention.chunk-interval:50}")
+    private long chunkInterval;
+
+    public MessageRetention(MessagePartitionMapper messagePartitionMapper, ChatMessageMapper chatMessageMapper,
+                            ChatRoomMapper chatRoomMapper, RedisUtil redisUtil) {
+        this.messagePartitionMapper = messagePartitionMapper;
+        this.chatMessageMapper = chatMessageMapper;
+        this.chatRoomMapper = chatRoomMapper;
+        this.redisUtil = redisUtil;
+    }
+
+    @PostConstruct
+    public void init() {
+        scheduler.scheduleWithFixedDelay(this::maintain, 0, maintenanceInterval, TimeUnit.SECONDS);
+    }
+
+    @PreDestroy
+    public void destroy() {
+        scheduler.shutdownNow();
+    }
+
+    /**
+     * 保留期内消息的ID下界，永久保留时为0
+     *
+     * @return 查询的ID下界（包含）
+     */
+    public long getFloorId() {
+        return days > 0 ? MessageIdGenerator.minId(System.currentTimeMillis() - days * DAY_MILLIS) : 0L;
+    }
+
+    /**
+     * 最近分区的ID下界：当月及之前 recent-months 个月，不早于保留期的起点
+     *
+     * @return 查询的ID下界（包含）
+     */
+    public long getRecentFloorId() {
+        long recent = monthStartId(YearMonth.now(zone).minusMonths(recentMonths));
+        return Math.max(recent, getFloorId());
+    }
+
+    @Override
+    public String getMetricsName() {
+        return "retention";
+    }
+
+    @Override
+    public Map<String, Object> getMetrics() {
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        metrics.put("days", days);
+        metrics.put("partitions", partitionCount);
+        metrics.put("runs", runs.sum());
+        metrics.put("lastRunAt", lastRunAt);
+        metrics.put("partitionsCreated", created.sum());
+        metrics.put("partitionsDropped", dropped.sum());
+        metrics.put("partitionsArchived", archived.sum());
+        metrics.put("roomRowsDeleted", roomRowsDeleted.sum());
+        return metrics;
+    }
+
+    private void maintain() {
+        // 每次运行使用不同的令牌，只释放和续期自己持有的锁
+        String token = UUID.randomUUID().toString();
+        if (!redisUtil.setIfAbsent(LOCK_KEY, token, lockTtl())) {
+            return;
+        }
+        try {
+            runs.increment();
+            if (maintainPartitions(token) && purgeRooms(token)) {
+                lastRunAt = System.currentTimeMillis();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            log.error("Failed to maintain message retention", e);
+        } finally {
+            try {
+                redisUtil.delIfEquals(LOCK_KEY, token);
+            } catch (Exception ignored) {
+                // 锁到期后自动释放
+            }
+        }
+    }
+
+    private long lockTtl() {
+        return Math.max(maintenanceInterval / 2, 60);
+    }
+
+    /**
+     * 每一步DDL或每批删除之前续期维护锁；续期失败说明运行超过了锁的有效期，
+     * 锁可能已被其他节点获取，停止本次维护，避免两个节点同时修改分区或删除消息
+     *
+     * @return 是否仍持有锁
+     */
+    private boolean renewLock(String token) {
+        if (redisUtil.expireIfEquals(LOCK_KEY, token, lockTtl())) {
+            return true;
+        }
+        log.warn("Retention lock expired, stop maintenance");
+        return false;
+    }
+
+    /**
+     * 提前创建分区并处理过期分区
+     *
+     * @return 是否完成，锁过期时返回false
+     */
+    private boolean maintainPartitions(String token) {
+        List<MessagePartition> partitions = messagePartitionMapper.selectPartitions();
+        partitionCount = partitions.size();
+        if (partitions.isEmpty()) {
+            log.warn("chat_message 未分区，跳过分区维护，见 sql/upgrade/003_chat_message_partition.sql");
+            return true;
+        }
+
+        // 从 pmax 拆出截至 premake-months 之后的月份分区
+        long highest = 0;
+        boolean hasMax = false;
+        for (MessagePartition partition : partitions) {
+            if (MAX_PARTITION.equals(partition.getName())) {
+                hasMax = true;
+            } else {
+                highest = Math.max(highest, Long.parseLong(partition.getDescription()));
+            }
+        }
+        List<String> definitions = new ArrayList<>();
+        YearMonth last = YearMonth.now(zone).plusMonths(premakeMonths);
+        for (YearMonth month = YearMonth.now(zone); !month.isAfter(last); month = month.plusMonths(1)) {
+            long upper = monthStartId(month.plusMonths(1));
+            if (upper > highest) {
+                definitions.add("PARTITION " + month.format(PARTITION_FORMAT) + " VALUES LESS THAN (" + upper + ")");
+            }
+        }
+        if (!definitions.isEmpty()) {
+            if (!hasMax) {
+                log.warn("chat_message 没有 pmax 分区，无法创建新分区");
+            } else {
+                if (!renewLock(token)) {
+                    return false;
+                }
+                messagePartitionMapper.splitMaxPartition(String.join(", ", definitions));
+                created.add(definitions.size());
+                log.info("创建消息分区: {}", definitions);
+            }
+        }
+
+        // 上界不晚于保留期起点的分区整个过期
+        long floorId = getFloorId();
+        if (floorId <= 0) {
+            return true;
+        }
+        for (MessagePartition partition : partitions) {
+            String name = partition.getName();
+            if (!MONTHLY_PARTITION.matcher(name).matches() || Long.parseLong(partition.getDescription()) > floorId) {
+                continue;
+            }
+            if (!renewLock(token)) {
+                return false;
+            }
+            if ("archive".equalsIgnoreCase(expiredAction)) {
+                archivePartition(name);
+            } else {
+                messagePartitionMapper.dropPartition(name);
+                dropped.increment();
+                log.info("删除过期消息分区: {}, 约{}条", name, partition.getTableRows());
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 把分区交换到同名归档表后删除分区；归档表已存在时视为上次交换后中断，分区为空才删除
+     */
+    private void archivePartition(String name) {
+        String table = "chat_message_" + name;
+        if (messagePartitionMapper.tableExists(table) == 0) {
+            messagePartitionMapper.createArchiveTable(table);
+            messagePartitionMapper.removePartitioning(table);
+            messagePartitionMapper.exchangePartition(name, table);
+        } else if (messagePartitionMapper.countPartition(name) > 0) {
+            log.warn("归档表已存在且分区不为空，跳过: partition={}, table={}", name, table);
+            return;
+        }
+        messagePartitionMapper.dropPartition(name);
+        archived.increment();
+        log.info("归档过期消息分区: {} -> {}", name, table);
+    }
+
+    /**
+     * 分批删除配置了保留天数的聊天室中早于保留期的消息
+     *
+     * @return 是否完成，锁过期时返回false
+     */
+    private boolean purgeRooms(String token) throws InterruptedException {
+        List<ChatRoom> rooms = chatRoomMapper.selectList(new LambdaQueryWrapper<ChatRoom>()
+                .select(ChatRoom::getId, ChatRoom::getRetentionDays)
+                .isNotNull(ChatRoom::getRetentionDays));
+        long now = System.currentTimeMillis();
+        for (ChatRoom room : rooms) {
+            if (room.getRetentionDays() <= 0) {
+                continue;
+            }
+            long beforeId = MessageIdGenerator.minId(now - room.getRetentionDays() * DAY_MILLIS);
+            while (true) {
+                if (!renewLock(token)) {
+                    return false;
+                }
+                int rows = chatMessageMapper.deleteBefore(room.getId(), beforeId, chunkSize);
+                roomRowsDeleted.add(rows);
+                if (rows < chunkSize) {
+                    break;
+                }
+                if (chunkInterval > 0) {
+                    Thread.sleep(chunkInterval);
+                }
+            }
+        }
+        return true;
+    }
+
+    private long monthStartId(YearMonth month) {
+        return MessageIdGenerator.minId(month.atDay(1).atStartOfDay(zone).toInstant().toEpochMilli());
+    }
+}
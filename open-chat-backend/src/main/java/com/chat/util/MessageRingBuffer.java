@@ -0,0 +1,157 @@
+package com.chat.util;
+
+import com.chat.model.vo.MessageVO;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * 单个聊天室的最近消息环形缓冲区
+ * 消息按ID升序保存，容量满时覆盖最旧的消息。调用方保证缓冲区从创建起收到该房间的所有消息
+ * （见 RecentMessageCache），floorId 之后的消息都在缓冲区中，
+ * 因此游标不早于 floorId 时，"游标之后的消息"可以完全由缓冲区给出。
+ * 非线程安全，由调用方加锁
+ *
+ * @author chat
+ * @since 2024-01-01
+ */
+public class MessageRingBuffer {
+
+    private final MessageVO[] buffer;
+    /** 最旧消息所在位置 */
+    private int head;
+    private int size;
+    /** ID不小于该值的消息都保存在缓冲区中 */
+    private long floorId = Long.MAX_VALUE;
+    /** 缓冲区中消息的估算字节数 */
+    private long estimatedBytes;
+
+    public MessageRingBuffer(int capacity) {
+        this.buffer = new MessageVO[capacity];
+    }
+
+    /**
+     * 追加消息，乱序到达的消息插入到对应位置
+     *
+     * @param message 消息
+     * @return 估算字节数的变化量
+     */
+    public long add(MessageVO message) {
+        long before = estimatedBytes;
+        if (size == 0 && floorId == Long.MAX_VALUE) {
+            floorId = message.getId();
+        }
+        if (message.getId() < floorId) {
+            // 早于连续区间的消息，缓冲区无法保证其前后消息完整
+            return 0;
+        }
+        int index = size;
+        if (size > 0 && message.getId() <= get(size - 1).getId()) {
+            index = search(message.getId());
+            if (index < size && get(index).getId().equals(message.getId())) {
+                return 0;
+            }
+            if (index == 0 && size == buffer.length) {
+                // 比保留的所有消息都旧，放入后会立即被淘汰，连续区间随之后移
+                floorId = message.getId() + 1;
+                return 0;
+            }
+        }
+        if (size == buffer.length) {
+            MessageVO evicted = buffer[head];
+            estimatedBytes -= estimateBytes(evicted);
+            floorId = evicted.getId() + 1;
+            buffer[head] = null;
+            head = (head + 1) % buffer.length;
+            size--;
+            index--;
+        }
+        for (int i = size; i > index; i--) {
+            set(i, get(i - 1));
+        }
+        set(index, message);
+        size++;
+        estimatedBytes += estimateBytes(message);
+        return estimatedBytes - before;
+    }
+
+    /**
+     * 获取 lastMessageId 之后最新的 limit 条消息
+     * 只有当结果能证明完整时才返回：游标不早于 floorId，或游标之后的消息超过 limit 条
+     *
+     * @param lastMessageId 最后一条消息ID，小于等于0代表获取最新消息
+     * @param limit 最多返回的条数
+     * @return 按ID升序排列的消息，无法确定时返回null
+     */
+    public List<MessageVO> after(long lastMessageId, int limit) {
+        if (size == 0) {
+            return null;
+        }
+        int from = lastMessageId > 0 ? search(lastMessageId + 1) : 0;
+        int count = size - from;
+        boolean covered = lastMessageId > 0 && lastMessageId >= floorId;
+        if (!covered && count <= limit) {
+            return null;
+        }
+        if (count == 0) {
+            return Collections.emptyList();
+        }
+        int start = Math.max(from, size - limit);
+        List<MessageVO> result = new ArrayList<>(size - start);
+        for (int i = start; i < size; i++) {
+            result.add(get(i));
+        }
+        return result;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public long getEstimatedBytes() {
+        return estimatedBytes;
+    }
+
+    /**
+     * 二分查找第一个ID不小于 id 的位置
+     */
+    private int search(long id) {
+        int low = 0;
+        int high = size;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (get(mid).getId() < id) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    private MessageVO get(int index) {
+        return buffer[(head + index) % buffer.length];
+    }
+
+    private void set(int index, MessageVO message) {
+        buffer[(head + index) % buffer.length] = message;
+    }
+
+    /**
+     * 估算单条消息占用的内存
+     */
+    private static long estimateBytes(MessageVO message) {
+        long bytes = 128;
+        if (message.getContent() != null) {
+            bytes += message.getContent().length() * 2L;
+        }
+        if (message.getUsername() != null) {
+            bytes += message.getUsername().length() * 2L;
+        }
+        if (message.getRenderedJson() != null) {
+            bytes += message.getRenderedJson().length;
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,27 @@
+package com.chat.util;
+
+import java.util.Map;
+
+/**
+ * 运行指标来源
+ * 实现该接口的组件会在 /api/metrics 中输出自己的指标
+ *
+ * @author chat
+ * @since 2024-01-01
+ */
+public interface MetricsSource {
+
+    /**
+     * 指标分组名
+     *
+     * @return 分组名
+     */
+    String getMetricsName();
+
+    /**
+     * 当前指标快照
+     *
+     * @return 指标名到指标值的映射
+     */
+    Map<String, Object> getMetrics();
+}
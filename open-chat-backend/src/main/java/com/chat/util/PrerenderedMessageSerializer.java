@@ -0,0 +1,74 @@
+package com.chat.util;
+
+import com.chat.model.vo.MessageVO;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.BeanDescription;
+import com.fasterxml.jackson.databind.JsonMappingException;
+import com.fasterxml.jackson.databind.JsonSerializer;
+import com.fasterxml.jackson.databind.SerializationConfig;
+import com.fasterxml.jackson.databind.SerializerProvider;
+import com.fasterxml.jackson.databind.jsontype.TypeSerializer;
+import com.fasterxml.jackson.databind.ser.BeanSerializerModifier;
+import com.fasterxml.jackson.databind.ser.ResolvableSerializer;
+import com.fasterxml.jackson.databind.ser.std.StdSerializer;
+
+import java.io.IOException;
+
+/**
+ * MessageVO 的序列化器
+ * 消息已有预先渲染的 JSON 时原样写出，不再逐字段序列化；否则交给默认的 Bean 序列化器。
+ * 通过 {@link #modifier()} 注册到 Web 使用的 ObjectMapper
+ *
+ * @author chat
+ * @since 2024-01-01
+ */
+public class PrerenderedMessageSerializer extends StdSerializer<MessageVO> implements ResolvableSerializer {
+
+    private final JsonSerializer<Object> delegate;
+
+    public PrerenderedMessageSerializer(JsonSerializer<Object> delegate) {
+        super(MessageVO.class);
+        this.delegate = delegate;
+    }
+
+    /**
+     * 用本序列化器包装 MessageVO 的默认序列化器
+     */
+    public static BeanSerializerModifier modifier() {
+        return new BeanSerializerModifier() {
+            @Override
+            @SuppressWarnings("unchecked")
+            public JsonSerializer<?> modifySerializer(SerializationConfig config, BeanDescription beanDesc,
+                                                      JsonSerializer<?> serializer) {
+                if (beanDesc.getBeanClass() == MessageVO.class) {
+                    return new PrerenderedMessageSerializer((JsonSerializer<Object>) serializer);
+                }
+                return serializer;
+            }
+        };
+    }
+
+    @Override
+    public void serialize(MessageVO value, JsonGenerator gen, SerializerProvider provider) throws IOException {
+        byte[] json = value.getRenderedJson();
+        if (json != null) {
+            gen.writeRawValue(new RawJson(json));
+        } else {
+            delegate.serialize(value, gen, provider);
+        }
+    }
+
+    @Override
+    public void serializeWithType(MessageVO value, JsonGenerator gen, SerializerProvider provider,
+                                  TypeSerializer typeSer) throws IOException {
+        // 带类型信息时预先渲染的 JSON 不适用
+        delegate.serializeWithType(value, gen, provider, typeSer);
+    }
+
+    @Override
+    public void resolve(SerializerProvider provider) throws JsonMappingException {
+        if (delegate instanceof ResolvableSerializer) {
+            ((ResolvableSerializer) delegate).resolve(provider);
+        }
+    }
+}
@@ -0,0 +1,212 @@
+package com.chat.util;
+
+import com.chat.model.dto.PresenceChange;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 在线列表变化的合并通知
+ * 大量用户在短时间内加入或离开时，每次变化都唤醒全部用户列表请求，客户端立即重新轮询后又被下一次变化唤醒。
+ * 这里把同一房间在 window 内连续到达的变化（本节点和其他节点的）合并为一次通知：
+ * 每次变化把通知推迟 window，但从第一次变化算起最多推迟 max-delay
+ *
+ * @author chat
+ * @since 2024-01-01
+ */
+@Slf4j
+@Component
+public class PresenceBroadcaster implements MetricsSource {
+
+    private final PresenceManager presenceManager;
+
+    /** 每个房间等待通知的变化 */
+    private final Map<String, Pending> pending = new ConcurrentHashMap<>();
+
+    private final LongAdder submitted = new LongAdder();
+    private final LongAdder emitted = new LongAdder();
+    private final LongAdder resolved = new LongAdder();
+    private final LongAdder resets = new LongAdder();
+
+    /** 用于延迟通知的调度器 */
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "presence-broadcaster");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /** 合并窗口（毫秒），小于等于0时不合并 */
+    @Value("${chat.presence.coalesce-window:150}")
+    private long window;
+
+    /** 从第一次变化起的最长通知延迟（毫秒） */
+    @Value("${chat.presence.coalesce-max-delay:500}")
+    private long maxDelay;
+
+    public PresenceBroadcaster(PresenceManager presenceManager) {
+        this.presenceManager = presenceManager;
+    }
+
+    @PreDestroy
+    public void destroy() {
+        scheduler.shutdownNow();
+    }
+
+    /**
+     * 提交在线列表变化，合并窗口结束后通知本节点的等待者和推送通道
+     *
+     * @param roomId 聊天室ID
+     * @param change 在线列表变化
+     */
+    public void submit(String roomId, PresenceChange change) {
+        submitted.increment();
+        if (window <= 0) {
+            emit(roomId, new Pending(change, System.currentTimeMillis()));
+            return;
+        }
+        long now = System.currentTimeMillis();
+        boolean[] created = new boolean[1];
+        pending.compute(roomId, (key, current) -> {
+            if (current == null) {
+                created[0] = true;
+                return new Pending(change, now);
+            }
+            current.merge(change, now);
+            return current;
+        });
+        if (created[0]) {
+            schedule(roomId, window);
+        }
+    }
+
+    /**
+     * 丢弃房间尚未通知的变化，用于房间删除
+     *
+     * @param roomId 聊天室ID
+     */
+    public void discard(String roomId) {
+        pending.remove(roomId);
+    }
+
+    @Override
+    public String getMetricsName() {
+        return "presenceBroadcast";
+    }
+
+    @Override
+    public Map<String, Object> getMetrics() {
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        long submittedCount = submitted.sum();
+        long emittedCount = emitted.sum();
+        metrics.put("pendingRooms", pending.size());
+        metrics.put("submitted", submittedCount);
+        metrics.put("emitted", emittedCount);
+        metrics.put("coalesced", submittedCount - emittedCount);
+        metrics.put("resolvedFromRedis", resolved.sum());
+        metrics.put("snapshotResets", resets.sum());
+        return metrics;
+    }
+
+    private void schedule(String roomId, long delay) {
+        scheduler.schedule(() -> flush(roomId), delay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 窗口到期时通知；窗口内又有新变化时顺延，但不超过最长延迟
+     */
+    private void flush(String roomId) {
+        try {
+            long now = System.currentTimeMillis();
+            Pending[] ready = new Pending[1];
+            long[] delay = new long[1];
+            pending.computeIfPresent(roomId, (key, current) -> {
+                long due = Math.min(current.lastAt + window, current.firstAt + maxDelay);
+                if (due > now) {
+                    delay[0] = due - now;
+                    return current;
+                }
+                ready[0] = current;
+                return null;
+            });
+            if (ready[0] != null) {
+                emit(roomId, ready[0]);
+            } else if (delay[0] > 0) {
+                schedule(roomId, delay[0]);
+            }
+        } catch (Exception e) {
+            log.error("Failed to flush presence change: roomId={}", roomId, e);
+        }
+    }
+
+    /**
+     * 通知合并后的变化；变化不连续（并发写入乱序或漏收其他节点的事件）时从Redis读取完整增量
+     */
+    private void emit(String roomId, Pending ready) {
+        emitted.increment();
+        if (ready.contiguous) {
+            LongPollingUtil.notifyUserListUpdate(roomId, ready.change, () -> presenceManager.getSnapshot(roomId));
+            return;
+        }
+        resolved.increment();
+        PresenceChange change = presenceManager.getChangesSince(roomId, ready.minFromVersion);
+        if (change != null) {
+            LongPollingUtil.notifyUserListUpdate(roomId, change, () -> presenceManager.getSnapshot(roomId));
+        } else {
+            resets.increment();
+            LongPollingUtil.notifyUserListReset(roomId, presenceManager.getSnapshot(roomId));
+        }
+    }
+
+    /**
+     * 一个房间等待通知的变化，只在 pending 的 compute 中访问
+     */
+    private static class Pending {
+        /** 连续时为合并后的变化 */
+        private final PresenceChange change;
+        /** 收到的变化是否首尾相接 */
+        private boolean contiguous = true;
+        /** 收到的变化中最早的起始版本 */
+        private long minFromVersion;
+        private final long firstAt;
+        private long lastAt;
+
+        Pending(PresenceChange change, long now) {
+            this.change = new PresenceChange(change.getFromVersion(), change.getVersion(),
+                    new HashSet<>(change.getJoined()), new HashSet<>(change.getLeft()));
+            this.minFromVersion = change.getFromVersion();
+            this.firstAt = now;
+            this.lastAt = now;
+        }
+
+        void merge(PresenceChange next, long now) {
+            lastAt = now;
+            minFromVersion = Math.min(minFromVersion, next.getFromVersion());
+            if (!contiguous || next.getFromVersion() != change.getVersion()) {
+                contiguous = false;
+                return;
+            }
+            // 先上线后离开（或先离开后上线）的用户相互抵消
+            for (String user : next.getLeft()) {
+                if (!change.getJoined().remove(user)) {
+                    change.getLeft().add(user);
+                }
+            }
+            for (String user : next.getJoined()) {
+                if (!change.getLeft().remove(user)) {
+                    change.getJoined().add(user);
+                }
+            }
+            change.setVersion(next.getVersion());
+        }
+    }
+}
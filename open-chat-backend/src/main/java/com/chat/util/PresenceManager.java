@@ -0,0 +1,457 @@
+package com.chat.util;
+
+import com.chat.model.dto.PresenceChange;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+
+/**
+ * 在线状态管理
+ * 每个聊天室一个 ZSET，成员为用户名，分数为最近一次心跳时间；超过 timeout 未心跳的用户视为离线，
+ * 由后台任务分批清理。每次上线或离开使房间的在线版本号加一并记入变更日志，
+ * 持有较新版本的客户端只需获取之后的增量。
+ * 加入、离开和清理各在一个Lua脚本中完成，同时得到变化后的在线人数；最后一个用户离开或超时时
+ * 同一脚本关闭房间的在线状态，之后的加入被拒绝，由关闭房间的一方删除聊天室。
+ * 在线列表在本节点缓存，本节点和其他节点的变更按版本号应用到缓存，版本对不上时使缓存失效，
+ * 另设较短的缓存有效期兜底丢失的事件。加载期间该房间应用过更新的变更时，加载结果不写入缓存，
+ * 其他房间的变更互不影响
+ *
+ * @author chat
+ * @since 2024-01-01
+ */
+@Slf4j
+@Component
+public class PresenceManager implements MetricsSource {
+
+    /** Redis中存储聊天室在线用户的key模板，分数为最近心跳时间 */
+    private static final String ROOM_PRESENCE_KEY = "chat:room:%s:presence";
+    /** Redis中记录有在线用户的聊天室的Set，供清理任务遍历 */
+    private static final String PRESENCE_ROOMS_KEY = "chat:presence:rooms";
+    /** 在线用户key的过期时间（秒），兜底清理不再有心跳的聊天室 */
+    private static final long PRESENCE_KEY_TTL = 86400;
+    /** 关闭标记的过期时间（秒），期间不能再加入已删除的聊天室 */
+    private static final long CLOSED_TTL = 86400;
+
+    private final RedisUtil redisUtil;
+
+    /** 本节点缓存的在线列表 */
+    private final Map<String, CacheEntry> cache = new ConcurrentHashMap<>();
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder heartbeats = new LongAdder();
+    private final LongAdder expired = new LongAdder();
+    private final LongAdder deltas = new LongAdder();
+    private final LongAdder snapshots = new LongAdder();
+
+    /** 用于清理超时用户的调度器 */
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "presence-sweeper");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /** 超时用户被清理后的回调，参数为聊天室ID和这次清理的结果 */
+    private volatile BiConsumer<String, Update> expiredHandler;
+
+    /** 心跳超时时间（秒） */
+    @Value("${chat.presence.timeout:60}")
+    private long timeout;
+
+    /** 本节点在线列表缓存的有效期（毫秒） */
+    @Value("${chat.presence.cache-ttl:5000}")
+    private long cacheTtl;
+
+    /** 清理间隔（秒） */
+    @Value("${chat.presence.sweep-interval:10}")
+    private long sweepInterval;
+
+    /** 每个聊天室单次清理的最大用户数 */
+    @Value("${chat.presence.sweep-batch:500}")
+    private long sweepBatch;
+
+    /** 每个聊天室保留的变更条数，落后更多的客户端获取完整列表 */
+    @Value("${chat.presence.log-size:200}")
+    private long logSize;
+
+    public PresenceManager(RedisUtil redisUtil) {
+        this.redisUtil = redisUtil;
+    }
+
+    @PostConstruct
+    public void init() {
+        scheduler.scheduleWithFixedDelay(this::sweep, sweepInterval, sweepInterval, TimeUnit.SECONDS);
+    }
+
+    @PreDestroy
+    public void destroy() {
+        scheduler.shutdownNow();
+    }
+
+    /**
+     * 设置超时用户被清理后的回调
+     *
+     * @param expiredHandler 回调
+     */
+    public void setExpiredHandler(BiConsumer<String, Update> expiredHandler) {
+        this.expiredHandler = expiredHandler;
+    }
+
+    /**
+     * 用户加入，同时得到加入后的完整在线列表
+     *
+     * @param roomId 聊天室ID
+     * @param username 用户名
+     * @return 加入结果，聊天室已关闭时 closed 为true
+     */
+    public Update join(String roomId, String username) {
+        CacheEntry entry = cache.computeIfAbsent(roomId, key -> new CacheEntry());
+        ZSetUpdate update = redisUtil.zAddLogged(presenceKey(roomId), username, System.currentTimeMillis(),
+                logSize, PRESENCE_ROOMS_KEY, roomId, PRESENCE_KEY_TTL, true);
+        if (update.isClosed()) {
+            return new Update(null, 0, true, null);
+        }
+        ZSetChanges changes = update.getChanges();
+        Snapshot snapshot = new Snapshot(Collections.unmodifiableSet(toUsers(update.getMembers())),
+                changes.getVersion(), System.currentTimeMillis());
+        store(roomId, entry, snapshot);
+        return new Update(changes.isChanged() ? toChange(changes) : null, update.getSize(), false, snapshot);
+    }
+
+    /**
+     * 记录心跳并刷新在线状态的过期时间，不在线的用户重新上线；聊天室已关闭时忽略
+     *
+     * @param roomId 聊天室ID
+     * @param username 用户名
+     * @return 用户此前不在线时返回这次变化，否则返回null
+     */
+    public PresenceChange heartbeat(String roomId, String username) {
+        heartbeats.increment();
+        ZSetUpdate update = redisUtil.zAddLogged(presenceKey(roomId), username, System.currentTimeMillis(),
+                logSize, PRESENCE_ROOMS_KEY, roomId, PRESENCE_KEY_TTL, false);
+        return update.isClosed() ? null : applyLocal(roomId, update.getChanges());
+    }
+
+    /**
+     * 用户离开，最后一个用户离开时关闭聊天室的在线状态
+     *
+     * @param roomId 聊天室ID
+     * @param username 用户名
+     * @return 离开结果，用户此前不在线时 change 为null
+     */
+    public Update remove(String roomId, String username) {
+        ZSetUpdate update = redisUtil.zRemoveLogged(presenceKey(roomId), username, logSize,
+                PRESENCE_ROOMS_KEY, roomId, CLOSED_TTL);
+        return toUpdate(roomId, update);
+    }
+
+    /**
+     * 获取在线用户，优先读取本节点缓存
+     *
+     * @param roomId 聊天室ID
+     * @return 不可变的在线用户集合
+     */
+    public Set<String> getOnlineUsers(String roomId) {
+        return getSnapshot(roomId).getUsers();
+    }
+
+    /**
+     * 获取在线列表及其版本号，优先读取本节点缓存
+     * 列表包含已超时但尚未被清理的用户，与版本号保持一致
+     *
+     * @param roomId 聊天室ID
+     * @return 在线列表快照
+     */
+    public Snapshot getSnapshot(String roomId) {
+        long now = System.currentTimeMillis();
+        CacheEntry entry = cache.get(roomId);
+        Snapshot cached = entry != null ? entry.snapshot : null;
+        if (cached != null && now - cached.loadedAt < cacheTtl) {
+            hits.increment();
+            return cached;
+        }
+        misses.increment();
+        // 先登记缓存项再读取Redis，读取期间应用的变更会记入该缓存项
+        entry = cache.computeIfAbsent(roomId, key -> new CacheEntry());
+        ZSetChanges changes = redisUtil.zSnapshot(presenceKey(roomId));
+        Snapshot snapshot = new Snapshot(Collections.unmodifiableSet(toUsers(changes.getAdded())), changes.getVersion(), now);
+        store(roomId, entry, snapshot);
+        return snapshot;
+    }
+
+    /**
+     * 写入加载的在线列表：缓存项已被移除，或加载期间应用过更新的变更时不写入
+     */
+    private void store(String roomId, CacheEntry entry, Snapshot snapshot) {
+        synchronized (entry) {
+            if (cache.get(roomId) != entry || snapshot.version < entry.minVersion) {
+                return;
+            }
+            Snapshot cached = entry.snapshot;
+            if (cached == null || cached.version <= snapshot.version) {
+                entry.snapshot = snapshot;
+            }
+        }
+    }
+
+    /**
+     * 获取 version 之后的在线列表变化，直接读取Redis
+     *
+     * @param roomId 聊天室ID
+     * @param version 客户端持有的版本号
+     * @return 变化（版本未变时为空变化），版本过旧无法给出增量时返回null
+     */
+    public PresenceChange getChangesSince(String roomId, long version) {
+        ZSetChanges changes = redisUtil.zChangesSince(presenceKey(roomId), version);
+        if (changes == null) {
+            snapshots.increment();
+            return null;
+        }
+        deltas.increment();
+        return toChange(changes);
+    }
+
+    /**
+     * 把其他节点的在线列表变化应用到本节点缓存
+     *
+     * @param roomId 聊天室ID
+     * @param change 变化
+     */
+    public void apply(String roomId, PresenceChange change) {
+        if (change == null) {
+            invalidate(roomId);
+            return;
+        }
+        CacheEntry entry = cache.get(roomId);
+        if (entry == null) {
+            return;
+        }
+        synchronized (entry) {
+            // 正在加载的结果早于这次变更时不再写入缓存
+            entry.minVersion = Math.max(entry.minVersion, change.getVersion());
+            Snapshot cached = entry.snapshot;
+            if (cached == null || cached.version >= change.getVersion()) {
+                return;
+            }
+            if (cached.version != change.getFromVersion()) {
+                entry.snapshot = null;
+                return;
+            }
+            Set<String> users = new HashSet<>(cached.users);
+            users.removeAll(change.getLeft());
+            users.addAll(change.getJoined());
+            entry.snapshot = new Snapshot(Collections.unmodifiableSet(users), change.getVersion(), cached.loadedAt);
+        }
+    }
+
+    /**
+     * 清除并关闭聊天室的在线状态
+     *
+     * @param roomId 聊天室ID
+     */
+    public void clear(String roomId) {
+        redisUtil.zCloseLogged(presenceKey(roomId), PRESENCE_ROOMS_KEY, roomId, CLOSED_TTL);
+        invalidate(roomId);
+    }
+
+    /**
+     * 使本节点缓存的在线列表失效
+     *
+     * @param roomId 聊天室ID
+     */
+    public void invalidate(String roomId) {
+        // 持有被移除缓存项的加载结果不会写入缓存
+        cache.remove(roomId);
+    }
+
+    @Override
+    public String getMetricsName() {
+        return "presence";
+    }
+
+    @Override
+    public Map<String, Object> getMetrics() {
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        long hitCount = hits.sum();
+        long missCount = misses.sum();
+        metrics.put("cachedRooms", cache.size());
+        metrics.put("hits", hitCount);
+        metrics.put("misses", missCount);
+        metrics.put("hitRate", hitCount + missCount > 0 ? (double) hitCount / (hitCount + missCount) : 0D);
+        metrics.put("heartbeats", heartbeats.sum());
+        metrics.put("expired", expired.sum());
+        metrics.put("deltaReads", deltas.sum());
+        metrics.put("snapshotFallbacks", snapshots.sum());
+        return metrics;
+    }
+
+    /**
+     * 遍历有在线用户的聊天室，分批清理超时用户
+     * 多个节点同时清理时，每个用户只会被其中一个节点删除并通知
+     */
+    private void sweep() {
+        try {
+            long now = System.currentTimeMillis();
+            long deadline = now - timeout * 1000;
+            cache.entrySet().removeIf(entry -> {
+                Snapshot cached = entry.getValue().snapshot;
+                return cached == null || now - cached.loadedAt >= cacheTtl;
+            });
+            redisUtil.sScan(PRESENCE_ROOMS_KEY, sweepBatch, member -> sweepRoom((String) member, deadline));
+        } catch (Exception e) {
+            log.error("Failed to sweep presence", e);
+        }
+    }
+
+    private void sweepRoom(String roomId, long deadline) {
+        try {
+            Update update;
+            do {
+                update = toUpdate(roomId, redisUtil.zRemoveRangeByScoreLogged(presenceKey(roomId), deadline,
+                        sweepBatch, logSize, PRESENCE_ROOMS_KEY, roomId, CLOSED_TTL));
+                PresenceChange change = update.getChange();
+                if (change == null) {
+                    break;
+                }
+                log.info("清理超时用户: roomId={}, users={}", roomId, change.getLeft());
+                expired.add(change.getLeft().size());
+                BiConsumer<String, Update> handler = expiredHandler;
+                if (handler != null) {
+                    handler.accept(roomId, update);
+                }
+            } while (!update.isClosed() && update.getChange().getLeft().size() >= sweepBatch);
+        } catch (Exception e) {
+            log.error("Failed to sweep presence: roomId={}", roomId, e);
+        }
+    }
+
+    /**
+     * 把离开或清理的结果应用到缓存，关闭时使缓存失效
+     */
+    private Update toUpdate(String roomId, ZSetUpdate update) {
+        if (update.isClosed()) {
+            invalidate(roomId);
+            return new Update(toChange(update.getChanges()), 0, true, null);
+        }
+        return new Update(applyLocal(roomId, update.getChanges()), update.getSize(), false, null);
+    }
+
+    /**
+     * 把本节点产生的变化应用到缓存
+     *
+     * @return 有变化时返回变化，否则返回null
+     */
+    private PresenceChange applyLocal(String roomId, ZSetChanges changes) {
+        if (!changes.isChanged()) {
+            return null;
+        }
+        PresenceChange change = toChange(changes);
+        apply(roomId, change);
+        return change;
+    }
+
+    private static PresenceChange toChange(ZSetChanges changes) {
+        return new PresenceChange(changes.getFromVersion(), changes.getVersion(),
+                toUsers(changes.getAdded()), toUsers(changes.getRemoved()));
+    }
+
+    private static HashSet<String> toUsers(List<Object> members) {
+        HashSet<String> users = new HashSet<>();
+        members.forEach(member -> users.add((String) member));
+        return users;
+    }
+
+    private static String presenceKey(String roomId) {
+        return String.format(ROOM_PRESENCE_KEY, roomId);
+    }
+
+    /**
+     * 单个房间的缓存项，加载期间保留，用于判断加载结果是否过期
+     */
+    private static class CacheEntry {
+        /** 缓存的在线列表，失效后为null */
+        private volatile Snapshot snapshot;
+        /** 应用过的最新变更版本，早于该版本的加载结果不写入缓存 */
+        private long minVersion;
+    }
+
+    /**
+     * 在线列表快照及其版本号
+     */
+    public static class Snapshot {
+        private final Set<String> users;
+        private final long version;
+        private final long loadedAt;
+
+        Snapshot(Set<String> users, long version, long loadedAt) {
+            this.users = users;
+            this.version = version;
+            this.loadedAt = loadedAt;
+        }
+
+        public Set<String> getUsers() {
+            return users;
+        }
+
+        public long getVersion() {
+            return version;
+        }
+    }
+
+    /**
+     * 一次加入、离开或清理的结果，变化、在线人数和是否关闭在同一次原子操作中得到
+     */
+    public static class Update {
+        private final PresenceChange change;
+        private final long onlineCount;
+        private final boolean closed;
+        private final Snapshot snapshot;
+
+        Update(PresenceChange change, long onlineCount, boolean closed, Snapshot snapshot) {
+            this.change = change;
+            this.onlineCount = onlineCount;
+            this.closed = closed;
+            this.snapshot = snapshot;
+        }
+
+        /**
+         * @return 在线列表变化，没有变化时为null
+         */
+        public PresenceChange getChange() {
+            return change;
+        }
+
+        public long getOnlineCount() {
+            return onlineCount;
+        }
+
+        /**
+         * @return 离开或清理时表示这次操作移除了最后一个用户并关闭了聊天室，加入时表示聊天室已关闭
+         */
+        public boolean isClosed() {
+            return closed;
+        }
+
+        /**
+         * @return 加入后的在线列表，仅加入时有值
+         */
+        public Snapshot getSnapshot() {
+            return snapshot;
+        }
+    }
+}
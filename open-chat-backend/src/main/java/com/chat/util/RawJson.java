@@ -0,0 +1,131 @@
+package com.chat.util;
+
+import com.fasterxml.jackson.core.SerializableString;
+import com.fasterxml.jackson.core.io.JsonStringEncoder;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * 已序列化好的 JSON 片段（UTF-8 字节）
+ * 配合 {@link com.fasterxml.jackson.core.JsonGenerator#writeRawValue(SerializableString)} 使用：
+ * UTF-8 输出时直接把字节复制到输出缓冲区，字符输出时才解码为字符串
+ *
+ * @author chat
+ * @since 2024-01-01
+ */
+public final class RawJson implements SerializableString {
+
+    private final byte[] utf8;
+    private volatile String value;
+
+    public RawJson(byte[] utf8) {
+        this.utf8 = utf8;
+    }
+
+    @Override
+    public String getValue() {
+        String result = value;
+        if (result == null) {
+            result = new String(utf8, StandardCharsets.UTF_8);
+            value = result;
+        }
+        return result;
+    }
+
+    @Override
+    public int charLength() {
+        return getValue().length();
+    }
+
+    @Override
+    public char[] asQuotedChars() {
+        return JsonStringEncoder.getInstance().quoteAsString(getValue());
+    }
+
+    @Override
+    public byte[] asUnquotedUTF8() {
+        return utf8;
+    }
+
+    @Override
+    public byte[] asQuotedUTF8() {
+        return JsonStringEncoder.getInstance().quoteAsUTF8(getValue());
+    }
+
+    @Override
+    public int appendQuotedUTF8(byte[] buffer, int offset) {
+        return append(asQuotedUTF8(), buffer, offset);
+    }
+
+    @Override
+    public int appendQuoted(char[] buffer, int offset) {
+        char[] quoted = asQuotedChars();
+        if (offset + quoted.length > buffer.length) {
+            return -1;
+        }
+        System.arraycopy(quoted, 0, buffer, offset, quoted.length);
+        return quoted.length;
+    }
+
+    @Override
+    public int appendUnquotedUTF8(byte[] buffer, int offset) {
+        return append(utf8, buffer, offset);
+    }
+
+    @Override
+    public int appendUnquoted(char[] buffer, int offset) {
+        String text = getValue();
+        if (offset + text.length() > buffer.length) {
+            return -1;
+        }
+        text.getChars(0, text.length(), buffer, offset);
+        return text.length();
+    }
+
+    @Override
+    public int writeQuotedUTF8(OutputStream out) throws IOException {
+        byte[] quoted = asQuotedUTF8();
+        out.write(quoted);
+        return quoted.length;
+    }
+
+    @Override
+    public int writeUnquotedUTF8(OutputStream out) throws IOException {
+        out.write(utf8);
+        return utf8.length;
+    }
+
+    @Override
+    public int putQuotedUTF8(ByteBuffer buffer) {
+        return put(asQuotedUTF8(), buffer);
+    }
+
+    @Override
+    public int putUnquotedUTF8(ByteBuffer buffer) {
+        return put(utf8, buffer);
+    }
+
+    @Override
+    public String toString() {
+        return getValue();
+    }
+
+    private static int append(byte[] source, byte[] buffer, int offset) {
+        if (offset + source.length > buffer.length) {
+            return -1;
+        }
+        System.arraycopy(source, 0, buffer, offset, source.length);
+        return source.length;
+    }
+
+    private static int put(byte[] source, ByteBuffer buffer) {
+        if (source.length > buffer.remaining()) {
+            return -1;
+        }
+        buffer.put(source);
+        return source.length;
+    }
+}
@@ -0,0 +1,253 @@
+package com.chat.util;
+
+import com.chat.model.vo.MessageVO;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 进程内最近消息缓存
+ * 每个聊天室一个有界环形缓冲区，由 sendMessage 写入；空闲房间按TTL淘汰，
+ * 总内存超过上限时按最近访问时间淘汰最久未用的房间。
+ * 缓冲区只有在收到房间的每一条消息时才能给出完整结果，房间事件可能丢失时（订阅中断、消息未经频道发布）
+ * 由调用方移除相应的缓冲区，之后重新从收到的第一条消息开始记录。
+ * 消息加入缓存前预先渲染为 JSON，之后的推送和轮询响应直接复制渲染好的字节
+ *
+ * @author chat
+ * @since 2024-01-01
+ */
+@Slf4j
+@Component
+public class RecentMessageCache implements MetricsSource {
+
+    /** 存储每个房间的环形缓冲区 */
+    private final Map<String, RoomBuffer> rooms = new ConcurrentHashMap<>();
+
+    private final ObjectMapper objectMapper;
+
+    private final AtomicLong totalBytes = new AtomicLong();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    /** 用于淘汰空闲房间的调度器 */
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "message-cache-evictor");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /** 每个房间缓存的消息数 */
+    @Value("${chat.cache.room-capacity:200}")
+    private int roomCapacity;
+
+    /** 缓存总内存上限（字节） */
+    @Value("${chat.cache.max-bytes:67108864}")
+    private long maxBytes;
+
+    /** 房间空闲淘汰时间（秒） */
+    @Value("${chat.cache.idle-ttl:600}")
+    private long idleTtl;
+
+    public RecentMessageCache(ObjectMapper objectMapper) {
+        this.objectMapper = objectMapper;
+    }
+
+    @PostConstruct
+    public void init() {
+        scheduler.scheduleWithFixedDelay(this::evictIdle, 10, 10, TimeUnit.SECONDS);
+    }
+
+    @PreDestroy
+    public void destroy() {
+        scheduler.shutdownNow();
+    }
+
+    /**
+     * 缓存新消息，房间没有缓冲区时创建
+     *
+     * @param message 消息
+     */
+    public void add(MessageVO message) {
+        render(message);
+        while (true) {
+            RoomBuffer room = rooms.computeIfAbsent(message.getRoomId(), k -> new RoomBuffer(roomCapacity));
+            synchronized (room) {
+                if (!room.removed) {
+                    room.lastAccess = System.currentTimeMillis();
+                    totalBytes.addAndGet(room.buffer.add(message));
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * 仅在房间已有缓冲区时缓存消息，用于其他节点发送的消息
+     *
+     * @param message 消息
+     */
+    public void addIfPresent(MessageVO message) {
+        RoomBuffer room = rooms.get(message.getRoomId());
+        if (room == null) {
+            return;
+        }
+        render(message);
+        synchronized (room) {
+            if (!room.removed) {
+                totalBytes.addAndGet(room.buffer.add(message));
+            }
+        }
+    }
+
+    /**
+     * 把消息渲染为 JSON 保存在消息上，必须在加入缓冲区之前完成（内存估算包含渲染结果）
+     * 渲染失败时不保存，序列化时退回逐字段写出
+     */
+    private void render(MessageVO message) {
+        if (message.getRenderedJson() != null) {
+            return;
+        }
+        try {
+            message.setRenderedJson(objectMapper.writeValueAsBytes(message));
+        } catch (JsonProcessingException e) {
+            log.warn("消息预渲染失败: roomId={}, id={}", message.getRoomId(), message.getId(), e);
+        }
+    }
+
+    /**
+     * 获取 lastMessageId 之后最新的消息
+     *
+     * @param roomId 聊天室ID
+     * @param lastMessageId 最后一条消息ID
+     * @param limit 最多返回的条数
+     * @return 按ID升序排列的消息，缓存无法给出完整结果时返回null
+     */
+    public List<MessageVO> getMessagesAfter(String roomId, Long lastMessageId, int limit) {
+        RoomBuffer room = rooms.get(roomId);
+        List<MessageVO> messages = null;
+        if (room != null) {
+            synchronized (room) {
+                if (!room.removed) {
+                    room.lastAccess = System.currentTimeMillis();
+                    messages = room.buffer.after(lastMessageId != null ? lastMessageId : 0L, limit);
+                }
+            }
+        }
+        if (messages != null) {
+            hits.increment();
+        } else {
+            misses.increment();
+        }
+        return messages;
+    }
+
+    /**
+     * 移除房间缓存
+     *
+     * @param roomId 聊天室ID
+     */
+    public void evict(String roomId) {
+        RoomBuffer room = rooms.remove(roomId);
+        if (room != null) {
+            release(room);
+        }
+    }
+
+    /**
+     * 移除所有房间的缓存，用于房间事件可能丢失之后：缓冲区不能再证明记录了房间的所有消息
+     */
+    public void evictAll() {
+        rooms.forEach((roomId, room) -> {
+            if (rooms.remove(roomId, room)) {
+                release(room);
+            }
+        });
+    }
+
+    @Override
+    public String getMetricsName() {
+        return "messageCache";
+    }
+
+    @Override
+    public Map<String, Object> getMetrics() {
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        long hitCount = hits.sum();
+        long missCount = misses.sum();
+        metrics.put("rooms", rooms.size());
+        metrics.put("estimatedBytes", totalBytes.get());
+        metrics.put("maxBytes", maxBytes);
+        metrics.put("hits", hitCount);
+        metrics.put("misses", missCount);
+        metrics.put("hitRate", hitCount + missCount > 0 ? (double) hitCount / (hitCount + missCount) : 0D);
+        metrics.put("evictions", evictions.sum());
+        return metrics;
+    }
+
+    /**
+     * 淘汰空闲房间，内存超过上限时继续按最近访问时间淘汰
+     */
+    private void evictIdle() {
+        try {
+            long idleBefore = System.currentTimeMillis() - idleTtl * 1000;
+            rooms.forEach((roomId, room) -> {
+                if (room.lastAccess < idleBefore && rooms.remove(roomId, room)) {
+                    release(room);
+                }
+            });
+            if (totalBytes.get() <= maxBytes) {
+                return;
+            }
+            List<Map.Entry<String, RoomBuffer>> entries = new ArrayList<>(rooms.entrySet());
+            entries.sort(Comparator.comparingLong(entry -> entry.getValue().lastAccess));
+            for (Map.Entry<String, RoomBuffer> entry : entries) {
+                if (totalBytes.get() <= maxBytes) {
+                    break;
+                }
+                if (rooms.remove(entry.getKey(), entry.getValue())) {
+                    release(entry.getValue());
+                }
+            }
+        } catch (Exception e) {
+            log.error("Failed to evict message cache", e);
+        }
+    }
+
+    private void release(RoomBuffer room) {
+        synchronized (room) {
+            room.removed = true;
+            totalBytes.addAndGet(-room.buffer.getEstimatedBytes());
+        }
+        evictions.increment();
+    }
+
+    /**
+     * 单个房间的缓冲区及其访问时间
+     */
+    private static class RoomBuffer {
+        private final MessageRingBuffer buffer;
+        private volatile long lastAccess = System.currentTimeMillis();
+        private boolean removed;
+
+        RoomBuffer(int capacity) {
+            this.buffer = new MessageRingBuffer(capacity);
+        }
+    }
+}
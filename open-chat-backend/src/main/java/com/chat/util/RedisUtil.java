@@ -1,11 +1,21 @@
 package com.chat.util;
 
 import lombok.RequiredArgsConstructor;
+import org.springframework.data.domain.Range;
+import org.springframework.data.redis.connection.RedisZSetCommands;
+import org.springframework.data.redis.connection.stream.MapRecord;
+import org.springframework.data.redis.core.Cursor;
 import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.core.ScanOptions;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.core.script.RedisScript;
+import org.springframework.data.redis.serializer.RedisSerializer;
 import org.springframework.stereotype.Component;
 
+import java.nio.charset.StandardCharsets;
 import java.util.*;
 import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
 
 /**
  * Redis工具类
@@ -116,6 +126,58 @@ public class RedisUtil {
         }
     }
 
+    /**
+     * 键不存在时放入并设置时间，可用作简单的分布式锁
+     *
+     * @param key 键
+     * @param value 值
+     * @param time 时间(秒)
+     * @return 是否放入
+     */
+    public boolean setIfAbsent(String key, Object value, long time) {
+        return Boolean.TRUE.equals(redisTemplate.opsForValue().setIfAbsent(key, value, time, TimeUnit.SECONDS));
+    }
+
+    /**
+     * 值等于 value 时删除键（比较和删除在同一脚本内完成）
+     */
+    private static final RedisScript<Long> DELETE_IF_EQUALS_SCRIPT = new DefaultRedisScript<>(
+            "if redis.call('GET', KEYS[1]) == ARGV[1] then return redis.call('DEL', KEYS[1]) end return 0",
+            Long.class);
+
+    /**
+     * 键的值仍等于 value 时删除，用于释放 setIfAbsent 获取的锁：
+     * 锁已过期并被其他节点获取时不会误删
+     *
+     * @param key 键
+     * @param value 获取锁时放入的值
+     * @return 是否删除
+     */
+    public boolean delIfEquals(String key, Object value) {
+        Long deleted = redisTemplate.execute(DELETE_IF_EQUALS_SCRIPT, RedisSerializer.byteArray(), null,
+                Collections.singletonList(key), valueSerializer().serialize(value));
+        return deleted != null && deleted == 1L;
+    }
+
+    private static final RedisScript<Long> EXPIRE_IF_EQUALS_SCRIPT = new DefaultRedisScript<>(
+            "if redis.call('GET', KEYS[1]) == ARGV[1] then return redis.call('EXPIRE', KEYS[1], ARGV[2]) end return 0",
+            Long.class);
+
+    /**
+     * 键的值仍等于 value 时重新设置过期时间，用于长时间任务续期 setIfAbsent 获取的锁
+     *
+     * @param key 键
+     * @param value 获取锁时放入的值
+     * @param time 过期时间（秒）
+     * @return 是否续期，false 表示锁已过期或已被其他节点获取
+     */
+    public boolean expireIfEquals(String key, Object value, long time) {
+        Long renewed = redisTemplate.execute(EXPIRE_IF_EQUALS_SCRIPT, RedisSerializer.byteArray(), null,
+                Collections.singletonList(key), valueSerializer().serialize(value),
+                String.valueOf(time).getBytes(StandardCharsets.UTF_8));
+        return renewed != null && renewed == 1L;
+    }
+
     // ================================Set=================================
 
     /**
@@ -153,6 +215,19 @@ public class RedisUtil {
         return count != null ? count : 0;
     }
 
+    /**
+     * 分批遍历Set中的值（SSCAN），不会像 SMEMBERS 一样一次取出整个集合
+     *
+     * @param key 键
+     * @param count 每批的建议条数
+     * @param action 对每个值执行的操作
+     */
+    public void sScan(String key, long count, Consumer<Object> action) {
+        try (Cursor<Object> cursor = redisTemplate.opsForSet().scan(key, ScanOptions.scanOptions().count(count).build())) {
+            cursor.forEachRemaining(action);
+        }
+    }
+
     // ===============================List=================================
 
     /**
@@ -222,4 +297,356 @@ public class RedisUtil {
     public void lSet(String key, List<Object> value) {
         redisTemplate.opsForList().rightPushAll(key, value);
     }
-} 
\ No newline at end of file
+
+    // ===============================ZSet=================================
+    // 带变更日志的ZSet：每次成员增删使版本号（key:version）加一，并在日志（key:log，新的在前）
+    // 中记录一条 "+成员" 或 "-成员"，日志保留最近 logSize 条，据此可以得到任意较新版本之后的增量。
+    // 移除最后一个成员的操作在同一脚本内关闭该key：删除版本号和日志、从索引Set中移除并写入关闭标记
+    // （key:closed），关闭标记过期前写入成员会被拒绝。判断是否为空和关闭在一次原子操作中完成，
+    // 并发的移除只有一个会看到集合变空，移除和关闭之间也不会有新成员写入
+
+    /**
+     * 写入或更新成员的分数、登记到索引Set并刷新过期时间，新成员时记录变更，
+     * 返回 {是否新成员（已关闭时为-1）, 版本号, 成员数, 全部成员（ARGV[6]为1时）}
+     * 与 {@link #zRemoveRangeByScoreLogged} 的清理互斥：索引中没有的key一定是空的
+     */
+    @SuppressWarnings("rawtypes")
+    private static final RedisScript<List> ZSET_ADD_LOGGED_SCRIPT = new DefaultRedisScript<>(
+            "if redis.call('EXISTS', KEYS[5]) == 1 then return {-1, 0, 0, {}} end " +
+            "local added = redis.call('ZADD', KEYS[1], ARGV[1], ARGV[2]) " +
+            "local version " +
+            "if added == 1 then " +
+            "  version = redis.call('INCR', KEYS[2]) " +
+            "  redis.call('LPUSH', KEYS[3], '+' .. ARGV[2]) " +
+            "  redis.call('LTRIM', KEYS[3], 0, tonumber(ARGV[4]) - 1) " +
+            "else " +
+            "  version = tonumber(redis.call('GET', KEYS[2]) or '0') " +
+            "end " +
+            "redis.call('SADD', KEYS[4], ARGV[3]) " +
+            "if tonumber(ARGV[5]) > 0 then " +
+            "  for i = 1, 3 do redis.call('EXPIRE', KEYS[i], ARGV[5]) end " +
+            "end " +
+            "local members = {} " +
+            "if ARGV[6] == '1' then members = redis.call('ZRANGE', KEYS[1], 0, -1) end " +
+            "return {added, version, redis.call('ZCARD', KEYS[1]), members}", List.class);
+
+    /**
+     * 移除成员，成员存在时记录变更，移除了最后一个成员时关闭key，返回 {是否移除, 版本号, 成员数, 是否关闭}
+     */
+    @SuppressWarnings("rawtypes")
+    private static final RedisScript<List> ZSET_REMOVE_LOGGED_SCRIPT = new DefaultRedisScript<>(
+            "local removed = redis.call('ZREM', KEYS[1], ARGV[1]) " +
+            "local version " +
+            "if removed == 1 then " +
+            "  version = redis.call('INCR', KEYS[2]) " +
+            "  redis.call('LPUSH', KEYS[3], '-' .. ARGV[1]) " +
+            "  redis.call('LTRIM', KEYS[3], 0, tonumber(ARGV[2]) - 1) " +
+            "else " +
+            "  version = tonumber(redis.call('GET', KEYS[2]) or '0') " +
+            "end " +
+            "local size = redis.call('ZCARD', KEYS[1]) " +
+            "if removed == 1 and size == 0 then " +
+            "  redis.call('DEL', KEYS[2], KEYS[3]) " +
+            "  redis.call('SREM', KEYS[4], ARGV[3]) " +
+            "  redis.call('SET', KEYS[5], '1', 'EX', ARGV[4]) " +
+            "  return {removed, version, 0, 1} " +
+            "end " +
+            "return {removed, version, size, 0}", List.class);
+
+    /**
+     * 删除分数不大于上限的成员（最多 limit 个）并记录变更，删除了最后一个成员时关闭key，
+     * 返回 {版本号, 被删除的成员, 成员数, 是否关闭}
+     */
+    @SuppressWarnings("rawtypes")
+    private static final RedisScript<List> ZSET_REMOVE_RANGE_LOGGED_SCRIPT = new DefaultRedisScript<>(
+            "local removed = redis.call('ZRANGEBYSCORE', KEYS[1], '-inf', ARGV[1], 'LIMIT', 0, ARGV[2]) " +
+            "local version " +
+            "if #removed > 0 then " +
+            "  redis.call('ZREM', KEYS[1], unpack(removed)) " +
+            "  for _, member in ipairs(removed) do redis.call('LPUSH', KEYS[3], '-' .. member) end " +
+            "  redis.call('LTRIM', KEYS[3], 0, tonumber(ARGV[3]) - 1) " +
+            "  version = redis.call('INCRBY', KEYS[2], #removed) " +
+            "else " +
+            "  version = tonumber(redis.call('GET', KEYS[2]) or '0') " +
+            "end " +
+            "local size = redis.call('ZCARD', KEYS[1]) " +
+            "if size > 0 then return {version, removed, size, 0} end " +
+            "redis.call('SREM', KEYS[4], ARGV[4]) " +
+            "if #removed == 0 then return {version, removed, 0, 0} end " +
+            "redis.call('DEL', KEYS[2], KEYS[3]) " +
+            "redis.call('SET', KEYS[5], '1', 'EX', ARGV[5]) " +
+            "return {version, removed, 0, 1}", List.class);
+
+    /**
+     * 读取 ARGV[1] 版本之后的变更，返回 {当前版本号, 是否完整, 变更（新的在前）}
+     * 日志已不包含该版本之后的全部变更，或该版本比当前版本还新（key被重建）时视为不完整
+     */
+    @SuppressWarnings("rawtypes")
+    private static final RedisScript<List> ZSET_CHANGES_SCRIPT = new DefaultRedisScript<>(
+            "local version = tonumber(redis.call('GET', KEYS[1]) or '0') " +
+            "local count = version - tonumber(ARGV[1]) " +
+            "if count < 0 or count > redis.call('LLEN', KEYS[2]) then return {version, 0, {}} end " +
+            "if count == 0 then return {version, 1, {}} end " +
+            "return {version, 1, redis.call('LRANGE', KEYS[2], 0, count - 1)}", List.class);
+
+    /**
+     * 读取全部成员及对应的版本号，返回 {版本号, 成员}
+     */
+    @SuppressWarnings("rawtypes")
+    private static final RedisScript<List> ZSET_SNAPSHOT_SCRIPT = new DefaultRedisScript<>(
+            "return {tonumber(redis.call('GET', KEYS[2]) or '0'), redis.call('ZRANGE', KEYS[1], 0, -1)}", List.class);
+
+    /**
+     * 删除ZSet及其版本号和日志，从索引Set中移除并写入关闭标记
+     */
+    @SuppressWarnings("rawtypes")
+    private static final RedisScript<List> ZSET_CLOSE_LOGGED_SCRIPT = new DefaultRedisScript<>(
+            "redis.call('DEL', KEYS[1], KEYS[2], KEYS[3]) " +
+            "redis.call('SREM', KEYS[4], ARGV[1]) " +
+            "redis.call('SET', KEYS[5], '1', 'EX', ARGV[2]) " +
+            "return {}", List.class);
+
+    /**
+     * 写入成员、登记到索引Set并刷新过期时间，新成员时记录变更；key已关闭时不写入
+     *
+     * @param key 键
+     * @param member 成员
+     * @param score 分数
+     * @param logSize 变更日志保留的条数
+     * @param indexKey 索引Set的键
+     * @param indexMember 在索引Set中代表该key的值
+     * @param time 时间(秒)
+     * @param withMembers 是否同时返回写入后的全部成员
+     * @return 写入结果，新成员时包含这次变更，否则为不含变更的当前版本
+     */
+    @SuppressWarnings("unchecked")
+    public ZSetUpdate zAddLogged(String key, Object member, long score, long logSize,
+                                 String indexKey, Object indexMember, long time, boolean withMembers) {
+        List<Object> result = executeScript(ZSET_ADD_LOGGED_SCRIPT,
+                Arrays.asList(key, versionKey(key), logKey(key), indexKey, closedKey(key)),
+                bytes(String.valueOf(score)), valueSerializer().serialize(member),
+                valueSerializer().serialize(indexMember), bytes(String.valueOf(logSize)), bytes(String.valueOf(time)),
+                bytes(withMembers ? "1" : "0"));
+        long status = (Long) result.get(0);
+        long version = (Long) result.get(1);
+        boolean added = status == 1L;
+        ZSetChanges changes = new ZSetChanges(added ? version - 1 : version, version,
+                added ? Collections.singletonList(member) : Collections.emptyList(), Collections.emptyList());
+        List<Object> members = null;
+        if (withMembers && status >= 0) {
+            members = new ArrayList<>();
+            for (Object raw : (List<Object>) result.get(3)) {
+                members.add(valueSerializer().deserialize((byte[]) raw));
+            }
+        }
+        return new ZSetUpdate(changes, (Long) result.get(2), members, status < 0);
+    }
+
+    /**
+     * 移除成员，成员存在时记录变更；移除了最后一个成员时关闭key
+     *
+     * @param key 键
+     * @param member 成员
+     * @param logSize 变更日志保留的条数
+     * @param indexKey 索引Set的键
+     * @param indexMember 在索引Set中代表该key的值
+     * @param closeTime 关闭标记的过期时间(秒)
+     * @return 移除结果，成员存在时包含这次变更，否则为不含变更的当前版本
+     */
+    public ZSetUpdate zRemoveLogged(String key, Object member, long logSize,
+                                    String indexKey, Object indexMember, long closeTime) {
+        List<Object> result = executeScript(ZSET_REMOVE_LOGGED_SCRIPT,
+                Arrays.asList(key, versionKey(key), logKey(key), indexKey, closedKey(key)),
+                valueSerializer().serialize(member), bytes(String.valueOf(logSize)),
+                valueSerializer().serialize(indexMember), bytes(String.valueOf(closeTime)));
+        long version = (Long) result.get(1);
+        boolean removed = (Long) result.get(0) == 1L;
+        ZSetChanges changes = new ZSetChanges(removed ? version - 1 : version, version,
+                Collections.emptyList(), removed ? Collections.singletonList(member) : Collections.emptyList());
+        return new ZSetUpdate(changes, (Long) result.get(2), null, (Long) result.get(3) == 1L);
+    }
+
+    /**
+     * 删除分数不大于 max 的成员并记录变更，删空后从索引Set中移除该key；删除了最后一个成员时关闭key
+     *
+     * @param key 键
+     * @param max 分数上限（包含）
+     * @param limit 最多删除的成员数
+     * @param logSize 变更日志保留的条数
+     * @param indexKey 索引Set的键
+     * @param indexMember 在索引Set中代表该key的值
+     * @param closeTime 关闭标记的过期时间(秒)
+     * @return 这次删除的结果
+     */
+    @SuppressWarnings("unchecked")
+    public ZSetUpdate zRemoveRangeByScoreLogged(String key, long max, long limit, long logSize,
+                                                String indexKey, Object indexMember, long closeTime) {
+        List<Object> result = executeScript(ZSET_REMOVE_RANGE_LOGGED_SCRIPT,
+                Arrays.asList(key, versionKey(key), logKey(key), indexKey, closedKey(key)),
+                bytes(String.valueOf(max)), bytes(String.valueOf(limit)), bytes(String.valueOf(logSize)),
+                valueSerializer().serialize(indexMember), bytes(String.valueOf(closeTime)));
+        long version = (Long) result.get(0);
+        List<Object> removed = new ArrayList<>();
+        for (Object member : (List<Object>) result.get(1)) {
+            removed.add(valueSerializer().deserialize((byte[]) member));
+        }
+        ZSetChanges changes = new ZSetChanges(version - removed.size(), version, Collections.emptyList(), removed);
+        return new ZSetUpdate(changes, (Long) result.get(2), null, (Long) result.get(3) == 1L);
+    }
+
+    /**
+     * 获取 version 之后的变更，同一成员的先增后删（或先删后增）相互抵消
+     *
+     * @param key 键
+     * @param version 起始版本号
+     * @return 变更，日志无法给出完整增量时返回null
+     */
+    @SuppressWarnings("unchecked")
+    public ZSetChanges zChangesSince(String key, long version) {
+        List<Object> result = executeScript(ZSET_CHANGES_SCRIPT,
+                Arrays.asList(versionKey(key), logKey(key)), bytes(String.valueOf(version)));
+        if ((Long) result.get(1) == 0L) {
+            return null;
+        }
+        List<Object> entries = (List<Object>) result.get(2);
+        Set<Object> added = new LinkedHashSet<>();
+        Set<Object> removed = new LinkedHashSet<>();
+        // 日志新的在前，按时间顺序合并
+        for (int i = entries.size() - 1; i >= 0; i--) {
+            byte[] entry = (byte[]) entries.get(i);
+            Object member = valueSerializer().deserialize(Arrays.copyOfRange(entry, 1, entry.length));
+            if (entry[0] == '+') {
+                if (!removed.remove(member)) {
+                    added.add(member);
+                }
+            } else if (!added.remove(member)) {
+                removed.add(member);
+            }
+        }
+        return new ZSetChanges(version, (Long) result.get(0), new ArrayList<>(added), new ArrayList<>(removed));
+    }
+
+    /**
+     * 获取全部成员及其对应的版本号
+     *
+     * @param key 键
+     * @return 从空集合到当前版本的变更，added 即全部成员
+     */
+    @SuppressWarnings("unchecked")
+    public ZSetChanges zSnapshot(String key) {
+        List<Object> result = executeScript(ZSET_SNAPSHOT_SCRIPT, Arrays.asList(key, versionKey(key)));
+        List<Object> members = new ArrayList<>();
+        for (Object member : (List<Object>) result.get(1)) {
+            members.add(valueSerializer().deserialize((byte[]) member));
+        }
+        return new ZSetChanges(0L, (Long) result.get(0), members, Collections.emptyList());
+    }
+
+    /**
+     * 关闭带变更日志的ZSet：删除成员、版本号和日志，从索引Set中移除，关闭标记过期前不再写入成员
+     *
+     * @param key 键
+     * @param indexKey 索引Set的键
+     * @param indexMember 在索引Set中代表该key的值
+     * @param closeTime 关闭标记的过期时间(秒)
+     */
+    public void zCloseLogged(String key, String indexKey, Object indexMember, long closeTime) {
+        executeScript(ZSET_CLOSE_LOGGED_SCRIPT,
+                Arrays.asList(key, versionKey(key), logKey(key), indexKey, closedKey(key)),
+                valueSerializer().serialize(indexMember), bytes(String.valueOf(closeTime)));
+    }
+
+    private static String versionKey(String key) {
+        return key + ":version";
+    }
+
+    private static String logKey(String key) {
+        return key + ":log";
+    }
+
+    private static String closedKey(String key) {
+        return key + ":closed";
+    }
+
+    /**
+     * 执行返回数组的脚本，参数和返回的字符串均为原始字节，整数为Long
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private List<Object> executeScript(RedisScript<List> script, List<String> keys, Object... args) {
+        List<Object> result = redisTemplate.execute(script, RedisSerializer.byteArray(), (RedisSerializer) RedisSerializer.byteArray(),
+                keys, args);
+        if (result == null) {
+            throw new IllegalStateException("Redis script returned no result");
+        }
+        return result;
+    }
+
+    @SuppressWarnings("unchecked")
+    private RedisSerializer<Object> valueSerializer() {
+        return (RedisSerializer<Object>) redisTemplate.getValueSerializer();
+    }
+
+    // ===============================Stream=================================
+
+    /**
+     * 按记录ID顺序追加Stream记录（XADD MAXLEN ~），刷新过期时间并在同一脚本内发布消息（PUBLISH），
+     * 因此频道上的消息顺序与Stream中的记录顺序一致。记录ID不大于Stream最后一条记录时不追加、不发布，
+     * 返回Stream最后的记录ID
+     */
+    private static final RedisScript<Long> STREAM_APPEND_SCRIPT = new DefaultRedisScript<>(
+            "local ok = redis.pcall('XADD', KEYS[1], 'MAXLEN', '~', ARGV[2], ARGV[1] .. '-0', ARGV[3], ARGV[4]) " +
+            "if type(ok) == 'table' and ok.err then " +
+            "  local info = redis.call('XINFO', 'STREAM', KEYS[1]) " +
+            "  for i = 1, #info, 2 do " +
+            "    if info[i] == 'last-generated-id' then return tonumber(string.match(info[i + 1], '^%d+')) end " +
+            "  end " +
+            "  return redis.error_reply(ok.err) " +
+            "end " +
+            "if tonumber(ARGV[5]) > 0 then redis.call('EXPIRE', KEYS[1], ARGV[5]) end " +
+            "if ARGV[6] ~= '' then redis.call('PUBLISH', ARGV[6], ARGV[7]) end " +
+            "return false", Long.class);
+
+    /**
+     * 追加Stream记录，追加成功时向频道发布消息
+     *
+     * @param key 键
+     * @param id 记录ID（单调递增的数字，对应Stream记录ID的毫秒部分）
+     * @param field 字段
+     * @param value 值
+     * @param maxLen 最大长度（近似裁剪）
+     * @param time 时间(秒)
+     * @param channel 频道，为null时不发布
+     * @param message 发布的消息
+     * @return 追加成功返回null；记录ID不大于Stream最后一条记录时返回最后的记录ID
+     */
+    @SuppressWarnings("unchecked")
+    public Long xAdd(String key, long id, String field, Object value, long maxLen, long time,
+                     String channel, Object message) {
+        RedisSerializer<Object> valueSerializer = (RedisSerializer<Object>) redisTemplate.getHashValueSerializer();
+        return redisTemplate.execute(STREAM_APPEND_SCRIPT, RedisSerializer.byteArray(), null,
+                Collections.singletonList(key),
+                bytes(String.valueOf(id)), bytes(String.valueOf(maxLen)), bytes(field),
+                valueSerializer.serialize(value), bytes(String.valueOf(time)),
+                bytes(channel != null ? channel : ""),
+                channel != null ? valueSerializer().serialize(message) : new byte[0]);
+    }
+
+    /**
+     * 从新到旧读取记录ID不小于 fromId 的Stream记录（XREVRANGE + fromId COUNT count）
+     *
+     * @param key 键
+     * @param fromId 起始记录ID（包含），小于等于0代表从最旧的记录开始
+     * @param count 最多返回的条数
+     * @return 记录列表，按记录ID降序
+     */
+    public List<MapRecord<String, Object, Object>> xRevRange(String key, long fromId, long count) {
+        Range<String> range = fromId > 0
+                ? Range.rightUnbounded(Range.Bound.inclusive(fromId + "-0"))
+                : Range.unbounded();
+        return redisTemplate.opsForStream().reverseRange(key, range, RedisZSetCommands.Limit.limit().count((int) count));
+    }
+
+    private static byte[] bytes(String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,124 @@
+package com.chat.util;
+
+import com.chat.model.dto.PresenceChange;
+import com.chat.model.dto.RoomEvent;
+import com.chat.model.vo.MessageVO;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.stereotype.Component;
+import org.springframework.util.StringUtils;
+
+import java.util.Collections;
+import java.util.UUID;
+
+/**
+ * 房间事件广播器
+ * 在线列表和房间删除先唤醒本节点的等待者，再把精简事件发布到 Redis 频道，由其他节点各自分发给本地等待者。
+ * 新消息事件随 Stream 追加一起发布（见 {@link #createMessageEvent}），所有节点按频道顺序分发
+ *
+ * @author chat
+ * @since 2024-01-01
+ */
+@Slf4j
+@Component
+public class RoomEventBroadcaster {
+
+    /** 房间事件频道 */
+    public static final String ROOM_EVENT_CHANNEL = "chat:room:events";
+
+    private final RedisTemplate<String, Object> redisTemplate;
+    private final PresenceBroadcaster presenceBroadcaster;
+
+    /** 是否启用跨节点广播 */
+    @Value("${chat.cluster.enabled:true}")
+    private boolean clusterEnabled;
+
+    /** 当前节点ID */
+    private final String nodeId;
+
+    public RoomEventBroadcaster(RedisTemplate<String, Object> redisTemplate,
+                                PresenceBroadcaster presenceBroadcaster,
+                                @Value("${chat.cluster.node-id:}") String nodeId) {
+        this.redisTemplate = redisTemplate;
+        this.presenceBroadcaster = presenceBroadcaster;
+        this.nodeId = StringUtils.hasText(nodeId) ? nodeId : UUID.randomUUID().toString();
+    }
+
+    public String getNodeId() {
+        return nodeId;
+    }
+
+    /**
+     * 是否启用跨节点广播
+     */
+    public boolean isClusterEnabled() {
+        return clusterEnabled;
+    }
+
+    /**
+     * 创建新消息事件，与消息一起追加到Stream的脚本内发布，保证频道上的消息按ID升序。
+     * 包括本节点在内的所有节点都从频道按顺序分发，见 RoomEventSubscriber
+     *
+     * @param roomId 聊天室ID
+     * @param message 新消息
+     * @return 消息事件
+     */
+    public RoomEvent createMessageEvent(String roomId, MessageVO message) {
+        return new RoomEvent(RoomEvent.TYPE_MESSAGE, roomId, nodeId, message, null);
+    }
+
+    /**
+     * 在本节点分发新消息，调用方保证同一房间按ID升序调用
+     *
+     * @param roomId 聊天室ID
+     * @param message 新消息
+     */
+    public void notifyMessage(String roomId, MessageVO message) {
+        LongPollingUtil.notifyRoom(roomId, Collections.singletonList(message));
+    }
+
+    /**
+     * 通知其他节点丢弃该房间的最近消息缓存，用于消息未能随Stream追加一起发布时
+     *
+     * @param roomId 聊天室ID
+     */
+    public void publishCacheReset(String roomId) {
+        publish(new RoomEvent(RoomEvent.TYPE_CACHE_RESET, roomId, nodeId, null, null));
+    }
+
+    /**
+     * 广播在线用户变化，只携带变化的用户
+     * 其他节点立即收到变化以更新缓存，等待者的通知在合并窗口结束后发出
+     *
+     * @param roomId 聊天室ID
+     * @param change 在线列表变化
+     */
+    public void publishUserListUpdate(String roomId, PresenceChange change) {
+        presenceBroadcaster.submit(roomId, change);
+        publish(new RoomEvent(RoomEvent.TYPE_PRESENCE, roomId, nodeId, null, change));
+    }
+
+    /**
+     * 广播房间删除
+     *
+     * @param roomId 聊天室ID
+     */
+    public void publishRoomDeleted(String roomId) {
+        presenceBroadcaster.discard(roomId);
+        LongPollingUtil.notifyRoomDeleted(roomId);
+        publish(new RoomEvent(RoomEvent.TYPE_ROOM_DELETED, roomId, nodeId, null, null));
+    }
+
+    private void publish(RoomEvent event) {
+        if (!clusterEnabled) {
+            return;
+        }
+        try {
+            redisTemplate.convertAndSend(ROOM_EVENT_CHANNEL, event);
+        } catch (Exception e) {
+            // 发布失败只影响其他节点的实时性，等待者超时后会重新拉取
+            log.error("Failed to publish room event: {}", event, e);
+        }
+    }
+}
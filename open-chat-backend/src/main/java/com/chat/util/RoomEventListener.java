@@ -0,0 +1,50 @@
+package com.chat.util;
+
+import com.chat.model.dto.PresenceChange;
+import com.chat.model.vo.PollResult;
+
+import java.util.function.Supplier;
+
+/**
+ * 房间事件监听器
+ * 与长轮询共用同一个扇出点，由 LongPollingUtil 在通知等待请求时一并回调
+ *
+ * @author chat
+ * @since 2024-01-01
+ */
+public interface RoomEventListener {
+
+    /**
+     * 本节点是否有该房间的订阅
+     *
+     * @param roomId 聊天室ID
+     * @return 是否有订阅
+     */
+    boolean hasSubscribers(String roomId);
+
+    /**
+     * 房间有新消息
+     *
+     * @param roomId 聊天室ID
+     * @param result 消息结果
+     */
+    void onMessages(String roomId, PollResult result);
+
+    /**
+     * 房间在线用户列表变化
+     * 增量只适用于持有 change.fromVersion 的订阅，版本对不上的订阅应改为推送完整列表
+     *
+     * @param roomId 聊天室ID
+     * @param change 在线列表变化，为 null 时 result 即完整列表
+     * @param result 用户列表结果
+     * @param snapshot 获取完整列表结果，同一次通知内只读取一次
+     */
+    void onUserListUpdate(String roomId, PresenceChange change, PollResult result, Supplier<PollResult> snapshot);
+
+    /**
+     * 房间已删除
+     *
+     * @param roomId 聊天室ID
+     */
+    void onRoomDeleted(String roomId);
+}
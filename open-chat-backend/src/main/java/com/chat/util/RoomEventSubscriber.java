@@ -0,0 +1,133 @@
+package com.chat.util;
+
+import com.chat.model.dto.RoomEvent;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.connection.SubscriptionListener;
+import org.springframework.data.redis.core.RedisTemplate;
+
+import java.util.Collections;
+
+/**
+ * 房间事件订阅者
+ * 每个节点订阅一次房间事件频道，把本节点有等待者的房间事件分发到本地。
+ * 新消息事件（包括本节点发布的）在单个分发线程上按频道顺序处理，频道顺序即消息ID顺序，
+ * 因此各节点的最近消息缓存和等待者看到的消息都按ID升序到达；其他事件只处理其他节点发布的。
+ * 频道不保证送达，每次（重新）订阅时丢弃所有最近消息缓存，断线期间错过的消息改从 Stream 读取
+ *
+ * @author chat
+ * @since 2024-01-01
+ */
+@Slf4j
+public class RoomEventSubscriber implements MessageListener, SubscriptionListener {
+
+    private final RedisTemplate<String, Object> redisTemplate;
+    private final RoomEventBroadcaster roomEventBroadcaster;
+    private final RecentMessageCache recentMessageCache;
+    private final MessageIdGenerator messageIdGenerator;
+    private final PresenceManager presenceManager;
+    private final PresenceBroadcaster presenceBroadcaster;
+
+    public RoomEventSubscriber(RedisTemplate<String, Object> redisTemplate,
+                               RoomEventBroadcaster roomEventBroadcaster,
+                               RecentMessageCache recentMessageCache,
+                               MessageIdGenerator messageIdGenerator,
+                               PresenceManager presenceManager,
+                               PresenceBroadcaster presenceBroadcaster) {
+        this.redisTemplate = redisTemplate;
+        this.roomEventBroadcaster = roomEventBroadcaster;
+        this.recentMessageCache = recentMessageCache;
+        this.messageIdGenerator = messageIdGenerator;
+        this.presenceManager = presenceManager;
+        this.presenceBroadcaster = presenceBroadcaster;
+    }
+
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        Object value = redisTemplate.getValueSerializer().deserialize(message.getBody());
+        if (!(value instanceof RoomEvent)) {
+            return;
+        }
+        RoomEvent event = (RoomEvent) value;
+        boolean local = roomEventBroadcaster.getNodeId().equals(event.getNodeId());
+        if (RoomEvent.TYPE_MESSAGE.equals(event.getType()) && event.getMessage() != null) {
+            if (local) {
+                recentMessageCache.add(event.getMessage());
+            } else {
+                // 推进本节点的ID时钟，之后本节点发送的消息排在这条消息之后
+                messageIdGenerator.observe(event.getMessage().getId());
+                // 本节点已缓存的房间需要同步其他节点的消息
+                recentMessageCache.addIfPresent(event.getMessage());
+            }
+        } else if (local) {
+            // 忽略本节点发布的其他事件（已在发布时本地分发）
+            return;
+        } else if (RoomEvent.TYPE_PRESENCE.equals(event.getType())) {
+            presenceManager.apply(event.getRoomId(), event.getPresence());
+        } else if (RoomEvent.TYPE_ROOM_DELETED.equals(event.getType())) {
+            recentMessageCache.evict(event.getRoomId());
+            presenceManager.invalidate(event.getRoomId());
+        } else if (RoomEvent.TYPE_CACHE_RESET.equals(event.getType())) {
+            recentMessageCache.evict(event.getRoomId());
+            return;
+        }
+        // 本节点没有等待者的房间直接忽略
+        if (!LongPollingUtil.hasSubscribers(event.getRoomId())) {
+            return;
+        }
+        try {
+            dispatch(event);
+        } catch (Exception e) {
+            log.error("Failed to dispatch room event: {}", event, e);
+        }
+    }
+
+    @Override
+    public void onChannelSubscribed(byte[] channel, long count) {
+        // 订阅建立之前（包括断线重连期间）发布的事件不会再收到
+        log.info("房间事件频道已订阅，丢弃最近消息缓存");
+        recentMessageCache.evictAll();
+    }
+
+    @Override
+    public void onChannelUnsubscribed(byte[] channel, long count) {
+        recentMessageCache.evictAll();
+    }
+
+    @Override
+    public void onPatternSubscribed(byte[] pattern, long count) {
+    }
+
+    @Override
+    public void onPatternUnsubscribed(byte[] pattern, long count) {
+    }
+
+    /**
+     * 连接断开时丢弃最近消息缓存，订阅恢复之前的读取改从 Stream 获取
+     */
+    public void onDisconnected() {
+        recentMessageCache.evictAll();
+    }
+
+    private void dispatch(RoomEvent event) {
+        String roomId = event.getRoomId();
+        switch (event.getType()) {
+            case RoomEvent.TYPE_MESSAGE:
+                LongPollingUtil.notifyRoom(roomId, Collections.singletonList(event.getMessage()));
+                break;
+            case RoomEvent.TYPE_PRESENCE:
+                if (event.getPresence() == null) {
+                    break;
+                }
+                presenceBroadcaster.submit(roomId, event.getPresence());
+                break;
+            case RoomEvent.TYPE_ROOM_DELETED:
+                presenceBroadcaster.discard(roomId);
+                LongPollingUtil.notifyRoomDeleted(roomId);
+                break;
+            default:
+                log.warn("Unknown room event type: {}", event.getType());
+        }
+    }
+}
@@ -0,0 +1,195 @@
+package com.chat.util;
+
+import com.baomidou.mybatisplus.core.conditions.query.LambdaQueryWrapper;
+import com.chat.mapper.ChatMessageMapper;
+import com.chat.mapper.PurgeJobMapper;
+import com.chat.model.entity.PurgeJob;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 聊天室消息的后台清理
+ * 删除聊天室时只登记清理任务，由后台线程按消息ID区间分批逻辑删除或物理删除，每批一条语句、单独提交，
+ * 批与批之间暂停 chunk-interval，避免一次锁住整个聊天室的消息并阻塞同一索引区间上的写入。
+ * 每批之后在任务表中记录进度并续租；节点重启或宕机后，租约到期的任务由任意节点从记录的进度继续
+ *
+ * @author chat
+ * @since 2024-01-01
+ */
+@Slf4j
+@Component
+@ConditionalOnProperty(name = "chat.message.store", havingValue = "mysql", matchIfMissing = true)
+public class RoomPurger implements MetricsSource {
+
+    /** 每次扫描领取的任务数 */
+    private static final int SCAN_LIMIT = 10;
+
+    private final PurgeJobMapper purgeJobMapper;
+    private final ChatMessageMapper chatMessageMapper;
+
+    private final LongAdder submitted = new LongAdder();
+    private final LongAdder completed = new LongAdder();
+    private final LongAdder chunks = new LongAdder();
+    private final LongAdder purged = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    /** 正在清理的聊天室 */
+    private volatile String currentRoom;
+
+    /** 执行清理任务的线程，同一时间只执行一个任务 */
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "room-purger");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /** 清理方式：soft 逻辑删除，hard 物理删除 */
+    @Value("${chat.purge.mode:soft}")
+    private String mode;
+
+    /** 每批清理的消息数 */
+    @Value("${chat.purge.chunk-size:1000}")
+    private int chunkSize;
+
+    /** 每批之间的间隔（毫秒） */
+    @Value("${chat.purge.chunk-interval:50}")
+    private long chunkInterval;
+
+    /** 扫描未完成任务的间隔（秒） */
+    @Value("${chat.purge.poll-interval:30}")
+    private long pollInterval;
+
+    /** 执行节点的租约时长（秒） */
+    @Value("${chat.purge.lease:60}")
+    private long lease;
+
+    public RoomPurger(PurgeJobMapper purgeJobMapper, ChatMessageMapper chatMessageMapper) {
+        this.purgeJobMapper = purgeJobMapper;
+        this.chatMessageMapper = chatMessageMapper;
+    }
+
+    @PostConstruct
+    public void init() {
+        // 启动后立即继续未完成的任务，之后定期扫描其他节点遗留的任务
+        executor.scheduleWithFixedDelay(this::runPending, 0, pollInterval, TimeUnit.SECONDS);
+    }
+
+    @PreDestroy
+    public void destroy() {
+        // 中断当前任务，进度已按批记录，租约到期后继续
+        executor.shutdownNow();
+    }
+
+    /**
+     * 登记聊天室的清理任务并唤醒清理线程
+     *
+     * @param roomId 聊天室ID
+     */
+    public void submit(String roomId) {
+        PurgeJob job = new PurgeJob();
+        job.setRoomId(roomId);
+        job.setMode("hard".equalsIgnoreCase(mode) ? PurgeJob.MODE_HARD : PurgeJob.MODE_SOFT);
+        job.setStatus(PurgeJob.STATUS_PENDING);
+        job.setLastId(0L);
+        job.setPurged(0L);
+        purgeJobMapper.insert(job);
+        submitted.increment();
+        log.info("登记消息清理任务: roomId={}, jobId={}, mode={}", roomId, job.getId(), job.getMode());
+        if (!executor.isShutdown()) {
+            executor.execute(this::runPending);
+        }
+    }
+
+    @Override
+    public String getMetricsName() {
+        return "purge";
+    }
+
+    @Override
+    public Map<String, Object> getMetrics() {
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        metrics.put("submitted", submitted.sum());
+        metrics.put("completed", completed.sum());
+        metrics.put("failed", failed.sum());
+        metrics.put("chunks", chunks.sum());
+        metrics.put("purged", purged.sum());
+        metrics.put("currentRoom", currentRoom);
+        return metrics;
+    }
+
+    /**
+     * 依次领取并执行未完成且租约已过期的任务，直到没有可领取的任务
+     */
+    private void runPending() {
+        try {
+            List<PurgeJob> jobs;
+            do {
+                jobs = purgeJobMapper.selectList(new LambdaQueryWrapper<PurgeJob>()
+                        .ne(PurgeJob::getStatus, PurgeJob.STATUS_DONE)
+                        .and(w -> w.isNull(PurgeJob::getLeaseUntil).or().apply("lease_until < NOW()"))
+                        .orderByAsc(PurgeJob::getId)
+                        .last("LIMIT " + SCAN_LIMIT));
+                for (PurgeJob job : jobs) {
+                    if (Thread.currentThread().isInterrupted()) {
+                        return;
+                    }
+                    if (purgeJobMapper.claim(job.getId(), lease) == 1) {
+                        run(job);
+                    }
+                }
+            } while (jobs.size() >= SCAN_LIMIT);
+        } catch (Exception e) {
+            log.error("Failed to run purge jobs", e);
+        }
+    }
+
+    private void run(PurgeJob job) {
+        String roomId = job.getRoomId();
+        boolean hard = PurgeJob.MODE_HARD.equals(job.getMode());
+        long lastId = job.getLastId();
+        currentRoom = roomId;
+        try {
+            while (true) {
+                Long end = chatMessageMapper.selectChunkEnd(roomId, lastId, chunkSize);
+                if (end == null) {
+                    purgeJobMapper.finish(job.getId(), lastId);
+                    completed.increment();
+                    log.info("消息清理完成: roomId={}, jobId={}", roomId, job.getId());
+                    return;
+                }
+                int rows = hard
+                        ? chatMessageMapper.deleteRange(roomId, lastId, end)
+                        : chatMessageMapper.softDeleteRange(roomId, lastId, end);
+                if (purgeJobMapper.progress(job.getId(), lastId, end, rows, lease) != 1) {
+                    log.warn("消息清理任务已被其他节点接手: roomId={}, jobId={}", roomId, job.getId());
+                    return;
+                }
+                lastId = end;
+                chunks.increment();
+                purged.add(rows);
+                if (chunkInterval > 0) {
+                    Thread.sleep(chunkInterval);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            // 租约到期后重试
+            failed.increment();
+            log.error("Failed to purge messages: roomId={}, jobId={}", roomId, job.getId(), e);
+        } finally {
+            currentRoom = null;
+        }
+    }
+}
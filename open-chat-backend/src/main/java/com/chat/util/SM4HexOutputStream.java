@@ -0,0 +1,109 @@
+package com.chat.util;
+
+import javax.crypto.Cipher;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.security.GeneralSecurityException;
+
+/**
+ * 边写边加密的输出流：写入的明文分段 SM4 加密后以小写十六进制字符写到 out，
+ * 结果与 {@link SM4Util#encrypt(String)} 相同，内存占用与明文长度无关。
+ * 关闭（或 finish）时写出最后一个填充分组，不关闭 out；中途出错必须调用 abort
+ *
+ * @author chat
+ * @since 2024-01-01
+ */
+public class SM4HexOutputStream extends OutputStream {
+
+    /** 每次交给 Cipher 的明文长度 */
+    private static final int CHUNK = 4096;
+
+    private final Writer out;
+    private final Cipher cipher = SM4Util.streamEncryptor();
+    private final byte[] encrypted = new byte[CHUNK + 32];
+    private final char[] hex = new char[2 * (CHUNK + 32)];
+    private final byte[] single = new byte[1];
+    private boolean finished;
+
+    public SM4HexOutputStream(Writer out) {
+        this.out = out;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        single[0] = (byte) b;
+        write(single, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (finished) {
+            throw new IOException("Stream finished");
+        }
+        try {
+            while (len > 0) {
+                int n = Math.min(len, CHUNK);
+                emit(cipher.update(b, off, n, encrypted, 0));
+                off += n;
+                len -= n;
+            }
+        } catch (GeneralSecurityException e) {
+            fail(e);
+        }
+    }
+
+    /**
+     * 写出最后一个分组，之后不能再写入
+     */
+    public void finish() throws IOException {
+        if (finished) {
+            return;
+        }
+        finished = true;
+        try {
+            emit(cipher.doFinal(encrypted, 0));
+        } catch (GeneralSecurityException e) {
+            fail(e);
+        }
+    }
+
+    /**
+     * 放弃写出，写入过程出错时调用，使当前线程的 Cipher 恢复初始状态
+     */
+    public void abort() {
+        if (finished) {
+            return;
+        }
+        finished = true;
+        try {
+            cipher.doFinal(encrypted, 0);
+        } catch (GeneralSecurityException e) {
+            SM4Util.resetStreamEncryptor();
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        finish();
+    }
+
+    private void emit(int length) throws IOException {
+        if (length == 0) {
+            return;
+        }
+        SM4Util.encodeHex(encrypted, 0, length, hex, 0);
+        out.write(hex, 0, 2 * length);
+    }
+
+    private void fail(GeneralSecurityException e) throws IOException {
+        finished = true;
+        SM4Util.resetStreamEncryptor();
+        throw new IOException("SM4 encryption failed", e);
+    }
+}
@@ -1,65 +1,191 @@
 package com.chat.util;
 
 import org.bouncycastle.jce.provider.BouncyCastleProvider;
-import org.bouncycastle.util.encoders.Hex;
 import javax.crypto.Cipher;
 import javax.crypto.spec.SecretKeySpec;
 import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
 import java.security.Security;
-import java.util.Base64;
+import java.util.Arrays;
 
 public class SM4Util {
     private static final String ALGORITHM_NAME = "SM4/ECB/PKCS7Padding";
     // 密钥必须是16字节的十六进制字符串
     private static final String KEY = "31323334353637383930414243444546";
 
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+    /** 十六进制字符到数值，非法字符为 -1 */
+    private static final byte[] HEX_VALUES = new byte[128];
+
+    private static final SecretKeySpec KEY_SPEC;
+
+    // 每个线程复用已初始化的 Cipher：ECB 模式没有 IV，doFinal 之后恢复为初始化后的状态，可直接用于下一次调用
+    private static final ThreadLocal<Cipher> ENCRYPTOR = ThreadLocal.withInitial(() -> newCipher(Cipher.ENCRYPT_MODE));
+    private static final ThreadLocal<Cipher> DECRYPTOR = ThreadLocal.withInitial(() -> newCipher(Cipher.DECRYPT_MODE));
+    // 分段加密使用单独的 Cipher，不影响同一线程中穿插的整体加解密
+    private static final ThreadLocal<Cipher> STREAM_ENCRYPTOR = ThreadLocal.withInitial(() -> newCipher(Cipher.ENCRYPT_MODE));
+
     static {
         Security.addProvider(new BouncyCastleProvider());
+        Arrays.fill(HEX_VALUES, (byte) -1);
+        for (int i = 0; i < 10; i++) {
+            HEX_VALUES['0' + i] = (byte) i;
+        }
+        for (int i = 0; i < 6; i++) {
+            HEX_VALUES['a' + i] = (byte) (10 + i);
+            HEX_VALUES['A' + i] = (byte) (10 + i);
+        }
+        KEY_SPEC = new SecretKeySpec(decodeHex(KEY), "SM4");
     }
 
-    private static byte[] hexStringToByteArray(String s) {
+    private static Cipher newCipher(int mode) {
+        try {
+            Cipher cipher = Cipher.getInstance(ALGORITHM_NAME, "BC");
+            cipher.init(mode, KEY_SPEC);
+            return cipher;
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("SM4 cipher initialization failed", e);
+        }
+    }
+
+    /**
+     * 十六进制解码，大小写均可
+     */
+    public static byte[] decodeHex(CharSequence s) {
         int len = s.length();
+        if ((len & 1) != 0) {
+            throw new IllegalArgumentException("Odd hex length: " + len);
+        }
         byte[] data = new byte[len / 2];
         for (int i = 0; i < len; i += 2) {
-            data[i / 2] = (byte) ((Character.digit(s.charAt(i), 16) << 4)
-                    + Character.digit(s.charAt(i+1), 16));
+            data[i / 2] = (byte) ((hexValue(s.charAt(i)) << 4) | hexValue(s.charAt(i + 1)));
         }
         return data;
     }
 
-    private static String byteArrayToHexString(byte[] bytes) {
-        StringBuilder result = new StringBuilder();
-        for (byte b : bytes) {
-            result.append(String.format("%02x", b));
+    /**
+     * 十六进制解码到 out 的 outOffset 处，返回写入的字节数
+     */
+    public static int decodeHex(CharSequence s, byte[] out, int outOffset) {
+        int len = s.length();
+        if ((len & 1) != 0) {
+            throw new IllegalArgumentException("Odd hex length: " + len);
+        }
+        for (int i = 0; i < len; i += 2) {
+            out[outOffset + i / 2] = (byte) ((hexValue(s.charAt(i)) << 4) | hexValue(s.charAt(i + 1)));
+        }
+        return len / 2;
+    }
+
+    /**
+     * 十六进制解码 ASCII 字节，用于直接处理请求体
+     */
+    public static byte[] decodeHex(byte[] hex, int offset, int length) {
+        if ((length & 1) != 0) {
+            throw new IllegalArgumentException("Odd hex length: " + length);
+        }
+        byte[] data = new byte[length / 2];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) ((hexValue((char) (hex[offset + 2 * i] & 0xff)) << 4)
+                    | hexValue((char) (hex[offset + 2 * i + 1] & 0xff)));
+        }
+        return data;
+    }
+
+    /**
+     * 小写十六进制编码
+     */
+    public static String encodeHex(byte[] bytes) {
+        char[] chars = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            chars[2 * i] = HEX_DIGITS[(bytes[i] >> 4) & 0x0f];
+            chars[2 * i + 1] = HEX_DIGITS[bytes[i] & 0x0f];
+        }
+        return new String(chars);
+    }
+
+    /**
+     * 小写十六进制编码为 ASCII 字节，写入 out 的 outOffset 处，需要 2 * length 字节
+     */
+    public static void encodeHex(byte[] bytes, int offset, int length, byte[] out, int outOffset) {
+        for (int i = 0; i < length; i++) {
+            byte b = bytes[offset + i];
+            out[outOffset + 2 * i] = (byte) HEX_DIGITS[(b >> 4) & 0x0f];
+            out[outOffset + 2 * i + 1] = (byte) HEX_DIGITS[b & 0x0f];
         }
-        return result.toString();
+    }
+
+    /**
+     * 小写十六进制编码为字符，写入 out 的 outOffset 处，需要 2 * length 个字符
+     */
+    public static void encodeHex(byte[] bytes, int offset, int length, char[] out, int outOffset) {
+        for (int i = 0; i < length; i++) {
+            byte b = bytes[offset + i];
+            out[outOffset + 2 * i] = HEX_DIGITS[(b >> 4) & 0x0f];
+            out[outOffset + 2 * i + 1] = HEX_DIGITS[b & 0x0f];
+        }
+    }
+
+    private static int hexValue(char c) {
+        int value = c < 128 ? HEX_VALUES[c] : -1;
+        if (value < 0) {
+            throw new IllegalArgumentException("Invalid hex character: " + c);
+        }
+        return value;
     }
 
     // 加密
     public static String encrypt(String data) {
-        try {
-            if (data == null) return null;
-            Cipher cipher = Cipher.getInstance(ALGORITHM_NAME, "BC");
-            SecretKeySpec sm4Key = new SecretKeySpec(hexStringToByteArray(KEY), "SM4");
-            cipher.init(Cipher.ENCRYPT_MODE, sm4Key);
-            byte[] encrypted = cipher.doFinal(data.getBytes(StandardCharsets.UTF_8));
-            return byteArrayToHexString(encrypted);
-        } catch (Exception e) {
-            throw new RuntimeException("SM4 encryption failed", e);
-        }
+        if (data == null) return null;
+        return encodeHex(encrypt(data.getBytes(StandardCharsets.UTF_8)));
     }
 
     // 解密
     public static String decrypt(String data) {
+        if (data == null) return null;
         try {
-            if (data == null) return null;
-            Cipher cipher = Cipher.getInstance(ALGORITHM_NAME, "BC");
-            SecretKeySpec sm4Key = new SecretKeySpec(hexStringToByteArray(KEY), "SM4");
-            cipher.init(Cipher.DECRYPT_MODE, sm4Key);
-            byte[] decrypted = cipher.doFinal(hexStringToByteArray(data));
-            return new String(decrypted, StandardCharsets.UTF_8);
-        } catch (Exception e) {
+            return new String(decrypt(decodeHex(data)), StandardCharsets.UTF_8);
+        } catch (IllegalArgumentException e) {
             throw new RuntimeException("SM4 decryption failed", e);
         }
     }
-} 
\ No newline at end of file
+
+    // 加密字节
+    public static byte[] encrypt(byte[] data) {
+        return doFinal(ENCRYPTOR, data, 0, data.length, "SM4 encryption failed");
+    }
+
+    // 解密字节
+    public static byte[] decrypt(byte[] data) {
+        return decrypt(data, 0, data.length);
+    }
+
+    // 解密 data 中 offset 开始的 length 个字节
+    public static byte[] decrypt(byte[] data, int offset, int length) {
+        return doFinal(DECRYPTOR, data, offset, length, "SM4 decryption failed");
+    }
+
+    /**
+     * 当前线程分段加密用的 Cipher，update 之后必须 doFinal 恢复初始状态
+     */
+    static Cipher streamEncryptor() {
+        return STREAM_ENCRYPTOR.get();
+    }
+
+    /**
+     * 分段加密失败后丢弃当前线程的 Cipher
+     */
+    static void resetStreamEncryptor() {
+        STREAM_ENCRYPTOR.remove();
+    }
+
+    private static byte[] doFinal(ThreadLocal<Cipher> holder, byte[] data, int offset, int length, String message) {
+        try {
+            return holder.get().doFinal(data, offset, length);
+        } catch (GeneralSecurityException e) {
+            // 失败后 Cipher 的状态不确定，下次调用重新创建
+            holder.remove();
+            throw new RuntimeException(message, e);
+        }
+    }
+}
@@ -0,0 +1,392 @@
+package com.chat.util;
+
+import com.chat.model.dto.PresenceChange;
+import com.chat.model.vo.MessageVO;
+import com.chat.model.vo.PollResult;
+import com.chat.service.ChatService;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * SSE 推送管理器
+ * 每个房间订阅对应一个长连接，消息、在线用户和房间删除事件通过同一连接推送。
+ * 事件数据与 @Crypto 接口一致，使用 SM4 加密后的十六进制字符串，每个事件只序列化、加密一次，再放入各订阅的队列。
+ * 与 WebSocket 相同，事件先放入每个订阅独立的有界发送队列，由发送线程池写出，
+ * 慢连接不会阻塞分发线程；队列溢出时断开该连接，客户端携带 Last-Event-ID 重连补发
+ *
+ * @author chat
+ * @since 2024-01-01
+ */
+@Slf4j
+@Component
+public class SseEmitterManager implements RoomEventListener {
+
+    /** 消息事件名 */
+    public static final String EVENT_MESSAGE = "message";
+    /** 在线用户事件名：订阅时推送完整列表，之后只推送上线和离开的用户 */
+    public static final String EVENT_PRESENCE = "presence";
+    /** 房间删除事件名 */
+    public static final String EVENT_ROOM_DELETED = "room-deleted";
+
+    /** 存储每个房间的 SSE 订阅 */
+    private final Map<String, Set<Subscription>> subscriptions = new ConcurrentHashMap<>();
+
+    /** 用于发送心跳的调度器 */
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "sse-heartbeat");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final ChatService chatService;
+    private final ObjectMapper objectMapper;
+
+    /** 连接超时时间（毫秒），超时后客户端携带 Last-Event-ID 重连 */
+    @Value("${chat.sse.timeout:1800000}")
+    private long emitterTimeout;
+
+    /** 心跳间隔（秒） */
+    @Value("${chat.sse.heartbeat:15}")
+    private long heartbeatInterval;
+
+    /** 每个订阅的发送队列容量（事件） */
+    @Value("${chat.sse.queue-capacity:256}")
+    private int queueCapacity;
+
+    /** 发送线程数 */
+    @Value("${chat.sse.sender-threads:4}")
+    private int senderThreads;
+
+    private ExecutorService sender;
+
+    public SseEmitterManager(ChatService chatService, ObjectMapper objectMapper) {
+        this.chatService = chatService;
+        this.objectMapper = objectMapper;
+    }
+
+    @PostConstruct
+    public void init() {
+        AtomicInteger index = new AtomicInteger();
+        sender = Executors.newFixedThreadPool(senderThreads, r -> {
+            Thread thread = new Thread(r, "sse-sender-" + index.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        LongPollingUtil.addListener(this);
+        scheduler.scheduleWithFixedDelay(this::heartbeat, heartbeatInterval, heartbeatInterval, TimeUnit.SECONDS);
+    }
+
+    @PreDestroy
+    public void destroy() {
+        LongPollingUtil.removeListener(this);
+        scheduler.shutdownNow();
+        sender.shutdownNow();
+        subscriptions.values().forEach(room -> room.forEach(subscription -> subscription.emitter.complete()));
+        subscriptions.clear();
+    }
+
+    /**
+     * 订阅房间事件
+     * 先注册订阅再补发 lastMessageId 之后的消息，补发期间到达的通知会等待补发完成后按游标去重。
+     * 补发读取的缓存和 Stream 都按ID连续保存，补发结果之外的后续通知都晚于补发的最后一条消息
+     *
+     * @param roomId 聊天室ID
+     * @param lastMessageId 客户端已收到的最后一条消息ID（来自 Last-Event-ID）
+     * @return SseEmitter对象
+     */
+    public SseEmitter subscribe(String roomId, Long lastMessageId) {
+        SseEmitter emitter = new SseEmitter(emitterTimeout);
+        Subscription subscription = new Subscription(roomId, emitter, queueCapacity,
+                lastMessageId != null ? lastMessageId : 0L);
+
+        emitter.onCompletion(() -> unsubscribe(subscription));
+        emitter.onTimeout(() -> unsubscribe(subscription));
+        emitter.onError(e -> unsubscribe(subscription));
+
+        synchronized (subscription) {
+            subscriptions.compute(roomId, (k, room) -> {
+                Set<Subscription> target = room != null ? room : ConcurrentHashMap.newKeySet();
+                target.add(subscription);
+                return target;
+            });
+
+            PollResult presence = chatService.getUserList(roomId, null);
+            if (send(subscription, EVENT_PRESENCE, null, encode(roomId, EVENT_PRESENCE, presence))) {
+                subscription.presenceVersion = presence.getPresenceVersion() != null ? presence.getPresenceVersion() : 0L;
+            }
+
+            List<MessageVO> messages = chatService.getMessages(roomId, lastMessageId);
+            deliverMessages(subscription, messages, encodeMessages(roomId, messages));
+        }
+        log.info("SSE订阅: roomId={}, lastMessageId={}", roomId, lastMessageId);
+        return emitter;
+    }
+
+    /**
+     * 获取房间的 SSE 订阅数量
+     *
+     * @param roomId 聊天室ID
+     * @return 订阅数量
+     */
+    public int getSubscriptionCount(String roomId) {
+        Set<Subscription> room = subscriptions.get(roomId);
+        return room != null ? room.size() : 0;
+    }
+
+    @Override
+    public boolean hasSubscribers(String roomId) {
+        return subscriptions.containsKey(roomId);
+    }
+
+    @Override
+    public void onMessages(String roomId, PollResult result) {
+        Set<Subscription> room = subscriptions.get(roomId);
+        if (room == null || result.getMessages() == null) {
+            return;
+        }
+        List<MessageVO> messages = result.getMessages();
+        List<String> payloads = encodeMessages(roomId, messages);
+        for (Subscription subscription : room) {
+            synchronized (subscription) {
+                deliverMessages(subscription, messages, payloads);
+            }
+        }
+    }
+
+    /**
+     * 推送在线列表变化：持有变化前版本的订阅收到增量，错过了之前变化的订阅收到完整列表，
+     * 版本不早于变化后版本的订阅不推送；增量和完整列表各自只序列化、加密一次
+     */
+    @Override
+    public void onUserListUpdate(String roomId, PresenceChange change, PollResult result, Supplier<PollResult> snapshot) {
+        Set<Subscription> room = subscriptions.get(roomId);
+        if (room == null) {
+            return;
+        }
+        String deltaPayload = null;
+        String snapshotPayload = null;
+        PollResult snapshotResult = null;
+        for (Subscription subscription : room) {
+            synchronized (subscription) {
+                PollResult update;
+                String payload;
+                if (change == null || subscription.presenceVersion == change.getFromVersion()) {
+                    if (deltaPayload == null) {
+                        deltaPayload = encode(roomId, EVENT_PRESENCE, result);
+                    }
+                    update = result;
+                    payload = deltaPayload;
+                } else if (subscription.presenceVersion < change.getVersion()) {
+                    if (snapshotPayload == null) {
+                        snapshotResult = snapshot.get();
+                        snapshotPayload = encode(roomId, EVENT_PRESENCE, snapshotResult);
+                    }
+                    update = snapshotResult;
+                    payload = snapshotPayload;
+                } else {
+                    continue;
+                }
+                if (send(subscription, EVENT_PRESENCE, null, payload) && update.getPresenceVersion() != null) {
+                    subscription.presenceVersion = update.getPresenceVersion();
+                }
+            }
+        }
+    }
+
+    @Override
+    public void onRoomDeleted(String roomId) {
+        Set<Subscription> room = subscriptions.remove(roomId);
+        if (room == null) {
+            return;
+        }
+        String payload = encode(roomId, EVENT_ROOM_DELETED, Collections.singletonMap("roomId", roomId));
+        for (Subscription subscription : room) {
+            synchronized (subscription) {
+                subscription.closeAfterDrain = true;
+                send(subscription, EVENT_ROOM_DELETED, null, payload);
+            }
+        }
+    }
+
+    /**
+     * 按订阅的游标推送消息，每条消息一个事件，事件ID为消息ID
+     * 同一房间的新消息按ID升序通知且不重复（见 LongPollingUtil.notifyRoom），
+     * 游标只用于跳过订阅时已补发的消息；Last-Event-ID 之后的消息都能从缓存或 Stream 补发
+     *
+     * @param payloads 与 messages 一一对应的加密数据
+     */
+    private void deliverMessages(Subscription subscription, List<MessageVO> messages, List<String> payloads) {
+        for (int i = 0; i < messages.size(); i++) {
+            MessageVO message = messages.get(i);
+            if (message.getId() == null || message.getId() <= subscription.lastMessageId) {
+                continue;
+            }
+            if (!send(subscription, EVENT_MESSAGE, String.valueOf(message.getId()), payloads.get(i))) {
+                return;
+            }
+            subscription.lastMessageId = message.getId();
+        }
+    }
+
+    /**
+     * 序列化并加密每条消息
+     *
+     * @return 与 messages 一一对应的加密数据，序列化失败的位置为null
+     */
+    private List<String> encodeMessages(String roomId, List<MessageVO> messages) {
+        List<String> payloads = new ArrayList<>(messages.size());
+        for (MessageVO message : messages) {
+            payloads.add(encode(roomId, EVENT_MESSAGE, message));
+        }
+        return payloads;
+    }
+
+    /**
+     * 序列化并加密事件数据
+     *
+     * @return 加密后的十六进制字符串，序列化失败时返回null
+     */
+    private String encode(String roomId, String name, Object data) {
+        try {
+            return SM4Util.encodeHex(SM4Util.encrypt(objectMapper.writeValueAsBytes(data)));
+        } catch (JsonProcessingException e) {
+            log.error("Failed to serialize SSE event: roomId={}, event={}", roomId, name, e);
+            return null;
+        }
+    }
+
+    /**
+     * 将事件放入订阅的发送队列，队列已满说明连接过慢，断开该连接而不是阻塞分发线程。
+     * 事件无法序列化时同样断开，客户端携带 Last-Event-ID 重连补发，不会跳过该事件
+     *
+     * @param payload 加密后的事件数据，序列化失败时为null
+     * @return 是否放入队列
+     */
+    private boolean send(Subscription subscription, String name, String id, String payload) {
+        if (subscription.closed) {
+            return false;
+        }
+        if (payload == null) {
+            close(subscription);
+            return false;
+        }
+        SseEmitter.SseEventBuilder event = SseEmitter.event().name(name).data(payload);
+        if (id != null) {
+            event.id(id);
+        }
+        return enqueue(subscription, event);
+    }
+
+    private boolean enqueue(Subscription subscription, SseEmitter.SseEventBuilder event) {
+        if (subscription.closed) {
+            return false;
+        }
+        if (!subscription.queue.offer(event)) {
+            log.warn("SSE发送队列已满，断开慢连接: roomId={}", subscription.roomId);
+            close(subscription);
+            return false;
+        }
+        if (subscription.draining.compareAndSet(false, true)) {
+            sender.execute(() -> drain(subscription));
+        }
+        return true;
+    }
+
+    /**
+     * 在发送线程中写出订阅队列中的事件，同一订阅同一时刻只有一个线程写出
+     */
+    private void drain(Subscription subscription) {
+        try {
+            SseEmitter.SseEventBuilder event;
+            while ((event = subscription.queue.poll()) != null) {
+                subscription.emitter.send(event);
+            }
+            if (subscription.closeAfterDrain) {
+                unsubscribe(subscription);
+                subscription.emitter.complete();
+            }
+        } catch (IOException | IllegalStateException e) {
+            log.info("SSE连接已断开: roomId={}", subscription.roomId);
+            subscription.queue.clear();
+            unsubscribe(subscription);
+            subscription.emitter.completeWithError(e);
+        } finally {
+            subscription.draining.set(false);
+            if (!subscription.queue.isEmpty() && subscription.draining.compareAndSet(false, true)) {
+                sender.execute(() -> drain(subscription));
+            }
+        }
+    }
+
+    /**
+     * 发送心跳注释，及时清理已断开的连接
+     */
+    private void heartbeat() {
+        subscriptions.values().forEach(room -> room.forEach(subscription -> {
+            synchronized (subscription) {
+                enqueue(subscription, SseEmitter.event().comment("ping"));
+            }
+        }));
+    }
+
+    /**
+     * 丢弃未发送的事件并断开连接
+     */
+    private void close(Subscription subscription) {
+        subscription.queue.clear();
+        unsubscribe(subscription);
+        sender.execute(() -> subscription.emitter.complete());
+    }
+
+    private void unsubscribe(Subscription subscription) {
+        subscription.closed = true;
+        subscriptions.computeIfPresent(subscription.roomId, (k, room) -> {
+            room.remove(subscription);
+            return room.isEmpty() ? null : room;
+        });
+    }
+
+    /**
+     * 单个 SSE 订阅及其有界发送队列，记录已放入队列的最后一条消息ID和在线列表版本
+     */
+    private static class Subscription {
+        private final String roomId;
+        private final SseEmitter emitter;
+        private final BlockingQueue<SseEmitter.SseEventBuilder> queue;
+        private final AtomicBoolean draining = new AtomicBoolean();
+        private long lastMessageId;
+        private long presenceVersion;
+        private volatile boolean closeAfterDrain;
+        private volatile boolean closed;
+
+        Subscription(String roomId, SseEmitter emitter, int capacity, long lastMessageId) {
+            this.roomId = roomId;
+            this.emitter = emitter;
+            this.queue = new ArrayBlockingQueue<>(capacity);
+            this.lastMessageId = lastMessageId;
+        }
+    }
+}
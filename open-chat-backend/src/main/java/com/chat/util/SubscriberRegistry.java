@@ -0,0 +1,165 @@
+package com.chat.util;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * 按房间登记的订阅者集合
+ * 登记和注销都是 O(1)，不复制集合；通知时直接遍历当前集合（弱一致），已注销的订阅者不会被访问。
+ * 每个房间的订阅者按哈希分散到固定数量的分段中，订阅者多的房间可以按分段并行通知。
+ * 每个房间用一个计数器协调空房间的清理：登记前先递增计数，计数归零的注销者把计数改为 -1 关闭房间后移除，
+ * 遇到已关闭房间的登记者协助移除后重新创建，因此不会出现订阅者被加入已移除集合而收不到通知的情况
+ *
+ * @param <T> 订阅者类型
+ * @author chat
+ * @since 2024-01-01
+ */
+public class SubscriberRegistry<T> {
+
+    private final ConcurrentHashMap<String, Room<T>> rooms = new ConcurrentHashMap<>();
+
+    /** 每个房间的分段数，2的幂 */
+    private final int stripes;
+
+    /**
+     * @param stripes 每个房间的分段数，向上取整为2的幂
+     */
+    public SubscriberRegistry(int stripes) {
+        int n = 1;
+        while (n < stripes) {
+            n <<= 1;
+        }
+        this.stripes = n;
+    }
+
+    /**
+     * 登记订阅者
+     *
+     * @param roomId 聊天室ID
+     * @param subscriber 订阅者
+     */
+    public void register(String roomId, T subscriber) {
+        while (true) {
+            Room<T> room = rooms.computeIfAbsent(roomId, key -> new Room<>(stripes));
+            if (room.acquire()) {
+                room.stripe(subscriber).add(subscriber);
+                return;
+            }
+            // 房间已关闭但还未移除
+            rooms.remove(roomId, room);
+        }
+    }
+
+    /**
+     * 注销订阅者，重复注销无影响
+     *
+     * @param roomId 聊天室ID
+     * @param subscriber 订阅者
+     */
+    public void unregister(String roomId, T subscriber) {
+        // 计数未归零前房间不会被移除，取到的就是登记时的房间
+        Room<T> room = rooms.get(roomId);
+        if (room == null || !room.stripe(subscriber).remove(subscriber)) {
+            return;
+        }
+        if (room.release()) {
+            rooms.remove(roomId, room);
+        }
+    }
+
+    /**
+     * 依次访问房间当前的订阅者
+     *
+     * @param roomId 聊天室ID
+     * @param action 对每个订阅者执行的操作
+     */
+    public void forEach(String roomId, Consumer<T> action) {
+        Room<T> room = rooms.get(roomId);
+        if (room != null) {
+            for (Set<T> stripe : room.stripes) {
+                stripe.forEach(action);
+            }
+        }
+    }
+
+    /**
+     * 访问房间一个分段中当前的订阅者
+     *
+     * @param roomId 聊天室ID
+     * @param stripe 分段序号，0 到 {@link #getStripes()} - 1
+     * @param action 对每个订阅者执行的操作
+     */
+    public void forEach(String roomId, int stripe, Consumer<T> action) {
+        Room<T> room = rooms.get(roomId);
+        if (room != null) {
+            room.stripes[stripe].forEach(action);
+        }
+    }
+
+    public int getStripes() {
+        return stripes;
+    }
+
+    /**
+     * 房间的订阅者数量
+     *
+     * @param roomId 聊天室ID
+     * @return 订阅者数量，包括正在登记的
+     */
+    public int size(String roomId) {
+        Room<T> room = rooms.get(roomId);
+        return room != null ? Math.max(room.count.get(), 0) : 0;
+    }
+
+    /**
+     * 房间是否有订阅者
+     *
+     * @param roomId 聊天室ID
+     * @return 是否有订阅者
+     */
+    public boolean contains(String roomId) {
+        return size(roomId) > 0;
+    }
+
+    /**
+     * 一个房间的分段订阅者及登记计数，计数为 -1 表示房间已关闭
+     */
+    private static class Room<T> {
+        private final Set<T>[] stripes;
+        private final AtomicInteger count = new AtomicInteger();
+
+        @SuppressWarnings("unchecked")
+        Room(int size) {
+            stripes = new Set[size];
+            for (int i = 0; i < size; i++) {
+                stripes[i] = ConcurrentHashMap.newKeySet();
+            }
+        }
+
+        Set<T> stripe(T subscriber) {
+            int h = subscriber.hashCode();
+            return stripes[(h ^ (h >>> 16)) & (stripes.length - 1)];
+        }
+
+        boolean acquire() {
+            while (true) {
+                int current = count.get();
+                if (current < 0) {
+                    return false;
+                }
+                if (count.compareAndSet(current, current + 1)) {
+                    return true;
+                }
+            }
+        }
+
+        /**
+         * @return 是否由本次注销关闭了房间
+         */
+        boolean release() {
+            return count.decrementAndGet() == 0 && count.compareAndSet(0, -1);
+        }
+    }
+}
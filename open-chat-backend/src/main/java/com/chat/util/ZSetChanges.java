@@ -0,0 +1,35 @@
+package com.chat.util;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+import java.util.List;
+
+/**
+ * 带变更日志的ZSet在两个版本之间的成员变化
+ *
+ * @author chat
+ * @since 2024-01-01
+ */
+@Getter
+@AllArgsConstructor
+public class ZSetChanges {
+
+    /** 起始版本号 */
+    private final long fromVersion;
+    /** 结束版本号 */
+    private final long version;
+    /** 新增的成员 */
+    private final List<Object> added;
+    /** 移除的成员 */
+    private final List<Object> removed;
+
+    /**
+     * 两个版本之间是否有变化
+     *
+     * @return 是否有变化
+     */
+    public boolean isChanged() {
+        return version != fromVersion;
+    }
+}
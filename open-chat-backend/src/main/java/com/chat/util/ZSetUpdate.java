@@ -0,0 +1,26 @@
+package com.chat.util;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+import java.util.List;
+
+/**
+ * 带变更日志的ZSet一次写入或移除的结果，与成员数和关闭状态在同一次原子操作中得到
+ *
+ * @author chat
+ * @since 2024-01-01
+ */
+@Getter
+@AllArgsConstructor
+public class ZSetUpdate {
+
+    /** 这次操作的变更 */
+    private final ZSetChanges changes;
+    /** 操作后的成员数 */
+    private final long size;
+    /** 操作后的全部成员，未要求返回时为null */
+    private final List<Object> members;
+    /** 移除时表示这次操作移除了最后一个成员并关闭了key，写入时表示key已关闭、未写入 */
+    private final boolean closed;
+}
@@ -0,0 +1,381 @@
+package com.chat.websocket;
+
+import com.chat.model.dto.MessageDTO;
+import com.chat.model.dto.PresenceChange;
+import com.chat.model.vo.MessageVO;
+import com.chat.model.vo.PollResult;
+import com.chat.service.ChatService;
+import com.chat.util.LongPollingUtil;
+import com.chat.util.RoomEventListener;
+import com.chat.util.SM4Util;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.util.MultiValueMap;
+import org.springframework.util.StringUtils;
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.WebSocketSession;
+import org.springframework.web.socket.handler.TextWebSocketHandler;
+import org.springframework.web.util.UriComponentsBuilder;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.validation.ConstraintViolation;
+import javax.validation.Validator;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * 聊天室 WebSocket 处理器
+ * 一个连接同时承载发送和接收，帧内容与 @Crypto 接口一致使用 SM4 加密后的十六进制字符串。
+ * 每条广播只序列化、加密一次，再投递到各会话独立的有界发送队列，由发送线程池异步写出，
+ * 慢连接只会填满自己的队列，队列溢出时断开该连接，客户端携带 lastMessageId 重连补发
+ *
+ * @author chat
+ * @since 2024-01-01
+ */
+@Slf4j
+@Component
+public class ChatWebSocketHandler extends TextWebSocketHandler implements RoomEventListener {
+
+    /** 消息帧类型 */
+    public static final String FRAME_MESSAGE = "message";
+    /** 在线用户帧类型：连接时推送完整列表，之后只推送上线和离开的用户 */
+    public static final String FRAME_PRESENCE = "presence";
+    /** 房间删除帧类型 */
+    public static final String FRAME_ROOM_DELETED = "room-deleted";
+
+    private static final String ATTR_ROOM_SESSION = "chat.roomSession";
+
+    /** 存储每个房间的 WebSocket 会话 */
+    private final Map<String, Room> rooms = new ConcurrentHashMap<>();
+
+    private final ChatService chatService;
+    private final ObjectMapper objectMapper;
+    private final Validator validator;
+
+    /** 每个会话的发送队列容量（帧） */
+    @Value("${chat.ws.queue-capacity:256}")
+    private int queueCapacity;
+
+    /** 发送线程数 */
+    @Value("${chat.ws.sender-threads:4}")
+    private int senderThreads;
+
+    private ExecutorService sender;
+
+    public ChatWebSocketHandler(ChatService chatService, ObjectMapper objectMapper, Validator validator) {
+        this.chatService = chatService;
+        this.objectMapper = objectMapper;
+        this.validator = validator;
+    }
+
+    @PostConstruct
+    public void init() {
+        AtomicInteger index = new AtomicInteger();
+        sender = Executors.newFixedThreadPool(senderThreads, r -> {
+            Thread thread = new Thread(r, "ws-sender-" + index.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        LongPollingUtil.addListener(this);
+    }
+
+    @PreDestroy
+    public void destroy() {
+        LongPollingUtil.removeListener(this);
+        sender.shutdownNow();
+    }
+
+    @Override
+    public void afterConnectionEstablished(WebSocketSession session) throws Exception {
+        MultiValueMap<String, String> params = UriComponentsBuilder.fromUri(session.getUri()).build().getQueryParams();
+        String roomId = params.getFirst("roomId");
+        if (!StringUtils.hasText(roomId)) {
+            session.close(CloseStatus.BAD_DATA.withReason("roomId is required"));
+            return;
+        }
+        String lastMessageId = params.getFirst("lastMessageId");
+        RoomSession roomSession = new RoomSession(roomId, session, queueCapacity,
+                StringUtils.hasText(lastMessageId) ? Long.parseLong(lastMessageId) : 0L);
+        session.getAttributes().put(ATTR_ROOM_SESSION, roomSession);
+
+        // 先注册再补发，补发期间到达的广播等待补发完成后按游标去重
+        synchronized (roomSession) {
+            rooms.compute(roomId, (k, room) -> {
+                Room target = room != null ? room : new Room();
+                target.sessions.add(roomSession);
+                return target;
+            });
+
+            PollResult presence = chatService.getUserList(roomId, null);
+            if (enqueue(roomSession, createFrame(FRAME_PRESENCE, presence), 0L)) {
+                roomSession.presenceVersion = presence.getPresenceVersion() != null ? presence.getPresenceVersion() : 0L;
+            }
+
+            List<MessageVO> messages = chatService.getMessages(roomId, roomSession.lastMessageId);
+            if (!messages.isEmpty()) {
+                enqueue(roomSession, createFrame(FRAME_MESSAGE, messages), messages.get(messages.size() - 1).getId());
+            }
+        }
+        log.info("WebSocket连接建立: roomId={}, sessionId={}", roomId, session.getId());
+    }
+
+    @Override
+    protected void handleTextMessage(WebSocketSession session, TextMessage message) throws Exception {
+        RoomSession roomSession = (RoomSession) session.getAttributes().get(ATTR_ROOM_SESSION);
+        if (roomSession == null) {
+            return;
+        }
+        MessageDTO messageDTO = objectMapper.readValue(SM4Util.decrypt(message.getPayload()), MessageDTO.class);
+        messageDTO.setRoomId(roomSession.roomId);
+        // 与 HTTP 接口的 @Validated(MessageDTO.Send.class) 使用相同的校验规则，不合法的帧直接丢弃
+        Set<ConstraintViolation<MessageDTO>> violations = validator.validate(messageDTO, MessageDTO.Send.class);
+        if (!violations.isEmpty()) {
+            ConstraintViolation<MessageDTO> violation = violations.iterator().next();
+            log.info("丢弃不合法的 WebSocket 消息: sessionId={}, {} {}",
+                    session.getId(), violation.getPropertyPath(), violation.getMessage());
+            return;
+        }
+        chatService.sendMessage(messageDTO);
+    }
+
+    @Override
+    public void handleTransportError(WebSocketSession session, Throwable exception) {
+        log.info("WebSocket传输错误: sessionId={}, error={}", session.getId(), exception.getMessage());
+        unregister(session);
+    }
+
+    @Override
+    public void afterConnectionClosed(WebSocketSession session, CloseStatus status) {
+        unregister(session);
+    }
+
+    /**
+     * 获取房间的 WebSocket 会话数量
+     *
+     * @param roomId 聊天室ID
+     * @return 会话数量
+     */
+    public int getSessionCount(String roomId) {
+        Room room = rooms.get(roomId);
+        return room != null ? room.sessions.size() : 0;
+    }
+
+    @Override
+    public boolean hasSubscribers(String roomId) {
+        return rooms.containsKey(roomId);
+    }
+
+    @Override
+    public void onMessages(String roomId, PollResult result) {
+        Room room = rooms.get(roomId);
+        if (room == null || result.getMessages() == null || result.getMessages().isEmpty()) {
+            return;
+        }
+        // 同一房间的消息按ID升序通知且不重复（见 LongPollingUtil.notifyRoom），整帧只序列化、加密一次；
+        // 会话游标只用于跳过连接时已补发的消息
+        List<MessageVO> messages = result.getMessages();
+        broadcast(room, createFrame(FRAME_MESSAGE, messages), messages.get(messages.size() - 1).getId());
+    }
+
+    /**
+     * 推送在线列表变化：持有变化前版本的会话收到增量，错过了之前变化的会话收到完整列表，
+     * 版本不早于变化后版本的会话不推送；增量帧和完整列表帧各自只序列化、加密一次
+     */
+    @Override
+    public void onUserListUpdate(String roomId, PresenceChange change, PollResult result, Supplier<PollResult> snapshot) {
+        Room room = rooms.get(roomId);
+        if (room == null) {
+            return;
+        }
+        TextMessage deltaFrame = null;
+        TextMessage snapshotFrame = null;
+        PollResult snapshotResult = null;
+        for (RoomSession roomSession : room.sessions) {
+            synchronized (roomSession) {
+                PollResult update;
+                TextMessage frame;
+                if (change == null || roomSession.presenceVersion == change.getFromVersion()) {
+                    if (deltaFrame == null) {
+                        deltaFrame = createFrame(FRAME_PRESENCE, result);
+                    }
+                    update = result;
+                    frame = deltaFrame;
+                } else if (roomSession.presenceVersion < change.getVersion()) {
+                    if (snapshotFrame == null) {
+                        snapshotResult = snapshot.get();
+                        snapshotFrame = createFrame(FRAME_PRESENCE, snapshotResult);
+                    }
+                    update = snapshotResult;
+                    frame = snapshotFrame;
+                } else {
+                    continue;
+                }
+                if (enqueue(roomSession, frame, 0L) && update.getPresenceVersion() != null) {
+                    roomSession.presenceVersion = update.getPresenceVersion();
+                }
+            }
+        }
+    }
+
+    @Override
+    public void onRoomDeleted(String roomId) {
+        Room room = rooms.remove(roomId);
+        if (room == null) {
+            return;
+        }
+        TextMessage frame = createFrame(FRAME_ROOM_DELETED, Collections.singletonMap("roomId", roomId));
+        for (RoomSession roomSession : room.sessions) {
+            synchronized (roomSession) {
+                roomSession.closeAfterDrain = true;
+                enqueue(roomSession, frame, 0L);
+            }
+        }
+    }
+
+    private void broadcast(Room room, TextMessage frame, long lastMessageId) {
+        if (frame == null) {
+            return;
+        }
+        for (RoomSession roomSession : room.sessions) {
+            synchronized (roomSession) {
+                enqueue(roomSession, frame, lastMessageId);
+            }
+        }
+    }
+
+    /**
+     * 将帧放入会话的发送队列，已通过补发收到的消息帧直接跳过；
+     * 队列已满说明连接过慢，断开该连接而不是阻塞整个房间
+     *
+     * @return 是否放入队列
+     */
+    private boolean enqueue(RoomSession roomSession, TextMessage frame, long lastMessageId) {
+        if (frame == null) {
+            return false;
+        }
+        if (lastMessageId > 0) {
+            if (lastMessageId <= roomSession.lastMessageId) {
+                return false;
+            }
+            roomSession.lastMessageId = lastMessageId;
+        }
+        if (!roomSession.queue.offer(frame)) {
+            log.warn("WebSocket发送队列已满，断开慢连接: roomId={}, sessionId={}",
+                    roomSession.roomId, roomSession.session.getId());
+            roomSession.queue.clear();
+            sender.execute(() -> close(roomSession, CloseStatus.SESSION_NOT_RELIABLE));
+            return false;
+        }
+        if (roomSession.draining.compareAndSet(false, true)) {
+            sender.execute(() -> drain(roomSession));
+        }
+        return true;
+    }
+
+    /**
+     * 在发送线程中写出会话队列中的帧，同一会话同一时刻只有一个线程写出
+     */
+    private void drain(RoomSession roomSession) {
+        try {
+            TextMessage frame;
+            while ((frame = roomSession.queue.poll()) != null) {
+                if (!roomSession.session.isOpen()) {
+                    roomSession.queue.clear();
+                    return;
+                }
+                roomSession.session.sendMessage(frame);
+            }
+            if (roomSession.closeAfterDrain) {
+                close(roomSession, CloseStatus.NORMAL);
+            }
+        } catch (IOException | IllegalStateException e) {
+            log.info("WebSocket发送失败: sessionId={}, error={}", roomSession.session.getId(), e.getMessage());
+            roomSession.queue.clear();
+            close(roomSession, CloseStatus.SESSION_NOT_RELIABLE);
+        } finally {
+            roomSession.draining.set(false);
+            if (!roomSession.queue.isEmpty() && roomSession.draining.compareAndSet(false, true)) {
+                sender.execute(() -> drain(roomSession));
+            }
+        }
+    }
+
+    private void close(RoomSession roomSession, CloseStatus status) {
+        unregister(roomSession.session);
+        try {
+            roomSession.session.close(status);
+        } catch (IOException e) {
+            log.debug("Failed to close WebSocket session: {}", roomSession.session.getId(), e);
+        }
+    }
+
+    private void unregister(WebSocketSession session) {
+        RoomSession roomSession = (RoomSession) session.getAttributes().get(ATTR_ROOM_SESSION);
+        if (roomSession == null) {
+            return;
+        }
+        rooms.computeIfPresent(roomSession.roomId, (k, room) -> {
+            room.sessions.remove(roomSession);
+            return room.sessions.isEmpty() ? null : room;
+        });
+    }
+
+    /**
+     * 创建加密帧：{"type": ..., "data": ...} 序列化后整体 SM4 加密
+     */
+    private TextMessage createFrame(String type, Object data) {
+        Map<String, Object> frame = new LinkedHashMap<>();
+        frame.put("type", type);
+        frame.put("data", data);
+        try {
+            return new TextMessage(SM4Util.encodeHex(SM4Util.encrypt(objectMapper.writeValueAsBytes(frame))));
+        } catch (JsonProcessingException e) {
+            log.error("Failed to serialize WebSocket frame: type={}", type, e);
+            return null;
+        }
+    }
+
+    /**
+     * 房间内的会话集合
+     */
+    private static class Room {
+        private final Set<RoomSession> sessions = ConcurrentHashMap.newKeySet();
+    }
+
+    /**
+     * 单个 WebSocket 会话及其有界发送队列，记录已放入队列的最后一条消息ID和在线列表版本
+     */
+    private static class RoomSession {
+        private final String roomId;
+        private final WebSocketSession session;
+        private final BlockingQueue<TextMessage> queue;
+        private final AtomicBoolean draining = new AtomicBoolean();
+        private long lastMessageId;
+        private long presenceVersion;
+        private volatile boolean closeAfterDrain;
+
+        RoomSession(String roomId, WebSocketSession session, int capacity, long lastMessageId) {
+            this.roomId = roomId;
+            this.session = session;
+            this.queue = new ArrayBlockingQueue<>(capacity);
+            this.lastMessageId = lastMessageId;
+        }
+    }
+}
@@ -6,6 +6,7 @@ USE open_chat;
 CREATE TABLE IF NOT EXISTS chat_room (
     id VARCHAR(32) NOT NULL COMMENT '聊天室ID',
     name VARCHAR(100) COMMENT '聊天室名称',
+    retention_days INT NULL COMMENT '聊天记录保留天数，为空时使用全局配置',
     created_at DATETIME NOT NULL DEFAULT CURRENT_TIMESTAMP COMMENT '创建时间',
     updated_at DATETIME NOT NULL DEFAULT CURRENT_TIMESTAMP ON UPDATE CURRENT_TIMESTAMP COMMENT '更新时间',
     deleted TINYINT(1) NOT NULL DEFAULT 0 COMMENT '是否删除',
@@ -24,7 +25,7 @@ CREATE TABLE IF NOT EXISTS user (
 
 -- 消息表
 CREATE TABLE IF NOT EXISTS chat_message (
-    id BIGINT NOT NULL AUTO_INCREMENT COMMENT '消息ID',
+    id BIGINT NOT NULL COMMENT '消息ID（应用生成，见 MessageIdGenerator）',
     room_id VARCHAR(32) NOT NULL COMMENT '聊天室ID',
     user_id VARCHAR(32) NOT NULL COMMENT '发送者ID',
     content TEXT NOT NULL COMMENT '消息内容',
@@ -32,6 +33,26 @@ CREATE TABLE IF NOT EXISTS chat_message (
     updated_at DATETIME NOT NULL DEFAULT CURRENT_TIMESTAMP ON UPDATE CURRENT_TIMESTAMP COMMENT '更新时间',
     deleted TINYINT(1) NOT NULL DEFAULT 0 COMMENT '是否删除',
     PRIMARY KEY (id),
-    KEY idx_room_id (room_id),
+    KEY idx_room_deleted_id (room_id, deleted, id),
     KEY idx_user_id (user_id)
-) ENGINE=InnoDB DEFAULT CHARSET=utf8mb4 COMMENT='消息表'; 
\ No newline at end of file
+) ENGINE=InnoDB DEFAULT CHARSET=utf8mb4 COMMENT='消息表'
+-- 按消息ID（高位为生成时间）范围分区，月份分区由 MessageRetention 从 pmax 中提前拆出
+PARTITION BY RANGE (id) (
+    PARTITION pmax VALUES LESS THAN MAXVALUE
+);
+
+-- 消息清理任务表：删除聊天室后在后台按ID区间分批清理消息
+CREATE TABLE IF NOT EXISTS chat_purge_job (
+    id BIGINT NOT NULL AUTO_INCREMENT COMMENT '任务ID',
+    room_id VARCHAR(32) NOT NULL COMMENT '聊天室ID',
+    mode VARCHAR(8) NOT NULL COMMENT '清理方式：SOFT 逻辑删除，HARD 物理删除',
+    status VARCHAR(16) NOT NULL DEFAULT 'PENDING' COMMENT '状态：PENDING、RUNNING、DONE',
+    last_id BIGINT NOT NULL DEFAULT 0 COMMENT '已清理到的消息ID',
+    purged BIGINT NOT NULL DEFAULT 0 COMMENT '已清理的消息数',
+    lease_until DATETIME NULL COMMENT '执行节点的租约到期时间，到期后其他节点可接手',
+    created_at DATETIME NOT NULL DEFAULT CURRENT_TIMESTAMP COMMENT '创建时间',
+    updated_at DATETIME NOT NULL DEFAULT CURRENT_TIMESTAMP ON UPDATE CURRENT_TIMESTAMP COMMENT '更新时间',
+    deleted TINYINT(1) NOT NULL DEFAULT 0 COMMENT '是否删除',
+    PRIMARY KEY (id),
+    KEY idx_status_id (status, id)
+) ENGINE=InnoDB DEFAULT CHARSET=utf8mb4 COMMENT='消息清理任务表';
@@ -0,0 +1,6 @@
+USE open_chat;
+
+-- 消息表：按聊天室游标分页的联合索引替换单列 room_id 索引
+ALTER TABLE chat_message
+    ADD KEY idx_room_deleted_id (room_id, deleted, id),
+    DROP KEY idx_room_id;
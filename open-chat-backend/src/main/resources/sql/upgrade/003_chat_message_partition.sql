@@ -0,0 +1,12 @@
+USE open_chat;
+
+-- 聊天室表：按聊天室设置聊天记录保留天数
+ALTER TABLE chat_room
+    ADD COLUMN retention_days INT NULL COMMENT '聊天记录保留天数，为空时使用全局配置' AFTER name;
+
+-- 消息表：按消息ID范围分区，月份分区由 MessageRetention 从 pmax 中提前拆出。
+-- 第一次拆分时已有数据全部进入当月分区，会复制一次整张表，请在低峰期执行
+ALTER TABLE chat_message
+    PARTITION BY RANGE (id) (
+        PARTITION pmax VALUES LESS THAN MAXVALUE
+    );
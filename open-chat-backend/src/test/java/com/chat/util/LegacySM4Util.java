@@ -0,0 +1,71 @@
+package com.chat.util;
+
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.Security;
+
+/**
+ * 优化前的 SM4Util 实现，作为等价性测试和基准测试的对照：
+ * 每次调用都查找 Provider、解析密钥、初始化 Cipher，按字节 String.format 编码十六进制
+ *
+ * @author chat
+ * @since 2024-01-01
+ */
+final class LegacySM4Util {
+    private static final String ALGORITHM_NAME = "SM4/ECB/PKCS7Padding";
+    private static final String KEY = "31323334353637383930414243444546";
+
+    static {
+        Security.addProvider(new BouncyCastleProvider());
+    }
+
+    private LegacySM4Util() {
+    }
+
+    static byte[] hexStringToByteArray(String s) {
+        int len = s.length();
+        byte[] data = new byte[len / 2];
+        for (int i = 0; i < len; i += 2) {
+            data[i / 2] = (byte) ((Character.digit(s.charAt(i), 16) << 4)
+                    + Character.digit(s.charAt(i + 1), 16));
+        }
+        return data;
+    }
+
+    static String byteArrayToHexString(byte[] bytes) {
+        StringBuilder result = new StringBuilder();
+        for (byte b : bytes) {
+            result.append(String.format("%02x", b));
+        }
+        return result.toString();
+    }
+
+    static String encrypt(String data) {
+        try {
+            if (data == null) return null;
+            Cipher cipher = Cipher.getInstance(ALGORITHM_NAME, "BC");
+            SecretKeySpec sm4Key = new SecretKeySpec(hexStringToByteArray(KEY), "SM4");
+            cipher.init(Cipher.ENCRYPT_MODE, sm4Key);
+            byte[] encrypted = cipher.doFinal(data.getBytes(StandardCharsets.UTF_8));
+            return byteArrayToHexString(encrypted);
+        } catch (Exception e) {
+            throw new RuntimeException("SM4 encryption failed", e);
+        }
+    }
+
+    static String decrypt(String data) {
+        try {
+            if (data == null) return null;
+            Cipher cipher = Cipher.getInstance(ALGORITHM_NAME, "BC");
+            SecretKeySpec sm4Key = new SecretKeySpec(hexStringToByteArray(KEY), "SM4");
+            cipher.init(Cipher.DECRYPT_MODE, sm4Key);
+            byte[] decrypted = cipher.doFinal(hexStringToByteArray(data));
+            return new String(decrypted, StandardCharsets.UTF_8);
+        } catch (Exception e) {
+            throw new RuntimeException("SM4 decryption failed", e);
+        }
+    }
+}
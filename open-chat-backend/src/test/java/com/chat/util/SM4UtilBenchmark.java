@@ -0,0 +1,69 @@
+package com.chat.util;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+
+import java.util.function.UnaryOperator;
+
+/**
+ * SM4Util 与优化前实现的粗略基准对比，默认跳过：
+ * mvn test -Dtest=SM4UtilBenchmark -Dbenchmark=true
+ * 单进程内预热后计时，仅用于比较量级，精确数据请用 JMH
+ *
+ * @author chat
+ * @since 2024-01-01
+ */
+@EnabledIfSystemProperty(named = "benchmark", matches = "true")
+class SM4UtilBenchmark {
+
+    private static final int[] SIZES = {64, 1024, 16 * 1024, 256 * 1024};
+    private static final long TARGET_BYTES = 16L * 1024 * 1024;
+    private static final int MAX_ITERATIONS = 20_000;
+
+    /** 防止 JIT 消除计算 */
+    private static volatile int sink;
+
+    @Test
+    void compareWithLegacy() {
+        System.out.println(String.format("%-10s %-8s %14s %14s %8s", "size", "op", "legacy us/op", "current us/op", "speedup"));
+        for (int size : SIZES) {
+            String plain = payload(size);
+            String cipherText = SM4Util.encrypt(plain);
+            report(size, "encrypt", plain, LegacySM4Util::encrypt, SM4Util::encrypt);
+            report(size, "decrypt", cipherText, LegacySM4Util::decrypt, SM4Util::decrypt);
+        }
+    }
+
+    private static void report(int size, String op, String input,
+                               UnaryOperator<String> legacy, UnaryOperator<String> current) {
+        int iterations = (int) Math.min(MAX_ITERATIONS, Math.max(20, TARGET_BYTES / size));
+        // 交替预热两种实现
+        for (int i = 0; i < 3; i++) {
+            time(legacy, input, iterations);
+            time(current, input, iterations);
+        }
+        double legacyNanos = time(legacy, input, iterations);
+        double currentNanos = time(current, input, iterations);
+        System.out.println(String.format("%-10d %-8s %14.2f %14.2f %7.1fx",
+                size, op, legacyNanos / 1000, currentNanos / 1000, legacyNanos / currentNanos));
+    }
+
+    private static double time(UnaryOperator<String> op, String input, int iterations) {
+        int acc = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            acc += op.apply(input).length();
+        }
+        long elapsed = System.nanoTime() - start;
+        sink = acc;
+        return (double) elapsed / iterations;
+    }
+
+    private static String payload(int size) {
+        StringBuilder sb = new StringBuilder(size);
+        while (sb.length() < size) {
+            sb.append("{\"type\":\"message\",\"content\":\"hello 你好\"}");
+        }
+        return sb.substring(0, size);
+    }
+}
@@ -0,0 +1,149 @@
+package com.chat.util;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * SM4Util 与优化前实现 {@link LegacySM4Util} 的等价性测试
+ *
+ * @author chat
+ * @since 2024-01-01
+ */
+class SM4UtilTest {
+
+    private static final String[] SAMPLES = {
+            "",
+            "a",
+            "0123456789abcde",
+            "0123456789abcdef",
+            "{\"type\":\"message\",\"content\":\"hello\"}",
+            "你好，世界 😀 émoji",
+            repeat("聊天消息-chat message;", 2000)
+    };
+
+    @Test
+    void encryptMatchesLegacy() {
+        for (String sample : SAMPLES) {
+            assertEquals(LegacySM4Util.encrypt(sample), SM4Util.encrypt(sample));
+        }
+    }
+
+    @Test
+    void decryptsLegacyCiphertext() {
+        for (String sample : SAMPLES) {
+            String cipherText = LegacySM4Util.encrypt(sample);
+            assertEquals(sample, SM4Util.decrypt(cipherText));
+            assertEquals(sample, SM4Util.decrypt(cipherText.toUpperCase()));
+            assertEquals(sample, LegacySM4Util.decrypt(SM4Util.encrypt(sample)));
+        }
+    }
+
+    @Test
+    void byteApiMatchesStringApi() {
+        for (String sample : SAMPLES) {
+            byte[] plain = sample.getBytes(StandardCharsets.UTF_8);
+            byte[] encrypted = SM4Util.encrypt(plain);
+            assertEquals(LegacySM4Util.encrypt(sample), SM4Util.encodeHex(encrypted));
+            assertArrayEquals(plain, SM4Util.decrypt(encrypted));
+
+            byte[] padded = new byte[encrypted.length + 5];
+            System.arraycopy(encrypted, 0, padded, 3, encrypted.length);
+            assertArrayEquals(plain, SM4Util.decrypt(padded, 3, encrypted.length));
+        }
+    }
+
+    @Test
+    void nullPassesThrough() {
+        assertNull(SM4Util.encrypt((String) null));
+        assertNull(SM4Util.decrypt((String) null));
+    }
+
+    @Test
+    void hexCodecMatchesLegacy() {
+        Random random = new Random(42);
+        for (int len = 0; len < 300; len++) {
+            byte[] bytes = new byte[len];
+            random.nextBytes(bytes);
+            String hex = LegacySM4Util.byteArrayToHexString(bytes);
+            assertEquals(hex, SM4Util.encodeHex(bytes));
+            assertArrayEquals(bytes, SM4Util.decodeHex(hex));
+            assertArrayEquals(bytes, SM4Util.decodeHex(hex.toUpperCase()));
+        }
+    }
+
+    @Test
+    void hexCodecOffsets() {
+        byte[] bytes = {0x00, 0x7f, (byte) 0x80, (byte) 0xff, 0x1a};
+        String hex = "007f80ff1a";
+
+        byte[] ascii = ("xx" + hex + "y").getBytes(StandardCharsets.US_ASCII);
+        assertArrayEquals(bytes, SM4Util.decodeHex(ascii, 2, hex.length()));
+
+        byte[] out = new byte[8];
+        assertEquals(bytes.length, SM4Util.decodeHex(hex, out, 2));
+        assertArrayEquals(bytes, Arrays.copyOfRange(out, 2, 2 + bytes.length));
+
+        byte[] encodedBytes = new byte[12];
+        SM4Util.encodeHex(bytes, 1, 3, encodedBytes, 1);
+        assertEquals("7f80ff", new String(encodedBytes, 1, 6, StandardCharsets.US_ASCII));
+
+        char[] encodedChars = new char[12];
+        SM4Util.encodeHex(bytes, 1, 3, encodedChars, 1);
+        assertEquals("7f80ff", new String(encodedChars, 1, 6));
+    }
+
+    @Test
+    void rejectsInvalidHex() {
+        assertThrows(IllegalArgumentException.class, () -> SM4Util.decodeHex("abc"));
+        assertThrows(IllegalArgumentException.class, () -> SM4Util.decodeHex("zz"));
+        assertThrows(IllegalArgumentException.class, () -> SM4Util.decodeHex("éé"));
+        assertThrows(RuntimeException.class, () -> SM4Util.decrypt("0011"));
+    }
+
+    @Test
+    void hexOutputStreamMatchesEncrypt() throws IOException {
+        for (String sample : SAMPLES) {
+            byte[] plain = sample.getBytes(StandardCharsets.UTF_8);
+            for (int chunk : new int[]{1, 7, 16, 4096, 10000}) {
+                StringWriter writer = new StringWriter();
+                SM4HexOutputStream out = new SM4HexOutputStream(writer);
+                for (int off = 0; off < plain.length; off += chunk) {
+                    out.write(plain, off, Math.min(chunk, plain.length - off));
+                }
+                out.close();
+                assertEquals(LegacySM4Util.encrypt(sample), writer.toString());
+            }
+        }
+    }
+
+    @Test
+    void abortedStreamDoesNotLeakIntoNextEncryption() throws IOException {
+        SM4HexOutputStream aborted = new SM4HexOutputStream(new StringWriter());
+        aborted.write("partial".getBytes(StandardCharsets.UTF_8));
+        aborted.abort();
+
+        StringWriter writer = new StringWriter();
+        try (SM4HexOutputStream out = new SM4HexOutputStream(writer)) {
+            out.write("hello".getBytes(StandardCharsets.UTF_8));
+        }
+        assertEquals(LegacySM4Util.encrypt("hello"), writer.toString());
+    }
+
+    private static String repeat(String s, int times) {
+        StringBuilder sb = new StringBuilder(s.length() * times);
+        for (int i = 0; i < times; i++) {
+            sb.append(s);
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,137 @@
+package com.chat.util;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * SubscriberRegistry 并发测试
+ * 多线程在少量房间上反复登记、注销，同时另有线程遍历房间：
+ * 已登记且未注销的订阅者必须能被遍历到，全部注销后房间为空
+ *
+ * @author chat
+ * @since 2024-01-01
+ */
+class SubscriberRegistryTest {
+
+    private static final int WORKERS = 8;
+    private static final int ITERATIONS = 50_000;
+    private static final String[] ROOMS = {"room-1", "room-2", "room-3"};
+
+    @Test
+    void registerAndUnregisterSingleSubscriber() {
+        SubscriberRegistry<Object> registry = new SubscriberRegistry<>(16);
+        Object subscriber = new Object();
+
+        registry.register("room", subscriber);
+        assertEquals(1, registry.size("room"));
+        assertTrue(registry.contains("room"));
+
+        registry.unregister("room", subscriber);
+        registry.unregister("room", subscriber);
+        assertEquals(0, registry.size("room"));
+        assertFalse(registry.contains("room"));
+
+        // 房间关闭后重新登记
+        registry.register("room", subscriber);
+        assertEquals(1, registry.size("room"));
+    }
+
+    @Test
+    void stripesRoundUpToPowerOfTwo() {
+        assertEquals(16, new SubscriberRegistry<>(10).getStripes());
+        assertEquals(1, new SubscriberRegistry<>(1).getStripes());
+    }
+
+    @Test
+    void forEachStripesVisitEverySubscriberOnce() {
+        SubscriberRegistry<Integer> registry = new SubscriberRegistry<>(8);
+        for (int i = 0; i < 1000; i++) {
+            registry.register("room", i);
+        }
+        int[] visits = new int[1000];
+        for (int stripe = 0; stripe < registry.getStripes(); stripe++) {
+            registry.forEach("room", stripe, i -> visits[i]++);
+        }
+        for (int count : visits) {
+            assertEquals(1, count);
+        }
+    }
+
+    @Test
+    void concurrentChurnNeverLosesRegisteredSubscriber() throws Exception {
+        SubscriberRegistry<Object> registry = new SubscriberRegistry<>(4);
+        ExecutorService pool = Executors.newFixedThreadPool(WORKERS + 1);
+        CountDownLatch start = new CountDownLatch(1);
+        AtomicBoolean running = new AtomicBoolean(true);
+        AtomicInteger lost = new AtomicInteger();
+        AtomicLong visited = new AtomicLong();
+        try {
+            List<Future<?>> workers = new ArrayList<>();
+            for (int w = 0; w < WORKERS; w++) {
+                workers.add(pool.submit(() -> {
+                    start.await();
+                    ThreadLocalRandom random = ThreadLocalRandom.current();
+                    for (int i = 0; i < ITERATIONS; i++) {
+                        String roomId = ROOMS[random.nextInt(ROOMS.length)];
+                        Object subscriber = new Object();
+                        registry.register(roomId, subscriber);
+                        // 登记之后、注销之前，遍历一定能看到该订阅者
+                        AtomicBoolean seen = new AtomicBoolean();
+                        registry.forEach(roomId, s -> {
+                            if (s == subscriber) {
+                                seen.set(true);
+                            }
+                        });
+                        if (!seen.get() || !registry.contains(roomId)) {
+                            lost.incrementAndGet();
+                        }
+                        registry.unregister(roomId, subscriber);
+                    }
+                    return null;
+                }));
+            }
+            // 通知线程持续遍历，与登记、注销并发
+            Future<?> notifier = pool.submit(() -> {
+                start.await();
+                while (running.get()) {
+                    for (String roomId : ROOMS) {
+                        registry.forEach(roomId, s -> visited.incrementAndGet());
+                    }
+                }
+                return null;
+            });
+
+            start.countDown();
+            for (Future<?> worker : workers) {
+                worker.get(60, TimeUnit.SECONDS);
+            }
+            running.set(false);
+            notifier.get(10, TimeUnit.SECONDS);
+        } finally {
+            pool.shutdownNow();
+        }
+
+        assertEquals(0, lost.get(), "registered subscribers missing from their room");
+        for (String roomId : ROOMS) {
+            assertEquals(0, registry.size(roomId));
+            assertFalse(registry.contains(roomId));
+            registry.forEach(roomId, s -> lost.incrementAndGet());
+        }
+        assertEquals(0, lost.get(), "unregistered subscribers still visited");
+    }
+}
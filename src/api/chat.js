@@ -5,6 +5,7 @@ const API = {
   CREATE_ROOM: '/room/create',
   JOIN_ROOM: '/room/join',
   LEAVE_ROOM: '/room/leave',
+  HEARTBEAT: '/room/heartbeat',
   ROOM_INFO: '/room/info',
   ONLINE_USERS: '/room/users',
   MESSAGES: '/room/messages',
@@ -41,6 +42,15 @@ export const chatApi = {
     })
   },
 
+  // 在线心跳
+  heartbeat: async (roomId, username) => {
+    return request({
+      url: API.HEARTBEAT,
+      method: 'post',
+      data: { roomId, username }
+    })
+  },
+
   // 获取聊天室信息
   getRoomInfo: async (roomId) => {
     return request({
@@ -51,12 +61,13 @@ export const chatApi = {
   },
 
   // 获取在线用户列表
-  getOnlineUsers: async (roomId, timeout = 30, signal) => {
+  getOnlineUsers: async (roomId, presenceVersion = null, timeout = 30, signal) => {
     return request({
       url: API.ONLINE_USERS,
       method: 'post',
       data: { 
         roomId,
+        presenceVersion,
         timeout
       },
       signal